@@ -0,0 +1,1053 @@
+package hdbscan;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A ball tree over longitude/latitude points. Every node is bounded by a
+ * spherical cap, a center point and a great-circle radius, so node bounds stay
+ * tight near the poles and across the antimeridian where the lon/lat envelopes
+ * built by {@link KdNode#calculateBBox(Double)} become global or inverted.
+ *
+ * <p>Points are split on the axis of largest spread of their unit vectors and
+ * reordered so that every node covers a contiguous range of the internal
+ * arrays. Distances are great-circle distances in kilometers, matching
+ * {@link KdNode#computeDistance(Coordinate, Coordinate)}.</p>
+ *
+ * <p>With {@link Precision#SINGLE} the point coordinates and the neighbor
+ * distances are stored as floats. Distances are still evaluated in double
+ * precision from the stored values, so bounds and distances stay consistent.</p>
+ *
+ * <p>In double precision the leaves are scanned with the batched
+ * {@link DistanceKernel}, which is vectorized when the Vector API is
+ * available.</p>
+ */
+public class BallTree {
+
+	private static final int R = 6371; // Radius of the earth
+	private static final int LEAF_SIZE = 16;
+	private static final DistanceKernel KERNEL = DistanceKernel.getInstance();
+	// the component of a node without any point taking part in a search
+	private static final int NO_COMPONENT = -2;
+
+	private Coordinate[] points;
+	private int[] weights;
+	private int k;
+	private int size;
+	private Precision precision;
+
+	// point data in tree order
+	private int[] index;
+	private int[] weight;
+	private double[] lat;
+	private double[] lon;
+	private double[] cosLat;
+	private float[] singleLat;
+	private float[] singleLon;
+	private float[] singleCosLat;
+	private double[][] unitVectors;
+
+	// node data
+	private int numNodes;
+	private int[] nodeStart;
+	private int[] nodeEnd;
+	private int[] nodeLeft;
+	private int[] nodeRight;
+	private double[] nodeLat;
+	private double[] nodeLon;
+	private double[] nodeCosLat;
+	private double[] nodeRadius;
+
+	// kNN results by point index
+	private double[] coreDistances;
+	private int[] neighbors;
+	private double[] neighborDistances;
+	private float[] singleNeighborDistances;
+
+	/**
+	 * Builds a ball tree over the given points.
+	 * @param points Points with x as longitude and y as latitude in degrees
+	 * @param k The number of neighbors used for core distances
+	 */
+	public BallTree(Coordinate[] points, int k) {
+		this(points, null, k);
+	}
+
+	/**
+	 * Builds a ball tree over weighted points. A point of weight w stands for w
+	 * input points at the same location and counts w times towards k.
+	 * @param points Points with x as longitude and y as latitude in degrees
+	 * @param weights The multiplicity of every point, or null for all ones
+	 * @param k The number of neighbors used for core distances
+	 */
+	public BallTree(Coordinate[] points, int[] weights, int k) {
+		this(points, weights, k, Precision.DOUBLE);
+	}
+
+	/**
+	 * Builds a ball tree over weighted points, storing coordinates and
+	 * neighbor distances in the given precision.
+	 * @param points Points with x as longitude and y as latitude in degrees
+	 * @param weights The multiplicity of every point, or null for all ones
+	 * @param k The number of neighbors used for core distances
+	 * @param precision Double or single precision storage
+	 */
+	public BallTree(Coordinate[] points, int[] weights, int k, Precision precision) {
+		this(points.length, weights, k, precision);
+		this.points = points;
+		for(int i = 0; i < size; i++){
+			setPoint(i, Math.toRadians(points[i].y), Math.toRadians(points[i].x));
+		}
+		buildNodes();
+	}
+
+	/**
+	 * Builds a ball tree over points kept in coordinate arrays, without a
+	 * {@link Coordinate} per point. {@link #getPoints()} returns null.
+	 * @param lon The longitudes in degrees
+	 * @param lat The latitudes in degrees
+	 * @param order The array position of every point; point i is at position <code>order[i]</code>
+	 * @param size The number of points
+	 * @param k The number of neighbors used for core distances
+	 */
+	BallTree(double[] lon, double[] lat, int[] order, int size, int k) {
+		this(size, null, k, Precision.DOUBLE);
+		for(int i = 0; i < size; i++){
+			setPoint(i, Math.toRadians(lat[order[i]]), Math.toRadians(lon[order[i]]));
+		}
+		buildNodes();
+	}
+
+	private BallTree(int size, int[] weights, int k, Precision precision) {
+		this.weights = weights;
+		this.k = k;
+		this.size = size;
+		this.precision = precision;
+		this.index = new int[size];
+		this.weight = new int[size];
+		if(precision == Precision.SINGLE){
+			this.singleLat = new float[size];
+			this.singleLon = new float[size];
+			this.singleCosLat = new float[size];
+		}else{
+			this.lat = new double[size];
+			this.lon = new double[size];
+			this.cosLat = new double[size];
+		}
+		for(int i = 0; i < size; i++){
+			index[i] = i;
+			weight[i] = weights == null ? 1 : weights[i];
+		}
+	}
+
+	/**
+	 * Creates the nodes once the points are set.
+	 */
+	private void buildNodes() {
+		unitVectors = new double[3][size];
+		for(int i = 0; i < size; i++){
+			unitVectors[0][i] = cosLat(i) * Math.cos(lon(i));
+			unitVectors[1][i] = cosLat(i) * Math.sin(lon(i));
+			unitVectors[2][i] = Math.sin(lat(i));
+		}
+		int capacity = countNodes(size);
+		nodeStart = new int[capacity];
+		nodeEnd = new int[capacity];
+		nodeLeft = new int[capacity];
+		nodeRight = new int[capacity];
+		nodeLat = new double[capacity];
+		nodeLon = new double[capacity];
+		nodeCosLat = new double[capacity];
+		nodeRadius = new double[capacity];
+		numNodes = 0;
+		if(size > 0){
+			makeTree(0, size);
+		}
+		// the unit vectors are only needed to choose splits
+		unitVectors = null;
+	}
+
+	private void setPoint(int i, double latitude, double longitude) {
+		if(singleLat != null){
+			singleLat[i] = (float) latitude;
+			singleLon[i] = (float) longitude;
+			singleCosLat[i] = (float) Math.cos(singleLat[i]);
+		}else{
+			lat[i] = latitude;
+			lon[i] = longitude;
+			cosLat[i] = Math.cos(latitude);
+		}
+	}
+
+	private double lat(int i) {
+		return lat != null ? lat[i] : singleLat[i];
+	}
+
+	private double lon(int i) {
+		return lon != null ? lon[i] : singleLon[i];
+	}
+
+	private double cosLat(int i) {
+		return cosLat != null ? cosLat[i] : singleCosLat[i];
+	}
+
+	private static int countNodes(int numPoints) {
+		if(numPoints <= LEAF_SIZE){
+			return 1;
+		}
+		int half = numPoints / 2;
+		return 1 + countNodes(half) + countNodes(numPoints - half);
+	}
+
+	/**
+	 * Recursively creates the node covering positions [start, end), splitting
+	 * at the median of the unit vector axis with the largest spread.
+	 * @return the id of the created node
+	 */
+	private int makeTree(int start, int end) {
+		int node = numNodes++;
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodeLeft[node] = -1;
+		nodeRight[node] = -1;
+		calculateBounds(node);
+
+		if(end - start > LEAF_SIZE){
+			int axis = 0;
+			double maxSpread = -1;
+			for(int a = 0; a < 3; a++){
+				double min = Double.MAX_VALUE;
+				double max = -Double.MAX_VALUE;
+				for(int i = start; i < end; i++){
+					double v = unitVectors[a][i];
+					if(v < min) min = v;
+					if(v > max) max = v;
+				}
+				if(max - min > maxSpread){
+					maxSpread = max - min;
+					axis = a;
+				}
+			}
+			int mid = (start + end) >>> 1;
+			select(unitVectors[axis], start, end - 1, mid);
+			nodeLeft[node] = makeTree(start, mid);
+			nodeRight[node] = makeTree(mid, end);
+		}
+		return node;
+	}
+
+	/**
+	 * Sets the node center to the normalized mean of its unit vectors and the
+	 * radius to the largest great-circle distance from the center.
+	 */
+	private void calculateBounds(int node) {
+		double cx = 0;
+		double cy = 0;
+		double cz = 0;
+		for(int i = nodeStart[node]; i < nodeEnd[node]; i++){
+			cx += unitVectors[0][i];
+			cy += unitVectors[1][i];
+			cz += unitVectors[2][i];
+		}
+		double norm = Math.sqrt(cx * cx + cy * cy + cz * cz);
+		if(norm < 1e-12){
+			// points spread evenly around the sphere, any member is as good a center
+			int first = nodeStart[node];
+			nodeLat[node] = lat(first);
+			nodeLon[node] = lon(first);
+		}else{
+			nodeLat[node] = Math.asin(Math.max(-1.0, Math.min(1.0, cz / norm)));
+			nodeLon[node] = Math.atan2(cy, cx);
+		}
+		nodeCosLat[node] = Math.cos(nodeLat[node]);
+		double radius = 0;
+		for(int i = nodeStart[node]; i < nodeEnd[node]; i++){
+			double dist = distance(nodeLat[node], nodeLon[node], nodeCosLat[node], lat(i), lon(i), cosLat(i));
+			if(dist > radius) radius = dist;
+		}
+		nodeRadius[node] = radius;
+	}
+
+	/**
+	 * Partially sorts positions [lo, hi] so that position n holds the element
+	 * that would be there if the range were sorted by the given values.
+	 */
+	private void select(double[] values, int lo, int hi, int n) {
+		while(hi > lo){
+			double pivot = values[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while(i <= j){
+				while(values[i] < pivot) i++;
+				while(values[j] > pivot) j--;
+				if(i <= j){
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if(n <= j){
+				hi = j;
+			}else if(n >= i){
+				lo = i;
+			}else{
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int tempIndex = index[i];
+		index[i] = index[j];
+		index[j] = tempIndex;
+		tempIndex = weight[i];
+		weight[i] = weight[j];
+		weight[j] = tempIndex;
+		double temp;
+		if(singleLat != null){
+			swap(singleLat, i, j);
+			swap(singleLon, i, j);
+			swap(singleCosLat, i, j);
+		}else{
+			temp = lat[i];
+			lat[i] = lat[j];
+			lat[j] = temp;
+			temp = lon[i];
+			lon[i] = lon[j];
+			lon[j] = temp;
+			temp = cosLat[i];
+			cosLat[i] = cosLat[j];
+			cosLat[j] = temp;
+		}
+		for(int a = 0; a < 3; a++){
+			temp = unitVectors[a][i];
+			unitVectors[a][i] = unitVectors[a][j];
+			unitVectors[a][j] = temp;
+		}
+	}
+
+	private static void swap(float[] values, int i, int j) {
+		float temp = values[i];
+		values[i] = values[j];
+		values[j] = temp;
+	}
+
+	/**
+	 * Great-circle distance in kilometers between two points given in radians,
+	 * using the same haversine formula as {@link KdNode#computeDistance(Coordinate, Coordinate)}.
+	 */
+	public static double distance(double lat1, double lon1, double cosLat1, double lat2, double lon2, double cosLat2) {
+		double sinLat = Math.sin((lat2 - lat1) / 2);
+		double sinLon = Math.sin((lon2 - lon1) / 2);
+		double a = sinLat * sinLat + cosLat1 * cosLat2 * sinLon * sinLon;
+		return 2 * R * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+	}
+
+	private double distance(int p1, int p2) {
+		return distance(lat(p1), lon(p1), cosLat(p1), lat(p2), lon(p2), cosLat(p2));
+	}
+
+	/**
+	 * A lower bound on the distance from the point at position p to any point
+	 * of the node, by the triangle inequality on the sphere.
+	 */
+	private double lowerBound(int node, int p) {
+		return lowerBound(node, lat(p), lon(p), cosLat(p));
+	}
+
+	private double lowerBound(int node, double qLat, double qLon, double qCosLat) {
+		double dist = distance(nodeLat[node], nodeLon[node], nodeCosLat[node], qLat, qLon, qCosLat);
+		return Math.max(0.0, dist - nodeRadius[node]);
+	}
+
+	/**
+	 * Searches for the k nearest neighbors of every point and sets the core
+	 * distances. Weights count towards k, so only the nearest neighbors needed
+	 * to reach k are kept and a point with more than k duplicates has a core
+	 * distance of zero. If fewer than k other points exist, the core distance is
+	 * the distance to the farthest one, like {@link KdNode#getCoreDistance()}.
+	 * In single precision the core distances are rounded like the stored
+	 * neighbor distances.
+	 */
+	public void findKNN() {
+		coreDistances = new double[size];
+		neighbors = new int[size * k];
+		if(precision == Precision.SINGLE){
+			singleNeighborDistances = new float[size * k];
+		}else{
+			neighborDistances = new double[size * k];
+		}
+		NeighborList list = new NeighborList(k);
+		double[] leafDistances = new double[LEAF_SIZE];
+		for(int q = 0; q < size; q++){
+			list.clear(weight[q]);
+			searchKNN(0, lat(q), lon(q), cosLat(q), q, list, leafDistances);
+			int p = index[q];
+			for(int i = 0; i < k; i++){
+				if(i < list.size()){
+					neighbors[p * k + i] = index[list.getPosition(i)];
+					setNeighborDistance(p * k + i, list.getDistance(i));
+				}else{
+					neighbors[p * k + i] = -1;
+					setNeighborDistance(p * k + i, Double.POSITIVE_INFINITY);
+				}
+			}
+			coreDistances[p] = list.size() > 0 ? getNeighborDistance(p * k + list.size() - 1) : 0.0;
+		}
+	}
+
+	private void setNeighborDistance(int i, double distance) {
+		if(singleNeighborDistances != null){
+			singleNeighborDistances[i] = (float) distance;
+		}else{
+			neighborDistances[i] = distance;
+		}
+	}
+
+	/**
+	 * @return the distance stored at position i of {@link #getNeighbors()}
+	 */
+	public double getNeighborDistance(int i) {
+		return neighborDistances != null ? neighborDistances[i] : singleNeighborDistances[i];
+	}
+
+	/**
+	 * Searches the subtree of a node for the neighbors of a location, skipping
+	 * the point at position q, or none if q is negative.
+	 */
+	private void searchKNN(int node, double qLat, double qLon, double qCosLat, int q, NeighborList list,
+			double[] leafDistances) {
+		if(nodeLeft[node] < 0){
+			int start = nodeStart[node];
+			scanLeaf(node, qLat, qLon, qCosLat, leafDistances);
+			for(int i = start; i < nodeEnd[node]; i++){
+				if(i != q){
+					list.offer(i, leafDistances[i - start], weight[i]);
+				}
+			}
+			return;
+		}
+		int left = nodeLeft[node];
+		int right = nodeRight[node];
+		double leftBound = lowerBound(left, qLat, qLon, qCosLat);
+		double rightBound = lowerBound(right, qLat, qLon, qCosLat);
+		if(rightBound < leftBound){
+			int temp = left;
+			left = right;
+			right = temp;
+			double tempBound = leftBound;
+			leftBound = rightBound;
+			rightBound = tempBound;
+		}
+		if(leftBound < list.bound()){
+			searchKNN(left, qLat, qLon, qCosLat, q, list, leafDistances);
+		}
+		if(rightBound < list.bound()){
+			searchKNN(right, qLat, qLon, qCosLat, q, list, leafDistances);
+		}
+	}
+
+	/**
+	 * Computes the distances from the point at position q to every point of
+	 * a leaf, indexed from the start of the leaf.
+	 */
+	private void scanLeaf(int node, int q, double[] leafDistances) {
+		scanLeaf(node, lat(q), lon(q), cosLat(q), leafDistances);
+	}
+
+	private void scanLeaf(int node, double qLat, double qLon, double qCosLat, double[] leafDistances) {
+		if(lat != null){
+			KERNEL.distances(qLat, qLon, qCosLat, lat, lon, cosLat, nodeStart[node], nodeEnd[node], leafDistances);
+		}else{
+			for(int i = nodeStart[node]; i < nodeEnd[node]; i++){
+				leafDistances[i - nodeStart[node]] = distance(qLat, qLon, qCosLat, lat(i), lon(i), cosLat(i));
+			}
+		}
+	}
+
+	/**
+	 * Searches the nearest points of the tree to a location that need not be
+	 * one of its points. Weights count towards k like in {@link #findKNN()}.
+	 * The tree is only read, so queries may run concurrently.
+	 * @param x The longitude in degrees
+	 * @param y The latitude in degrees
+	 * @param k The number of neighbors
+	 * @param neighbors Receives the indices of the neighbors, nearest first
+	 * @param distances Receives the distances of the neighbors
+	 * @return the number of neighbors found
+	 */
+	public int query(double x, double y, int k, int[] neighbors, double[] distances) {
+		if(size == 0){
+			return 0;
+		}
+		NeighborList list = new NeighborList(k);
+		list.clear(1);
+		query(x, y, list);
+		for(int i = 0; i < list.size(); i++){
+			neighbors[i] = index[list.getPosition(i)];
+			distances[i] = list.getDistance(i);
+		}
+		return list.size();
+	}
+
+	/**
+	 * Offers the points of the tree that beat the bound of a neighbor list to
+	 * it, so that one list can collect the neighbors of a location from
+	 * several trees. The positions in the list are tree positions.
+	 * @param x The longitude in degrees
+	 * @param y The latitude in degrees
+	 */
+	void query(double x, double y, NeighborList list) {
+		if(size > 0){
+			double qLat = Math.toRadians(y);
+			searchKNN(0, qLat, Math.toRadians(x), Math.cos(qLat), -1, list, new double[LEAF_SIZE]);
+		}
+	}
+
+	/**
+	 * Computes the minimum spanning tree of the mutual reachability graph with
+	 * Boruvka's algorithm. Each round finds, for every component, the lightest
+	 * edge leaving it; tree searches are pruned by node distance bounds, by the
+	 * smallest core distance in a node and by nodes lying entirely inside the
+	 * searching component. {@link #findKNN()} must have been called.
+	 * @return The spanning tree over the point indices
+	 */
+	public MinimumSpanningTree calculateMST() {
+		return calculateMST(coreDistances);
+	}
+
+	/**
+	 * Computes the minimum spanning tree of the mutual reachability graph
+	 * defined by the given core distances instead of the ones found by
+	 * {@link #findKNN()}.
+	 * @param coreDistances The core distance of every point, indexed like the input points
+	 * @return The spanning tree over the point indices
+	 */
+	public MinimumSpanningTree calculateMST(double[] coreDistances) {
+		MinimumSpanningTree mst = new MinimumSpanningTree(size, precision);
+		if(size < 2){
+			return mst;
+		}
+		double[] core = new double[size];
+		for(int i = 0; i < size; i++){
+			core[i] = coreDistances[index[i]];
+		}
+		double[] nodeMinCore = new double[numNodes];
+		for(int node = numNodes - 1; node >= 0; node--){
+			if(nodeLeft[node] < 0){
+				double min = Double.MAX_VALUE;
+				for(int i = nodeStart[node]; i < nodeEnd[node]; i++){
+					min = Math.min(min, core[i]);
+				}
+				nodeMinCore[node] = min;
+			}else{
+				// children are always created after their parent
+				nodeMinCore[node] = Math.min(nodeMinCore[nodeLeft[node]], nodeMinCore[nodeRight[node]]);
+			}
+		}
+
+		UnionFind uf = new UnionFind(size);
+		int[] component = new int[size];
+		int[] nodeComponent = new int[numNodes];
+		double[] bestWeight = new double[size];
+		int[] bestFrom = new int[size];
+		int[] bestTo = new int[size];
+		double[] leafDistances = new double[LEAF_SIZE];
+
+		while(uf.getNumComponents() > 1){
+			for(int i = 0; i < size; i++){
+				component[i] = uf.find(i);
+				bestWeight[i] = Double.POSITIVE_INFINITY;
+				bestTo[i] = -1;
+			}
+			for(int node = numNodes - 1; node >= 0; node--){
+				if(nodeLeft[node] < 0){
+					int c = component[nodeStart[node]];
+					for(int i = nodeStart[node] + 1; i < nodeEnd[node] && c >= 0; i++){
+						if(component[i] != c) c = -1;
+					}
+					nodeComponent[node] = c;
+				}else{
+					int c = nodeComponent[nodeLeft[node]];
+					nodeComponent[node] = c == nodeComponent[nodeRight[node]] ? c : -1;
+				}
+			}
+			for(int q = 0; q < size; q++){
+				int c = component[q];
+				if(core[q] < bestWeight[c]){
+					searchNearestOutside(0, q, c, core, nodeMinCore, component, nodeComponent,
+							bestWeight, bestFrom, bestTo, leafDistances);
+				}
+			}
+			for(int c = 0; c < size; c++){
+				if(component[c] == c && bestTo[c] >= 0 && uf.union(bestFrom[c], bestTo[c]) >= 0){
+					mst.addEdge(index[bestFrom[c]], index[bestTo[c]], bestWeight[c]);
+				}
+			}
+		}
+		return mst;
+	}
+
+	private void searchNearestOutside(int node, int q, int c, double[] core, double[] nodeMinCore,
+			int[] component, int[] nodeComponent, double[] bestWeight, int[] bestFrom, int[] bestTo,
+			double[] leafDistances) {
+		if(nodeComponent[node] == c){
+			return;
+		}
+		if(nodeLeft[node] < 0){
+			int start = nodeStart[node];
+			scanLeaf(node, q, leafDistances);
+			for(int i = start; i < nodeEnd[node]; i++){
+				if(component[i] != c){
+					double weight = Math.max(Math.max(core[q], core[i]), leafDistances[i - start]);
+					if(weight < bestWeight[c]){
+						bestWeight[c] = weight;
+						bestFrom[c] = q;
+						bestTo[c] = i;
+					}
+				}
+			}
+			return;
+		}
+		int left = nodeLeft[node];
+		int right = nodeRight[node];
+		double leftBound = Math.max(Math.max(core[q], nodeMinCore[left]), lowerBound(left, q));
+		double rightBound = Math.max(Math.max(core[q], nodeMinCore[right]), lowerBound(right, q));
+		if(rightBound < leftBound){
+			int temp = left;
+			left = right;
+			right = temp;
+			double tempBound = leftBound;
+			leftBound = rightBound;
+			rightBound = tempBound;
+		}
+		if(leftBound < bestWeight[c]){
+			searchNearestOutside(left, q, c, core, nodeMinCore, component, nodeComponent, bestWeight, bestFrom, bestTo,
+					leafDistances);
+		}
+		if(rightBound < bestWeight[c]){
+			searchNearestOutside(right, q, c, core, nodeMinCore, component, nodeComponent, bestWeight, bestFrom, bestTo,
+					leafDistances);
+		}
+	}
+
+	/**
+	 * Searches for the lightest mutual reachability edges from locations
+	 * outside the tree to the points of the tree in other components, pruned
+	 * like the rounds of {@link #calculateMST(double[])}. Used to join
+	 * components spread over several trees; not safe for concurrent use.
+	 */
+	final class ComponentSearch {
+		private double[] core;
+		private int[] component;
+		private double[] nodeMinCore;
+		private int[] nodeComponent;
+		private double[] leafDistances = new double[LEAF_SIZE];
+		private double bestWeight;
+		private int bestPosition;
+
+		/**
+		 * @param coreDistances The core distance of every point, indexed like the input points
+		 * @param components The component of every point, indexed like the input points;
+		 *        points with a negative component are left out of the search
+		 */
+		ComponentSearch(double[] coreDistances, int[] components) {
+			core = new double[size];
+			component = new int[size];
+			for(int i = 0; i < size; i++){
+				core[i] = coreDistances[index[i]];
+				component[i] = components[index[i]];
+			}
+			nodeMinCore = new double[numNodes];
+			nodeComponent = new int[numNodes];
+			for(int node = numNodes - 1; node >= 0; node--){
+				if(nodeLeft[node] < 0){
+					double min = Double.MAX_VALUE;
+					int c = NO_COMPONENT;
+					for(int i = nodeStart[node]; i < nodeEnd[node]; i++){
+						if(component[i] >= 0){
+							min = Math.min(min, core[i]);
+							c = c == NO_COMPONENT || c == component[i] ? component[i] : -1;
+						}
+					}
+					nodeMinCore[node] = min;
+					nodeComponent[node] = c;
+				}else{
+					// children are always created after their parent
+					nodeMinCore[node] = Math.min(nodeMinCore[nodeLeft[node]], nodeMinCore[nodeRight[node]]);
+					int left = nodeComponent[nodeLeft[node]];
+					int right = nodeComponent[nodeRight[node]];
+					nodeComponent[node] = left == NO_COMPONENT || left == right ? right : right == NO_COMPONENT ? left : -1;
+				}
+			}
+		}
+
+		/**
+		 * Searches the lightest edge lighter than bound from a location to a
+		 * point of another component.
+		 * @param x The longitude in degrees
+		 * @param y The latitude in degrees
+		 * @param qCore The core distance of the location
+		 * @param qComponent The component of the location
+		 * @param bound The weight an edge has to beat
+		 * @return the input index of the other end of the edge, or -1 if no edge beats the bound
+		 */
+		int search(double x, double y, double qCore, int qComponent, double bound) {
+			bestWeight = bound;
+			bestPosition = -1;
+			if(size > 0){
+				double qLat = Math.toRadians(y);
+				search(0, qLat, Math.toRadians(x), Math.cos(qLat), qCore, qComponent);
+			}
+			return bestPosition < 0 ? -1 : index[bestPosition];
+		}
+
+		/**
+		 * @return the weight of the edge found by the last search
+		 */
+		double getWeight() {
+			return bestWeight;
+		}
+
+		private void search(int node, double qLat, double qLon, double qCosLat, double qCore, int qComponent) {
+			if(nodeComponent[node] == qComponent || nodeComponent[node] == NO_COMPONENT){
+				return;
+			}
+			if(nodeLeft[node] < 0){
+				int start = nodeStart[node];
+				scanLeaf(node, qLat, qLon, qCosLat, leafDistances);
+				for(int i = start; i < nodeEnd[node]; i++){
+					if(component[i] >= 0 && component[i] != qComponent){
+						double weight = Math.max(Math.max(qCore, core[i]), leafDistances[i - start]);
+						if(weight < bestWeight){
+							bestWeight = weight;
+							bestPosition = i;
+						}
+					}
+				}
+				return;
+			}
+			int left = nodeLeft[node];
+			int right = nodeRight[node];
+			double leftBound = Math.max(Math.max(qCore, nodeMinCore[left]), lowerBound(left, qLat, qLon, qCosLat));
+			double rightBound = Math.max(Math.max(qCore, nodeMinCore[right]), lowerBound(right, qLat, qLon, qCosLat));
+			if(rightBound < leftBound){
+				int temp = left;
+				left = right;
+				right = temp;
+				double tempBound = leftBound;
+				leftBound = rightBound;
+				rightBound = tempBound;
+			}
+			if(leftBound < bestWeight){
+				search(left, qLat, qLon, qCosLat, qCore, qComponent);
+			}
+			if(rightBound < bestWeight){
+				search(right, qLat, qLon, qCosLat, qCore, qComponent);
+			}
+		}
+	}
+
+	/**
+	 * Searches the mutual reachability edges from a point that can enter a
+	 * known spanning tree of some of the points. Every point is tied to an
+	 * anchor vertex of the tree by an edge of a given weight, zero for the
+	 * vertices themselves. An edge is only lighter than the heaviest edge of
+	 * the cycle it closes if it is lighter than the bottleneck of the path
+	 * through the two anchors, so subtrees whose lower bound on the weight
+	 * reaches the largest such bottleneck are pruned. Not safe for concurrent use.
+	 */
+	final class InsertionSearch {
+		private double[] core;
+		private int[] position;
+		private double[] offset;
+		private boolean[] vertex;
+		private BottleneckIndex bottlenecks;
+		private double[] nodeMinCore;
+		private double[] nodeMaxOffset;
+		private int[] nodeMinPosition;
+		private int[] nodeMaxPosition;
+		private int[] treePosition;
+		private double[] leafDistances = new double[LEAF_SIZE];
+		private int[] found = new int[16];
+		private double[] foundWeights = new double[16];
+		private int numFound;
+
+		/**
+		 * @param coreDistances The core distance of every point, indexed like the input points
+		 * @param anchors The tree vertex every point is tied to, indexed like the input points
+		 * @param offsets The weight of the edge to the anchor, zero for the vertices of the tree
+		 * @param bottlenecks The bottlenecks of the tree, whose vertices are the input indices
+		 */
+		InsertionSearch(double[] coreDistances, int[] anchors, double[] offsets, BottleneckIndex bottlenecks) {
+			this.bottlenecks = bottlenecks;
+			core = new double[size];
+			position = new int[size];
+			offset = new double[size];
+			vertex = new boolean[size];
+			treePosition = new int[size];
+			for(int i = 0; i < size; i++){
+				treePosition[index[i]] = i;
+				core[i] = coreDistances[index[i]];
+				position[i] = bottlenecks.getPosition(anchors[index[i]]);
+				offset[i] = offsets[index[i]];
+				vertex[i] = anchors[index[i]] == index[i];
+			}
+			nodeMinCore = new double[numNodes];
+			nodeMaxOffset = new double[numNodes];
+			nodeMinPosition = new int[numNodes];
+			nodeMaxPosition = new int[numNodes];
+			for(int node = numNodes - 1; node >= 0; node--){
+				if(nodeLeft[node] < 0){
+					double minCore = Double.MAX_VALUE;
+					double maxOffset = 0.0;
+					int minPosition = Integer.MAX_VALUE;
+					int maxPosition = Integer.MIN_VALUE;
+					for(int i = nodeStart[node]; i < nodeEnd[node]; i++){
+						minCore = Math.min(minCore, core[i]);
+						maxOffset = Math.max(maxOffset, offset[i]);
+						minPosition = Math.min(minPosition, position[i]);
+						maxPosition = Math.max(maxPosition, position[i]);
+					}
+					nodeMinCore[node] = minCore;
+					nodeMaxOffset[node] = maxOffset;
+					nodeMinPosition[node] = minPosition;
+					nodeMaxPosition[node] = maxPosition;
+				}else{
+					// children are always created after their parent
+					int left = nodeLeft[node];
+					int right = nodeRight[node];
+					nodeMinCore[node] = Math.min(nodeMinCore[left], nodeMinCore[right]);
+					nodeMaxOffset[node] = Math.max(nodeMaxOffset[left], nodeMaxOffset[right]);
+					nodeMinPosition[node] = Math.min(nodeMinPosition[left], nodeMinPosition[right]);
+					nodeMaxPosition[node] = Math.max(nodeMaxPosition[left], nodeMaxPosition[right]);
+				}
+			}
+		}
+
+		/**
+		 * Collects the edges from a point that are lighter than the bottleneck
+		 * of the path through their anchors. An edge between two points that
+		 * are not vertices of the tree is only collected from the lower index,
+		 * so that it is found once.
+		 * @param p The input index of the point
+		 * @return the number of edges found, read with {@link #getPoint(int)} and {@link #getWeight(int)}
+		 */
+		int search(int p) {
+			numFound = 0;
+			if(mayHoldEdge(0, treePosition[p])){
+				search(0, treePosition[p]);
+			}
+			return numFound;
+		}
+
+		/**
+		 * @return the input index of the other end of the i-th edge found by the last search
+		 */
+		int getPoint(int i) {
+			return found[i];
+		}
+
+		/**
+		 * @return the weight of the i-th edge found by the last search
+		 */
+		double getWeight(int i) {
+			return foundWeights[i];
+		}
+
+		private void search(int node, int q) {
+			if(nodeLeft[node] < 0){
+				int start = nodeStart[node];
+				scanLeaf(node, q, leafDistances);
+				for(int i = start; i < nodeEnd[node]; i++){
+					if(i == q || !vertex[i] && index[i] < index[q]){
+						continue;
+					}
+					double weight = Math.max(Math.max(core[q], core[i]), leafDistances[i - start]);
+					double bottleneck = Math.max(Math.max(offset[q], offset[i]),
+							bottlenecks.getMaxGap(position[q], position[i]));
+					if(weight < bottleneck){
+						if(numFound == found.length){
+							found = Arrays.copyOf(found, numFound * 2);
+							foundWeights = Arrays.copyOf(foundWeights, numFound * 2);
+						}
+						found[numFound] = index[i];
+						foundWeights[numFound] = weight;
+						numFound++;
+					}
+				}
+				return;
+			}
+			if(mayHoldEdge(nodeLeft[node], q)){
+				search(nodeLeft[node], q);
+			}
+			if(mayHoldEdge(nodeRight[node], q)){
+				search(nodeRight[node], q);
+			}
+		}
+
+		/**
+		 * Whether the lower bound on the edges from the point at position q to
+		 * the node is below the largest bottleneck of their paths.
+		 */
+		private boolean mayHoldEdge(int node, int q) {
+			double weight = Math.max(Math.max(core[q], nodeMinCore[node]), lowerBound(node, q));
+			double bottleneck = Math.max(Math.max(offset[q], nodeMaxOffset[node]), bottlenecks.getMaxGap(
+					Math.min(position[q], nodeMinPosition[node]), Math.max(position[q], nodeMaxPosition[node])));
+			return weight < bottleneck;
+		}
+	}
+
+	/**
+	 * Derives the core distances for a smaller number of neighbors from the
+	 * sorted neighbor lists of {@link #findKNN()}, without searching again.
+	 * @param k The number of neighbors, at most the k the tree was built with
+	 * @return the core distance of every point, indexed like the input points
+	 */
+	public double[] getCoreDistances(int k) {
+		if(k > this.k){
+			throw new IllegalArgumentException("k = " + k + " exceeds the " + this.k + " neighbors that were searched");
+		}
+		double[] core = new double[size];
+		for(int p = 0; p < size; p++){
+			int count = (weights == null ? 1 : weights[p]) - 1;
+			double dist = 0.0;
+			for(int i = 0; i < this.k && count < k; i++){
+				int neighbor = neighbors[p * this.k + i];
+				if(neighbor < 0){
+					break;
+				}
+				count += weights == null ? 1 : weights[neighbor];
+				dist = getNeighborDistance(p * this.k + i);
+			}
+			core[p] = dist;
+		}
+		return core;
+	}
+
+	public Coordinate[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return the multiplicity of every point, or null if all points have weight one
+	 */
+	public int[] getWeights() {
+		return weights;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * @return the core distance of every point, indexed like the input points
+	 */
+	public double[] getCoreDistances() {
+		return coreDistances;
+	}
+
+	/**
+	 * @return the neighbors of point i, nearest first, at <code>[i*k, i*k+k)</code>;
+	 *         -1 where fewer than k neighbors exist
+	 */
+	public int[] getNeighbors() {
+		return neighbors;
+	}
+
+	/**
+	 * @return the distances to the neighbors of {@link #getNeighbors()}; a
+	 *         widened copy when stored in single precision
+	 */
+	public double[] getNeighborDistances() {
+		if(neighborDistances == null && singleNeighborDistances != null){
+			double[] distances = new double[singleNeighborDistances.length];
+			for(int i = 0; i < distances.length; i++){
+				distances[i] = singleNeighborDistances[i];
+			}
+			return distances;
+		}
+		return neighborDistances;
+	}
+
+	/**
+	 * The nearest candidates seen so far for one query, kept sorted by
+	 * distance and trimmed to the fewest needed to reach a total weight of k.
+	 */
+	static class NeighborList {
+		private int[] positions;
+		private double[] distances;
+		private int[] weights;
+		private int count;
+		private int k;
+		private int totalWeight;
+
+		NeighborList(int k) {
+			this.k = k;
+			positions = new int[k + 1];
+			distances = new double[k + 1];
+			weights = new int[k + 1];
+		}
+
+		/**
+		 * Empties the list for a query whose own duplicates count selfWeight - 1
+		 * towards k.
+		 */
+		void clear(int selfWeight) {
+			count = 0;
+			totalWeight = selfWeight - 1;
+		}
+
+		int size() {
+			return count;
+		}
+
+		int getPosition(int i) {
+			return positions[i];
+		}
+
+		double getDistance(int i) {
+			return distances[i];
+		}
+
+		/**
+		 * @return the distance a candidate has to beat to enter the list
+		 */
+		double bound() {
+			if(totalWeight < k){
+				return Double.POSITIVE_INFINITY;
+			}
+			return count > 0 ? distances[count - 1] : 0.0;
+		}
+
+		void offer(int position, double distance, int weight) {
+			if(distance >= bound()){
+				return;
+			}
+			int i = count++;
+			while(i > 0 && distances[i - 1] > distance){
+				positions[i] = positions[i - 1];
+				distances[i] = distances[i - 1];
+				weights[i] = weights[i - 1];
+				i--;
+			}
+			positions[i] = position;
+			distances[i] = distance;
+			weights[i] = weight;
+			totalWeight += weight;
+			while(count > 0 && totalWeight - weights[count - 1] >= k){
+				count--;
+				totalWeight -= weights[count];
+			}
+		}
+	}
+}
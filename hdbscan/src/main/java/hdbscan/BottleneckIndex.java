@@ -0,0 +1,127 @@
+package hdbscan;
+
+/**
+ * The bottleneck distances of a spanning forest: the weight of the heaviest
+ * edge on the tree path between two vertices. Vertices are put in the order
+ * in which Kruskal's algorithm concatenates the components, so that the
+ * bottleneck between two vertices is the largest gap between neighbors in
+ * the range from one to the other, the gap between two neighbors being the
+ * weight of the edge that joined their components. Vertices of different
+ * trees are an infinite gap apart. Ranges are read from a segment tree over
+ * the gaps in O(log n).
+ */
+public class BottleneckIndex {
+
+	private int numVertices;
+	private int[] positions;
+	// the gaps at the leaves, every inner entry the larger of its two children
+	private double[] maxGaps;
+	private int numLeaves;
+
+	/**
+	 * Orders the vertices of a spanning tree or forest. The edges of the tree
+	 * are sorted in place.
+	 * @param mst The spanning tree
+	 */
+	public BottleneckIndex(MinimumSpanningTree mst) {
+		this.numVertices = mst.getNumVertices();
+		this.positions = new int[numVertices];
+		// every component is a list of vertices from head to tail
+		int[] head = new int[numVertices];
+		int[] tail = new int[numVertices];
+		int[] next = new int[numVertices];
+		double[] gapAfter = new double[numVertices];
+		for(int v = 0; v < numVertices; v++){
+			head[v] = v;
+			tail[v] = v;
+			next[v] = -1;
+		}
+		mst.sortByWeight();
+		UnionFind uf = new UnionFind(numVertices);
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			int root1 = uf.find(mst.getFrom(e));
+			int root2 = uf.find(mst.getTo(e));
+			if(root1 == root2){
+				continue;
+			}
+			next[tail[root1]] = head[root2];
+			gapAfter[tail[root1]] = mst.getWeight(e);
+			int first = head[root1];
+			int last = tail[root2];
+			int root = uf.union(root1, root2);
+			head[root] = first;
+			tail[root] = last;
+		}
+		int first = -1;
+		int last = -1;
+		for(int v = 0; v < numVertices; v++){
+			if(uf.find(v) == v){
+				if(last < 0){
+					first = head[v];
+				}else{
+					next[last] = head[v];
+					gapAfter[last] = Double.POSITIVE_INFINITY;
+				}
+				last = tail[v];
+			}
+		}
+
+		numLeaves = 1;
+		while(numLeaves < numVertices){
+			numLeaves *= 2;
+		}
+		maxGaps = new double[2 * numLeaves];
+		int position = 0;
+		for(int v = first; v >= 0; v = next[v]){
+			positions[v] = position;
+			if(next[v] >= 0){
+				maxGaps[numLeaves + position] = gapAfter[v];
+			}
+			position++;
+		}
+		for(int i = numLeaves - 1; i > 0; i--){
+			maxGaps[i] = Math.max(maxGaps[2 * i], maxGaps[2 * i + 1]);
+		}
+	}
+
+	/**
+	 * @return the position of a vertex in the order
+	 */
+	public int getPosition(int vertex) {
+		return positions[vertex];
+	}
+
+	/**
+	 * @return the weight of the heaviest edge on the tree path between two
+	 *         vertices, zero for a vertex and itself
+	 */
+	public double getBottleneck(int v1, int v2) {
+		return getMaxGap(positions[v1], positions[v2]);
+	}
+
+	/**
+	 * @return the bottleneck between the vertices at two positions, which is
+	 *         also the largest bottleneck between any two vertices in the range
+	 */
+	public double getMaxGap(int position1, int position2) {
+		int lo = Math.min(position1, position2) + numLeaves;
+		int hi = Math.max(position1, position2) + numLeaves;
+		// the gaps at [lo, hi), each following its position
+		double max = 0.0;
+		while(lo < hi){
+			if((lo & 1) == 1){
+				max = Math.max(max, maxGaps[lo++]);
+			}
+			if((hi & 1) == 1){
+				max = Math.max(max, maxGaps[--hi]);
+			}
+			lo >>= 1;
+			hi >>= 1;
+		}
+		return max;
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+}
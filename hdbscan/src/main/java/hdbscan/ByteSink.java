@@ -0,0 +1,152 @@
+package hdbscan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte array that numbers, text and little-endian binary values
+ * are formatted into directly, without creating a String per value. It is
+ * reset and reused for every block of output.
+ */
+public class ByteSink {
+
+	private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+			100000000L, 1000000000L};
+	// beyond this magnitude scaled values could overflow a long
+	private static final double MAX_FIXED = 1e9;
+
+	private byte[] bytes;
+	private int size;
+	private byte[] digits = new byte[20];
+
+	public ByteSink(int capacity) {
+		this.bytes = new byte[Math.max(capacity, 16)];
+		this.size = 0;
+	}
+
+	private void ensureCapacity(int extra) {
+		if(size + extra > bytes.length){
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+		}
+	}
+
+	public ByteSink ascii(char c) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Appends a string holding only ASCII characters.
+	 */
+	public ByteSink ascii(String s) {
+		ensureCapacity(s.length());
+		for(int i = 0; i < s.length(); i++){
+			bytes[size++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+
+	public ByteSink integer(long value) {
+		if(value == Long.MIN_VALUE){
+			return ascii(Long.toString(value));
+		}
+		if(value < 0){
+			ascii('-');
+			value = -value;
+		}
+		int n = 0;
+		do{
+			digits[n++] = (byte) ('0' + value % 10);
+			value /= 10;
+		}while(value > 0);
+		ensureCapacity(n);
+		while(n > 0){
+			bytes[size++] = digits[--n];
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a number rounded to at most the given number of fraction
+	 * digits, without trailing zeros. Values that are not finite or too large
+	 * for fixed-point formatting are written by {@link Double#toString(double)}.
+	 * @param fractionDigits Between 0 and 9
+	 */
+	public ByteSink decimal(double value, int fractionDigits) {
+		if(Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_FIXED){
+			return ascii(Double.toString(value));
+		}
+		long scale = POWERS_OF_TEN[fractionDigits];
+		long scaled = Math.round(Math.abs(value) * scale);
+		if(value < 0 && scaled != 0){
+			ascii('-');
+		}
+		integer(scaled / scale);
+		long fraction = scaled % scale;
+		if(fraction != 0){
+			int n = fractionDigits;
+			while(fraction % 10 == 0){
+				fraction /= 10;
+				n--;
+			}
+			ensureCapacity(n + 1);
+			bytes[size++] = '.';
+			for(int i = n - 1; i >= 0; i--){
+				bytes[size + i] = (byte) ('0' + fraction % 10);
+				fraction /= 10;
+			}
+			size += n;
+		}
+		return this;
+	}
+
+	public ByteSink int8(int value) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * Appends a little-endian 32 bit integer.
+	 */
+	public ByteSink int32(int value) {
+		ensureCapacity(4);
+		bytes[size++] = (byte) value;
+		bytes[size++] = (byte) (value >>> 8);
+		bytes[size++] = (byte) (value >>> 16);
+		bytes[size++] = (byte) (value >>> 24);
+		return this;
+	}
+
+	/**
+	 * Appends a little-endian 64 bit integer.
+	 */
+	public ByteSink int64(long value) {
+		ensureCapacity(8);
+		for(int i = 0; i < 8; i++){
+			bytes[size++] = (byte) (value >>> (8 * i));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a little-endian IEEE 754 double.
+	 */
+	public ByteSink float64(double value) {
+		return int64(Double.doubleToLongBits(value));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void reset() {
+		size = 0;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, size);
+	}
+}
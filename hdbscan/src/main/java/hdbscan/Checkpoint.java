@@ -0,0 +1,347 @@
+package hdbscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A directory holding the completed stages of a run: the snapped points, the
+ * core distances and the spanning tree edges, each as a compact binary file.
+ * Every file starts with a SHA-256 hash of the input rows and the parameters
+ * and ends with a CRC32 of its content. A stage is only loaded if both match,
+ * so a rerun with the same inputs resumes after the last completed stage,
+ * while a changed input or a file cut short by a crash is recomputed.
+ *
+ * <p>Files are written under a temporary name and renamed when complete.</p>
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x48444243; // "HDBC"
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final String POINTS = "points.bin";
+	private static final String CORE_DISTANCES = "core.bin";
+	private static final String MST = "mst.bin";
+
+	private File dir;
+	private byte[] key;
+
+	/**
+	 * @param dir The checkpoint directory, created if missing
+	 * @param rows The input rows
+	 * @param k The number of neighbors
+	 * @param tolerance The snapping tolerance
+	 */
+	public Checkpoint(File dir, Coordinate[] rows, int k, double tolerance) throws IOException {
+		this.dir = dir;
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Cannot create checkpoint directory " + dir);
+		}
+		this.key = hash(rows, k, tolerance);
+	}
+
+	private static byte[] hash(Coordinate[] rows, int k, double tolerance) {
+		MessageDigest digest;
+		try{
+			digest = MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.putInt(VERSION).putInt(k).putDouble(tolerance).putInt(rows.length);
+		for(Coordinate row : rows){
+			if(buffer.remaining() < 16){
+				digest.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			buffer.putDouble(row.x).putDouble(row.y);
+		}
+		digest.update(buffer.array(), 0, buffer.position());
+		return digest.digest();
+	}
+
+	// ------------------------------ STAGES ------------------------------
+
+	public void savePoints(WeightedPoints points) throws IOException {
+		StageOutput out = begin(POINTS);
+		Coordinate[] unique = points.getPoints();
+		out.writeInt(unique.length);
+		for(Coordinate p : unique){
+			out.writeDouble(p.x);
+			out.writeDouble(p.y);
+		}
+		writeInts(out, points.getWeights());
+		writeInts(out, points.getRowIndex());
+		finish(out, POINTS);
+	}
+
+	/**
+	 * @return the snapped points, or null if there is no valid checkpoint
+	 */
+	public WeightedPoints loadPoints() {
+		StageInput in = open(POINTS);
+		if(in == null){
+			return null;
+		}
+		try{
+			Coordinate[] unique = new Coordinate[readLength(in, 16)];
+			for(int i = 0; i < unique.length; i++){
+				unique[i] = new Coordinate(in.readDouble(), in.readDouble());
+			}
+			int[] weights = readInts(in);
+			int[] rowIndex = readInts(in);
+			return verify(in) ? WeightedPoints.of(unique, weights, rowIndex) : null;
+		}catch(IOException | RuntimeException e){
+			return null;
+		}finally{
+			close(in);
+		}
+	}
+
+	public void saveCoreDistances(double[] coreDistances) throws IOException {
+		StageOutput out = begin(CORE_DISTANCES);
+		writeDoubles(out, coreDistances);
+		finish(out, CORE_DISTANCES);
+	}
+
+	/**
+	 * @return the core distances of the unique points, or null if there is no valid checkpoint
+	 */
+	public double[] loadCoreDistances() {
+		StageInput in = open(CORE_DISTANCES);
+		if(in == null){
+			return null;
+		}
+		try{
+			double[] coreDistances = readDoubles(in);
+			return verify(in) ? coreDistances : null;
+		}catch(IOException | RuntimeException e){
+			return null;
+		}finally{
+			close(in);
+		}
+	}
+
+	public void saveMST(MinimumSpanningTree mst) throws IOException {
+		StageOutput out = begin(MST);
+		out.writeInt(mst.getNumVertices());
+		out.writeInt(mst.getNumEdges());
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			out.writeInt(mst.getFrom(e));
+			out.writeInt(mst.getTo(e));
+			out.writeDouble(mst.getWeight(e));
+		}
+		finish(out, MST);
+	}
+
+	/**
+	 * @return the spanning tree over the unique points, or null if there is no valid checkpoint
+	 */
+	public MinimumSpanningTree loadMST() {
+		StageInput in = open(MST);
+		if(in == null){
+			return null;
+		}
+		try{
+			int numVertices = in.readInt();
+			int numEdges = readLength(in, 16);
+			int[] from = new int[numEdges];
+			int[] to = new int[numEdges];
+			double[] weights = new double[numEdges];
+			for(int e = 0; e < numEdges; e++){
+				from[e] = in.readInt();
+				to[e] = in.readInt();
+				weights[e] = in.readDouble();
+			}
+			// the vertex count is only trusted once the checksum matches
+			if(!verify(in) || numVertices < 0){
+				return null;
+			}
+			MinimumSpanningTree mst = new MinimumSpanningTree(numVertices);
+			for(int e = 0; e < numEdges; e++){
+				mst.addEdge(from[e], to[e], weights[e]);
+			}
+			return mst;
+		}catch(IOException | RuntimeException e){
+			return null;
+		}finally{
+			close(in);
+		}
+	}
+
+	/**
+	 * Deletes the files of all stages.
+	 */
+	public void clear() {
+		for(String name : new String[]{POINTS, CORE_DISTANCES, MST}){
+			new File(dir, name).delete();
+		}
+	}
+
+	// ------------------------------ FILES ------------------------------
+
+	/**
+	 * A stage file being written, which checksums everything after the header.
+	 */
+	private static class StageOutput extends DataOutputStream {
+		private CheckedOutputStream checked;
+
+		StageOutput(CheckedOutputStream checked) {
+			super(checked);
+			this.checked = checked;
+		}
+	}
+
+	/**
+	 * A stage file being read, which checksums everything after the header.
+	 */
+	private static class StageInput extends DataInputStream {
+		private CheckedInputStream checked;
+		private long fileLength;
+
+		StageInput(CheckedInputStream checked, long fileLength) {
+			super(checked);
+			this.checked = checked;
+			this.fileLength = fileLength;
+		}
+	}
+
+	private StageOutput begin(String name) throws IOException {
+		BufferedOutputStream file = new BufferedOutputStream(new FileOutputStream(new File(dir, name + ".tmp")), BUFFER_SIZE);
+		StageOutput out = new StageOutput(new CheckedOutputStream(file, new CRC32()));
+		try{
+			new DataOutputStream(file).writeInt(MAGIC);
+			new DataOutputStream(file).writeInt(VERSION);
+			file.write(key);
+		}catch(IOException e){
+			out.close();
+			throw e;
+		}
+		return out;
+	}
+
+	/**
+	 * Appends the checksum of the content and moves the file into place.
+	 */
+	private void finish(StageOutput out, String name) throws IOException {
+		try{
+			out.writeLong(out.checked.getChecksum().getValue());
+		}finally{
+			out.close();
+		}
+		Files.move(new File(dir, name + ".tmp").toPath(), new File(dir, name).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return a stream positioned at the content if the file exists and was
+	 *         written for the same inputs, null otherwise
+	 */
+	private StageInput open(String name) {
+		File file = new File(dir, name);
+		if(!file.isFile()){
+			return null;
+		}
+		DataInputStream header = null;
+		try{
+			BufferedInputStream stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			header = new DataInputStream(stream);
+			byte[] fileKey = new byte[key.length];
+			if(header.readInt() != MAGIC || header.readInt() != VERSION){
+				header.close();
+				return null;
+			}
+			header.readFully(fileKey);
+			if(!Arrays.equals(key, fileKey)){
+				header.close();
+				return null;
+			}
+			return new StageInput(new CheckedInputStream(stream, new CRC32()), file.length());
+		}catch(IOException e){
+			close(header);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the stored checksum, which is not part of the checked content,
+	 * and compares it to the checksum of the content read.
+	 */
+	private static boolean verify(StageInput in) throws IOException {
+		long actual = in.checked.getChecksum().getValue();
+		return in.readLong() == actual && in.read() < 0;
+	}
+
+	private static void close(DataInputStream in) {
+		if(in != null){
+			try{
+				in.close();
+			}catch(IOException e){
+				// only read from
+			}
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for(int v : values){
+			out.writeInt(v);
+		}
+	}
+
+	/**
+	 * Reads the length of an array and checks that the file can hold that
+	 * many elements, so that a damaged length fails before it is allocated.
+	 */
+	private static int readLength(StageInput in, int elementBytes) throws IOException {
+		int length = in.readInt();
+		if(length < 0 || length > in.fileLength / elementBytes){
+			throw new IOException("Invalid length " + length);
+		}
+		return length;
+	}
+
+	private static int[] readInts(StageInput in) throws IOException {
+		int[] values = new int[readLength(in, 4)];
+		for(int i = 0; i < values.length; i++){
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for(double v : values){
+			out.writeDouble(v);
+		}
+	}
+
+	private static double[] readDoubles(StageInput in) throws IOException {
+		double[] values = new double[readLength(in, 8)];
+		for(int i = 0; i < values.length; i++){
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+}
@@ -19,6 +19,7 @@ public class Cluster {
 	private int minClSize;
 	
 	private UndirectedWeightedSubgraph<ClusterNode, DefaultWeightedEdge> graph;
+	private WeightedPoints weights;
 	
 	private Double stability;
 
@@ -26,7 +27,7 @@ public class Cluster {
 	private Cluster left;
 	private Cluster right;
 	private boolean hasChildren;
-	private static int clusterCount = 0;
+	private ClusteringContext context;
 	
 
 
@@ -40,9 +41,32 @@ public class Cluster {
 	 */
 	public Cluster(Cluster parent, Double birthLevel, int minClSize,
 			UndirectedWeightedSubgraph<ClusterNode, DefaultWeightedEdge> graph) {
-		clusterCount += 1;
+		this(parent, birthLevel, minClSize, graph, null);
+	}
+	
+	/**
+	 * Creates a new Cluster whose size is the total weight of its vertices.
+	 * A root cluster is labeled in the default context, a child in the 
+	 * context of its parent.
+	 * @param weights The multiplicity of every location, or null to count each vertex once
+	 */
+	public Cluster(Cluster parent, Double birthLevel, int minClSize,
+			UndirectedWeightedSubgraph<ClusterNode, DefaultWeightedEdge> graph, WeightedPoints weights) {
+		this(parent, birthLevel, minClSize, graph, weights,
+				parent == null ? ClusteringContext.getDefault() : parent.getContext());
+	}
+	
+	/**
+	 * Creates a new Cluster labeled by the given run.
+	 * @param context The run drawing the cluster labels, inherited by child clusters
+	 */
+	public Cluster(Cluster parent, Double birthLevel, int minClSize,
+			UndirectedWeightedSubgraph<ClusterNode, DefaultWeightedEdge> graph, WeightedPoints weights,
+			ClusteringContext context) {
 		this.graph = graph;
-		this.label = clusterCount;
+		this.weights = weights;
+		this.context = context;
+		this.label = context.nextClusterLabel();
 		this.birthLevel = birthLevel;
 		this.deathLevel = null;
 		this.minClSize = minClSize;
@@ -69,6 +93,20 @@ public class Cluster {
 		}
 	}
 	
+	/**
+	 * Returns the number of input points represented by the given vertices.
+	 */
+	private int sizeOf(Set<ClusterNode> vertices){
+		if(weights == null){
+			return vertices.size();
+		}
+		int size = 0;
+		for(ClusterNode node : vertices){
+			size += weights.getWeight(node.getCoord());
+		}
+		return size;
+	}
+	
 	public Double analyzeCluster(){
 		EdgeComparator ec = new EdgeComparator(graph);
 		UndirectedWeightedSubgraph<ClusterNode, DefaultWeightedEdge> subGraph = 
@@ -91,7 +129,7 @@ public class Cluster {
 			if(subGraph.degreeOf(v2) < 1){
 				subGraph.removeVertex(v2);
 			}
-			if(subGraph.vertexSet().size() < minClSize){
+			if(sizeOf(subGraph.vertexSet()) < minClSize){
 				deathLevel = currEdgeWeight;
 			}else{
 				ConnectivityInspector<ClusterNode, DefaultWeightedEdge> ci = new ConnectivityInspector<>(subGraph);
@@ -99,11 +137,11 @@ public class Cluster {
 					deathLevel = currEdgeWeight;
 					Set<ClusterNode>leftVertices = ci.connectedSetOf(v1);
 					Set<ClusterNode>rightVertices = ci.connectedSetOf(v2);
-					if(leftVertices.size() >= minClSize && rightVertices.size() >= minClSize){
+					if(sizeOf(leftVertices) >= minClSize && sizeOf(rightVertices) >= minClSize){
 						left = new Cluster(this,currEdgeWeight,minClSize,
-								new UndirectedWeightedSubgraph<>(subGraph, ci.connectedSetOf(v1),null));
+								new UndirectedWeightedSubgraph<>(subGraph, ci.connectedSetOf(v1),null),weights);
 						right = new Cluster(this,currEdgeWeight,minClSize,
-								new UndirectedWeightedSubgraph<>(subGraph, ci.connectedSetOf(v2),null));
+								new UndirectedWeightedSubgraph<>(subGraph, ci.connectedSetOf(v2),null),weights);
 						hasChildren = true;
 					}
 				}
@@ -116,6 +154,14 @@ public class Cluster {
 		return this.label;
 	}
 	
+	/**
+	 * Replaces the label drawn when the cluster was created, see 
+	 * {@link ClusterTask#relabel(Cluster)}.
+	 */
+	public void setLabel(int label) {
+		this.label = label;
+	}
+	
 	public Cluster getParent() {
 		return this.parent;
 	}
@@ -133,6 +179,10 @@ public class Cluster {
 		return graph;
 	}
 
+	public WeightedPoints getWeights() {
+		return weights;
+	}
+
 	public Cluster getLeft() {
 		return left;
 	}
@@ -151,8 +201,15 @@ public class Cluster {
 		return hasChildren;
 	}
 
+	/**
+	 * @return the number of clusters created in the default context
+	 */
 	public static int getClusterCount() {
-		return clusterCount;
+		return ClusteringContext.getDefault().getClusterCount();
+	}
+	
+	public ClusteringContext getContext() {
+		return context;
 	}
 
 	public Double getBirthLevel() {
@@ -0,0 +1,515 @@
+package hdbscan;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.vividsolutions.jts.algorithm.ConvexHull;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+/**
+ * Streams spanning tree edges, cluster hulls, point labels and row labels to
+ * a file as CSV, GeoJSON or WKB. Records are formatted straight into a reused
+ * {@link ByteSink} in blocks, so no String is built per value. With a
+ * parallelism above one, consecutive blocks are formatted on a fork/join pool
+ * and written in order.
+ *
+ * <p>The WKB format is a sequence of little-endian records. Edges are
+ * <code>int v1, int v2, double weight</code>, points are
+ * <code>int id, int label, double probability, double outlierScore</code> and
+ * hulls are <code>int label, int numPoints</code>, each followed by the WKB of
+ * its geometry. Rows are written like points without a geometry.</p>
+ */
+public class ClusterExporter {
+
+	private static final int BLOCK_RECORDS = 8192;
+	private static final int BLOCK_BYTES = 1 << 20;
+	private static final int WKB_POINT = 1;
+	private static final int WKB_LINESTRING = 2;
+	private static final int WKB_POLYGON = 3;
+
+	private ExportFormat format;
+	private int coordinateDigits;
+	private int valueDigits;
+	private int parallelism;
+	private ForkJoinPool pool;
+
+	/**
+	 * Creates a sequential exporter writing coordinates with 7 fraction digits,
+	 * about a centimeter in degrees, and other values with 6.
+	 */
+	public ClusterExporter(ExportFormat format) {
+		this.format = format;
+		this.coordinateDigits = 7;
+		this.valueDigits = 6;
+		this.parallelism = 1;
+		this.pool = ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Formats one record into a sink. The first record of a file is 0.
+	 */
+	private interface RecordFormatter {
+		void format(int record, ByteSink sink);
+	}
+
+	/**
+	 * Writes the edges of a spanning tree as line strings.
+	 * @param mst The spanning tree
+	 * @param points The points, indexed by vertex
+	 * @param vertexLabels The value written for every vertex, or null to write the vertex index
+	 * @param file The output file
+	 */
+	public void writeEdges(final MinimumSpanningTree mst, final Coordinate[] points, final int[] vertexLabels,
+			File file) throws IOException {
+		write(file, "v1,v2,weight,wkt\n", mst.getNumEdges(), new RecordFormatter() {
+			@Override
+			public void format(int e, ByteSink sink) {
+				int from = mst.getFrom(e);
+				int to = mst.getTo(e);
+				int v1 = vertexLabels == null ? from : vertexLabels[from];
+				int v2 = vertexLabels == null ? to : vertexLabels[to];
+				if(format == ExportFormat.WKB){
+					sink.int32(v1).int32(v2).float64(mst.getWeight(e));
+					wkbSegment(points[from], points[to], sink);
+				}else if(format == ExportFormat.GEOJSON){
+					beginFeature(e, sink);
+					jsonSegment(points[from], points[to], sink);
+					sink.ascii(",\"properties\":{\"v1\":").integer(v1).ascii(",\"v2\":").integer(v2)
+							.ascii(",\"weight\":");
+					jsonNumber(mst.getWeight(e), sink);
+					sink.ascii("}}");
+				}else{
+					sink.integer(v1).ascii(',').integer(v2).ascii(',').decimal(mst.getWeight(e), valueDigits)
+							.ascii(",\"");
+					wktSegment(points[from], points[to], sink);
+					sink.ascii("\"\n");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes every point with its label, membership probability and outlier score.
+	 * @param points The points the clustering is aligned with
+	 * @param clustering The clustering of the points
+	 * @param file The output file
+	 */
+	public void writePoints(final Coordinate[] points, FlatClustering clustering, File file) throws IOException {
+		final int[] labels = clustering.getLabels();
+		final double[] probabilities = clustering.getProbabilities();
+		final double[] scores = clustering.getOutlierScores();
+		write(file, "id,label,probability,outlier_score,wkt\n", points.length, new RecordFormatter() {
+			@Override
+			public void format(int p, ByteSink sink) {
+				double score = scores == null ? Double.NaN : scores[p];
+				if(format == ExportFormat.WKB){
+					sink.int32(p).int32(labels[p]).float64(probabilities[p]).float64(score);
+					wkbPoint(points[p], sink);
+				}else if(format == ExportFormat.GEOJSON){
+					beginFeature(p, sink);
+					sink.ascii("{\"type\":\"Point\",\"coordinates\":");
+					jsonCoordinate(points[p], sink);
+					sink.ascii("},\"properties\":{\"id\":").integer(p).ascii(",\"label\":").integer(labels[p])
+							.ascii(",\"probability\":");
+					jsonNumber(probabilities[p], sink);
+					sink.ascii(",\"outlier_score\":");
+					jsonNumber(score, sink);
+					sink.ascii("}}");
+				}else{
+					sink.integer(p).ascii(',').integer(labels[p]).ascii(',').decimal(probabilities[p], valueDigits)
+							.ascii(',');
+					if(scores != null){
+						sink.decimal(score, valueDigits);
+					}
+					sink.ascii(",\"POINT (");
+					wktCoordinate(points[p], sink);
+					sink.ascii(")\"\n");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes <code>row, label, probability, outlier_score</code> for every
+	 * input row in input order. The values are read through the row index
+	 * from the arrays of the unique points, so no row-sized copies are made.
+	 * GeoJSON features of rows have no geometry; WKB records are
+	 * <code>int row, int label, double probability, double outlierScore</code>.
+	 * @param clustering The clustering of the unique points
+	 * @param rowIndex For every input row, the index of its unique point, or
+	 *                 null if the clustering is already aligned with the rows
+	 * @param file The output file
+	 */
+	public void writeRows(FlatClustering clustering, final int[] rowIndex, File file) throws IOException {
+		final int[] labels = clustering.getLabels();
+		final double[] probabilities = clustering.getProbabilities();
+		final double[] scores = clustering.getOutlierScores();
+		int numRows = rowIndex == null ? labels.length : rowIndex.length;
+		write(file, "row,label,probability,outlier_score\n", numRows, new RecordFormatter() {
+			@Override
+			public void format(int row, ByteSink sink) {
+				int p = rowIndex == null ? row : rowIndex[row];
+				double score = scores == null ? Double.NaN : scores[p];
+				if(format == ExportFormat.WKB){
+					sink.int32(row).int32(labels[p]).float64(probabilities[p]).float64(score);
+				}else if(format == ExportFormat.GEOJSON){
+					beginFeature(row, sink);
+					sink.ascii("null,\"properties\":{\"row\":").integer(row).ascii(",\"label\":").integer(labels[p])
+							.ascii(",\"probability\":");
+					jsonNumber(probabilities[p], sink);
+					sink.ascii(",\"outlier_score\":");
+					jsonNumber(score, sink);
+					sink.ascii("}}");
+				}else{
+					sink.integer(row).ascii(',').integer(labels[p]).ascii(',').decimal(probabilities[p], valueDigits)
+							.ascii(',');
+					if(scores != null){
+						sink.decimal(score, valueDigits);
+					}
+					sink.ascii('\n');
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the convex hull of every cluster. Clusters whose points are
+	 * collinear or coincide are written as a line string or a point.
+	 * @param points The points the clustering is aligned with
+	 * @param clustering The clustering of the points; noise is skipped
+	 * @param file The output file
+	 */
+	public void writeHulls(Coordinate[] points, FlatClustering clustering, File file) throws IOException {
+		final int numClusters = clustering.getNumClusters();
+		int[] labels = clustering.getLabels();
+		// group the points by label with a counting sort
+		int[] start = new int[numClusters + 1];
+		for(int label : labels){
+			if(label != FlatClustering.NOISE){
+				start[label + 1]++;
+			}
+		}
+		for(int c = 0; c < numClusters; c++){
+			start[c + 1] += start[c];
+		}
+		Coordinate[] grouped = new Coordinate[start[numClusters]];
+		int[] next = start.clone();
+		for(int p = 0; p < labels.length; p++){
+			if(labels[p] != FlatClustering.NOISE){
+				grouped[next[labels[p]]++] = points[p];
+			}
+		}
+		final Geometry[] hulls = new Geometry[numClusters];
+		final int[] sizes = new int[numClusters];
+		GeometryFactory gf = new GeometryFactory(new PrecisionModel(), 4326);
+		for(int c = 0; c < numClusters; c++){
+			Coordinate[] members = new Coordinate[start[c + 1] - start[c]];
+			System.arraycopy(grouped, start[c], members, 0, members.length);
+			hulls[c] = new ConvexHull(members, gf).getConvexHull();
+			sizes[c] = members.length;
+		}
+		write(file, "label,num_points,wkt\n", numClusters, new RecordFormatter() {
+			@Override
+			public void format(int c, ByteSink sink) {
+				if(format == ExportFormat.WKB){
+					sink.int32(c).int32(sizes[c]);
+					wkbGeometry(hulls[c], sink);
+				}else if(format == ExportFormat.GEOJSON){
+					beginFeature(c, sink);
+					jsonGeometry(hulls[c], sink);
+					sink.ascii(",\"properties\":{\"label\":").integer(c).ascii(",\"num_points\":").integer(sizes[c])
+							.ascii("}}");
+				}else{
+					sink.integer(c).ascii(',').integer(sizes[c]).ascii(",\"");
+					wktGeometry(hulls[c], sink);
+					sink.ascii("\"\n");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the header, the records block by block and the footer of a file.
+	 */
+	private void write(File file, String csvHeader, int numRecords, RecordFormatter formatter) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try{
+			ByteSink sink = new ByteSink(BLOCK_BYTES);
+			if(format == ExportFormat.CSV){
+				sink.ascii(csvHeader);
+			}else if(format == ExportFormat.GEOJSON){
+				sink.ascii("{\"type\":\"FeatureCollection\",\"features\":[");
+			}
+			sink.writeTo(out);
+			if(parallelism > 1 && numRecords > BLOCK_RECORDS){
+				writeParallel(out, numRecords, formatter);
+			}else{
+				for(int start = 0; start < numRecords; start += BLOCK_RECORDS){
+					sink.reset();
+					formatBlock(formatter, start, Math.min(start + BLOCK_RECORDS, numRecords), sink);
+					sink.writeTo(out);
+				}
+			}
+			if(format == ExportFormat.GEOJSON){
+				sink.reset();
+				sink.ascii("]}\n");
+				sink.writeTo(out);
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	private static void formatBlock(RecordFormatter formatter, int start, int end, ByteSink sink) {
+		for(int r = start; r < end; r++){
+			formatter.format(r, sink);
+		}
+	}
+
+	/**
+	 * Formats up to parallelism blocks at a time, each into its own sink, and
+	 * writes them in record order.
+	 */
+	private void writeParallel(OutputStream out, int numRecords, final RecordFormatter formatter) throws IOException {
+		final ByteSink[] sinks = new ByteSink[parallelism];
+		for(int i = 0; i < sinks.length; i++){
+			sinks[i] = new ByteSink(BLOCK_BYTES);
+		}
+		List<Future<ByteSink>> blocks = new ArrayList<>();
+		for(int wave = 0; wave < numRecords; wave += parallelism * BLOCK_RECORDS){
+			blocks.clear();
+			for(int i = 0; i < parallelism; i++){
+				final int start = wave + i * BLOCK_RECORDS;
+				if(start >= numRecords){
+					break;
+				}
+				final int end = Math.min(start + BLOCK_RECORDS, numRecords);
+				final ByteSink sink = sinks[i];
+				blocks.add(pool.submit(new Callable<ByteSink>() {
+					@Override
+					public ByteSink call() {
+						sink.reset();
+						formatBlock(formatter, start, end, sink);
+						return sink;
+					}
+				}));
+			}
+			try{
+				for(Future<ByteSink> block : blocks){
+					block.get().writeTo(out);
+				}
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Export was interrupted", e);
+			}catch(ExecutionException e){
+				throw new IOException("Export failed", e.getCause());
+			}
+		}
+	}
+
+	// ------------------------------ GEOJSON ------------------------------
+
+	private static void beginFeature(int record, ByteSink sink) {
+		if(record > 0){
+			sink.ascii(',');
+		}
+		sink.ascii("\n{\"type\":\"Feature\",\"geometry\":");
+	}
+
+	/**
+	 * JSON has no literal for infinite or undefined numbers, they become null.
+	 */
+	private void jsonNumber(double value, ByteSink sink) {
+		if(Double.isNaN(value) || Double.isInfinite(value)){
+			sink.ascii("null");
+		}else{
+			sink.decimal(value, valueDigits);
+		}
+	}
+
+	private void jsonCoordinate(Coordinate c, ByteSink sink) {
+		sink.ascii('[').decimal(c.x, coordinateDigits).ascii(',').decimal(c.y, coordinateDigits).ascii(']');
+	}
+
+	private void jsonCoordinates(Coordinate[] coords, int n, ByteSink sink) {
+		sink.ascii('[');
+		for(int i = 0; i < n; i++){
+			if(i > 0){
+				sink.ascii(',');
+			}
+			jsonCoordinate(coords[i], sink);
+		}
+		sink.ascii(']');
+	}
+
+	private void jsonLineString(Coordinate[] coords, int n, ByteSink sink) {
+		sink.ascii("{\"type\":\"LineString\",\"coordinates\":");
+		jsonCoordinates(coords, n, sink);
+		sink.ascii('}');
+	}
+
+	private void jsonSegment(Coordinate from, Coordinate to, ByteSink sink) {
+		sink.ascii("{\"type\":\"LineString\",\"coordinates\":[");
+		jsonCoordinate(from, sink);
+		sink.ascii(',');
+		jsonCoordinate(to, sink);
+		sink.ascii("]}");
+	}
+
+	private void jsonGeometry(Geometry g, ByteSink sink) {
+		Coordinate[] coords = g.getCoordinates();
+		if(g instanceof Polygon){
+			sink.ascii("{\"type\":\"Polygon\",\"coordinates\":[");
+			jsonCoordinates(coords, coords.length, sink);
+			sink.ascii("]}");
+		}else if(g instanceof LineString){
+			jsonLineString(coords, coords.length, sink);
+		}else if(g instanceof Point){
+			sink.ascii("{\"type\":\"Point\",\"coordinates\":");
+			jsonCoordinate(coords[0], sink);
+			sink.ascii('}');
+		}else{
+			sink.ascii("null");
+		}
+	}
+
+	// ------------------------------ WKT ------------------------------
+
+	private void wktCoordinate(Coordinate c, ByteSink sink) {
+		sink.decimal(c.x, coordinateDigits).ascii(' ').decimal(c.y, coordinateDigits);
+	}
+
+	private void wktCoordinates(Coordinate[] coords, int n, ByteSink sink) {
+		sink.ascii('(');
+		for(int i = 0; i < n; i++){
+			if(i > 0){
+				sink.ascii(", ");
+			}
+			wktCoordinate(coords[i], sink);
+		}
+		sink.ascii(')');
+	}
+
+	private void wktLineString(Coordinate[] coords, int n, ByteSink sink) {
+		sink.ascii("LINESTRING ");
+		wktCoordinates(coords, n, sink);
+	}
+
+	private void wktSegment(Coordinate from, Coordinate to, ByteSink sink) {
+		sink.ascii("LINESTRING (");
+		wktCoordinate(from, sink);
+		sink.ascii(", ");
+		wktCoordinate(to, sink);
+		sink.ascii(')');
+	}
+
+	private void wktGeometry(Geometry g, ByteSink sink) {
+		Coordinate[] coords = g.getCoordinates();
+		if(g instanceof Polygon){
+			sink.ascii("POLYGON (");
+			wktCoordinates(coords, coords.length, sink);
+			sink.ascii(')');
+		}else if(g instanceof LineString){
+			wktLineString(coords, coords.length, sink);
+		}else if(g instanceof Point){
+			sink.ascii("POINT (");
+			wktCoordinate(coords[0], sink);
+			sink.ascii(')');
+		}else{
+			sink.ascii("GEOMETRYCOLLECTION EMPTY");
+		}
+	}
+
+	// ------------------------------ WKB ------------------------------
+
+	private static void wkbPoint(Coordinate c, ByteSink sink) {
+		sink.int8(1).int32(WKB_POINT).float64(c.x).float64(c.y);
+	}
+
+	private static void wkbLineString(Coordinate[] coords, int n, ByteSink sink) {
+		sink.int8(1).int32(WKB_LINESTRING).int32(n);
+		for(int i = 0; i < n; i++){
+			sink.float64(coords[i].x).float64(coords[i].y);
+		}
+	}
+
+	private static void wkbSegment(Coordinate from, Coordinate to, ByteSink sink) {
+		sink.int8(1).int32(WKB_LINESTRING).int32(2).float64(from.x).float64(from.y).float64(to.x).float64(to.y);
+	}
+
+	/**
+	 * Hulls of empty clusters cannot occur, any other geometry is written as
+	 * an empty line string.
+	 */
+	private static void wkbGeometry(Geometry g, ByteSink sink) {
+		Coordinate[] coords = g.getCoordinates();
+		if(g instanceof Polygon){
+			sink.int8(1).int32(WKB_POLYGON).int32(1).int32(coords.length);
+			for(Coordinate c : coords){
+				sink.float64(c.x).float64(c.y);
+			}
+		}else if(g instanceof Point){
+			wkbPoint(coords[0], sink);
+		}else{
+			wkbLineString(coords, g instanceof LineString ? coords.length : 0, sink);
+		}
+	}
+
+	public ExportFormat getFormat() {
+		return format;
+	}
+
+	public int getCoordinateDigits() {
+		return coordinateDigits;
+	}
+
+	/**
+	 * @param coordinateDigits The fraction digits of text coordinates, at most 9
+	 */
+	public void setCoordinateDigits(int coordinateDigits) {
+		this.coordinateDigits = coordinateDigits;
+	}
+
+	public int getValueDigits() {
+		return valueDigits;
+	}
+
+	/**
+	 * @param valueDigits The fraction digits of text weights and probabilities, at most 9
+	 */
+	public void setValueDigits(int valueDigits) {
+		this.valueDigits = valueDigits;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism The number of blocks formatted at once; 1 formats on the calling thread
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @param pool The pool parallel blocks are formatted on
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+}
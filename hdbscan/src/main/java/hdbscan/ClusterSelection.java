@@ -0,0 +1,11 @@
+package hdbscan;
+
+/**
+ * How flat clusters are chosen from the condensed cluster tree.
+ */
+public enum ClusterSelection {
+	/** The set of non-overlapping clusters with the largest total stability. */
+	EXCESS_OF_MASS,
+	/** The clusters that never split into two clusters of at least the minimum size. */
+	LEAF
+}
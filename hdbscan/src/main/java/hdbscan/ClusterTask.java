@@ -0,0 +1,97 @@
+package hdbscan;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Analyzes a {@link Cluster} and all clusters it splits into on a 
+ * {@link ForkJoinPool}. Once a cluster has split, its two children share no
+ * vertices and are analyzed independently: the smaller child is forked and
+ * the larger one is continued on the current thread, so a deep, chain-like
+ * hierarchy does not grow the stack.
+ *
+ * <p>Clusters draw their labels from a shared counter as they are created,
+ * so the labels depend on the thread schedule. {@link #analyze(Cluster, ForkJoinPool)}
+ * therefore relabels the finished hierarchy in the order a sequential
+ * analysis creates the clusters.</p>
+ */
+public class ClusterTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private Cluster cluster;
+
+	public ClusterTask(Cluster cluster) {
+		this.cluster = cluster;
+	}
+
+	@Override
+	protected void compute() {
+		List<ClusterTask> forked = new ArrayList<>();
+		Cluster current = cluster;
+		while(current != null){
+			current.analyzeCluster();
+			if(!current.hasChildren()){
+				break;
+			}
+			Cluster larger = current.getLeft();
+			Cluster smaller = current.getRight();
+			if(smaller.getGraph().vertexSet().size() > larger.getGraph().vertexSet().size()){
+				larger = current.getRight();
+				smaller = current.getLeft();
+			}
+			ClusterTask task = new ClusterTask(smaller);
+			task.fork();
+			forked.add(task);
+			current = larger;
+		}
+		for(ClusterTask task : forked){
+			task.join();
+		}
+	}
+
+	/**
+	 * Builds the hierarchy below the root cluster in parallel and labels the
+	 * clusters deterministically.
+	 * @param root The cluster holding the whole spanning tree
+	 * @param pool The pool to run on
+	 * @return the root cluster
+	 */
+	public static Cluster analyze(Cluster root, ForkJoinPool pool) {
+		pool.invoke(new ClusterTask(root));
+		relabel(root);
+		return root;
+	}
+
+	/**
+	 * Builds the hierarchy below the root cluster on the pool of its context.
+	 */
+	public static Cluster analyze(Cluster root) {
+		return analyze(root, root.getContext().getPool());
+	}
+
+	/**
+	 * Numbers the clusters below the root as a single thread analyzing the
+	 * hierarchy depth first, left before right, would: both children of a
+	 * cluster are labeled when it splits, in the pre-order of their parents,
+	 * starting after the root's label.
+	 */
+	public static void relabel(Cluster root) {
+		int label = root.getLabel() + 1;
+		Deque<Cluster> stack = new ArrayDeque<>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			Cluster cluster = stack.pop();
+			if(cluster.hasChildren()){
+				cluster.getLeft().setLabel(label++);
+				cluster.getRight().setLabel(label++);
+				stack.push(cluster.getRight());
+				stack.push(cluster.getLeft());
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package hdbscan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one clustering run: the counters that label {@link KdNode}s
+ * and {@link Cluster}s, and the pool parallel stages run on. Giving every run
+ * its own context lets independent runs share a JVM and a pool without
+ * corrupting each other's labels.
+ *
+ * <p>Constructors that take no context use {@link #getDefault()}, which is
+ * shared by everything created that way.</p>
+ */
+public class ClusteringContext {
+
+	private static final ClusteringContext DEFAULT = new ClusteringContext();
+
+	private final AtomicInteger nodeCount;
+	private final AtomicInteger clusterCount;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a context running parallel stages on the common pool.
+	 */
+	public ClusteringContext() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool The pool shared with other runs
+	 */
+	public ClusteringContext(ForkJoinPool pool) {
+		this.nodeCount = new AtomicInteger();
+		this.clusterCount = new AtomicInteger();
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the context used by constructors that are not given one
+	 */
+	public static ClusteringContext getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the label of a new node, starting from 0
+	 */
+	public int nextNodeLabel() {
+		return nodeCount.getAndIncrement();
+	}
+
+	/**
+	 * @return the label of a new cluster, starting from 1
+	 */
+	public int nextClusterLabel() {
+		return clusterCount.incrementAndGet();
+	}
+
+	public int getNodeCount() {
+		return nodeCount.get();
+	}
+
+	public int getClusterCount() {
+		return clusterCount.get();
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+}
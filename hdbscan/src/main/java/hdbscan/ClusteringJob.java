@@ -0,0 +1,57 @@
+package hdbscan;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * The parameters of one clustering request submitted to a {@link ClusteringScheduler}.
+ */
+public class ClusteringJob {
+
+	private Coordinate[] points;
+	private int k;
+	private int minClSize;
+	private double tolerance;
+	private Engine engine;
+	private int priority;
+
+	/**
+	 * @param points The input rows
+	 * @param k The number of neighbors used for core distances
+	 * @param minClSize The smallest number of input points in a cluster
+	 * @param tolerance The snapping tolerance, NaN to keep exact duplicates only
+	 * @param engine The requested nearest neighbor engine
+	 * @param priority Jobs with a higher priority are started first
+	 */
+	public ClusteringJob(Coordinate[] points, int k, int minClSize, double tolerance, Engine engine, int priority) {
+		this.points = points;
+		this.k = k;
+		this.minClSize = minClSize;
+		this.tolerance = tolerance;
+		this.engine = engine;
+		this.priority = priority;
+	}
+
+	public Coordinate[] getPoints() {
+		return points;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getMinClSize() {
+		return minClSize;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+}
@@ -0,0 +1,250 @@
+package hdbscan;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs clustering jobs of very different sizes in one JVM. Every job is
+ * planned with {@link MemoryEstimator} when it is submitted and only started
+ * once a worker is free and its estimated peak heap fits into what running
+ * jobs leave of the budget. A job too large for the whole budget is degraded
+ * to a lower-memory mode, or fails right away if none fits.
+ *
+ * <p>Waiting jobs are ordered by priority, then by estimated size, so small
+ * jobs overtake a large one that is waiting for memory and keep running next
+ * to a large job that has started. A job that has waited longer than the
+ * maximum wait stops others from overtaking it until it has started.</p>
+ *
+ * <p>Every job runs in its own {@link ClusteringContext}; parallel stages of
+ * all jobs, such as the dense neighbor search, share one fork/join pool.</p>
+ */
+public class ClusteringScheduler {
+
+	private final int numWorkers;
+	private final long memoryBudget;
+	private final long maxWaitMillis;
+	private final ExecutorService workers;
+	private final ForkJoinPool pool;
+	private final TreeSet<ScheduledJob> queue;
+	private long reservedBytes;
+	private int running;
+	private long sequence;
+	private boolean shutdown;
+
+	/**
+	 * Creates a scheduler whose jobs wait at most a minute before they stop
+	 * being overtaken.
+	 * @param numWorkers The number of jobs running at once
+	 * @param memoryBudget The heap shared by all running jobs in bytes
+	 */
+	public ClusteringScheduler(int numWorkers, long memoryBudget) {
+		this(numWorkers, memoryBudget, 60000L);
+	}
+
+	/**
+	 * @param numWorkers The number of jobs running at once
+	 * @param memoryBudget The heap shared by all running jobs in bytes
+	 * @param maxWaitMillis How long a job may be overtaken by later jobs
+	 */
+	public ClusteringScheduler(int numWorkers, long memoryBudget, long maxWaitMillis) {
+		this.numWorkers = numWorkers;
+		this.memoryBudget = memoryBudget;
+		this.maxWaitMillis = maxWaitMillis;
+		this.workers = Executors.newFixedThreadPool(numWorkers);
+		this.pool = new ForkJoinPool();
+		this.queue = new TreeSet<>();
+	}
+
+	/**
+	 * Queues a job.
+	 * @return the labels of the job's input rows once it has run; fails with
+	 *         an IllegalStateException if the job cannot fit the budget
+	 * @throws RejectedExecutionException if the scheduler was shut down
+	 */
+	public Future<FlatClustering> submit(final ClusteringJob job) {
+		final MemoryEstimate plan;
+		try{
+			plan = MemoryEstimator.plan(job.getPoints().length, job.getK(), 2, job.getEngine(),
+					Precision.DOUBLE, memoryBudget, true);
+		}catch(final IllegalStateException e){
+			FutureTask<FlatClustering> failed = new FutureTask<>(new Callable<FlatClustering>() {
+				@Override
+				public FlatClustering call() {
+					throw e;
+				}
+			});
+			failed.run();
+			return failed;
+		}
+		ScheduledJob scheduled = new ScheduledJob(job, plan);
+		synchronized(this){
+			if(shutdown){
+				throw new RejectedExecutionException("The scheduler has been shut down");
+			}
+			scheduled.sequence = sequence++;
+			queue.add(scheduled);
+		}
+		dispatch();
+		return scheduled;
+	}
+
+	/**
+	 * Starts waiting jobs while workers and memory are available.
+	 */
+	private synchronized void dispatch() {
+		long now = System.currentTimeMillis();
+		ScheduledJob starving = null;
+		for(ScheduledJob job : queue){
+			if(now - job.submitted > maxWaitMillis && (starving == null || job.sequence < starving.sequence)){
+				starving = job;
+			}
+		}
+		if(starving != null){
+			if(running >= numWorkers || !fits(starving)){
+				return;
+			}
+			start(starving);
+		}
+		Iterator<ScheduledJob> it = queue.iterator();
+		while(running < numWorkers && it.hasNext()){
+			ScheduledJob job = it.next();
+			if(fits(job)){
+				it.remove();
+				start(job);
+			}
+		}
+	}
+
+	private boolean fits(ScheduledJob job) {
+		return job.plan.getPeakBytes() <= memoryBudget - reservedBytes;
+	}
+
+	/**
+	 * Reserves the memory of a job and hands it to a worker, which releases
+	 * the reservation when the job has returned. A job cancelled while it
+	 * runs keeps its memory until then.
+	 */
+	private void start(final ScheduledJob job) {
+		queue.remove(job);
+		job.started = true;
+		running++;
+		reservedBytes += job.plan.getPeakBytes();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try{
+					job.run();
+				}finally{
+					finished(job);
+				}
+			}
+		});
+	}
+
+	private void finished(ScheduledJob job) {
+		synchronized(this){
+			running--;
+			reservedBytes -= job.plan.getPeakBytes();
+			terminateIfIdle();
+		}
+		dispatch();
+	}
+
+	/**
+	 * Drops a job that completed before a worker took it, which only a
+	 * cancellation does; running jobs are released by their worker.
+	 */
+	private void dequeue(ScheduledJob job) {
+		synchronized(this){
+			if(job.started){
+				return;
+			}
+			queue.remove(job);
+			terminateIfIdle();
+		}
+		dispatch();
+	}
+
+	private void terminateIfIdle() {
+		if(shutdown && queue.isEmpty() && running == 0){
+			workers.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Rejects new jobs and stops the workers once the queued jobs have run.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		terminateIfIdle();
+	}
+
+	public synchronized int getNumRunning() {
+		return running;
+	}
+
+	public synchronized int getNumQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the estimated peak heap of the running jobs in bytes
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * A queued or running job, ordered by priority, estimated size and
+	 * submission.
+	 */
+	private class ScheduledJob extends FutureTask<FlatClustering> implements Comparable<ScheduledJob> {
+
+		private final ClusteringJob job;
+		private final MemoryEstimate plan;
+		private final long submitted;
+		private long sequence;
+		private boolean started;
+
+		ScheduledJob(final ClusteringJob job, final MemoryEstimate plan) {
+			super(new Callable<FlatClustering>() {
+				@Override
+				public FlatClustering call() throws Exception {
+					return HDBSCAN.cluster(job.getPoints(), job.getK(), job.getMinClSize(), job.getTolerance(),
+							job.getEngine(), plan.getPeakBytes(), true, new ClusteringContext(pool));
+				}
+			});
+			this.job = job;
+			this.plan = plan;
+			this.submitted = System.currentTimeMillis();
+		}
+
+		@Override
+		protected void done() {
+			dequeue(this);
+		}
+
+		@Override
+		public int compareTo(ScheduledJob other) {
+			if(job.getPriority() != other.job.getPriority()){
+				return job.getPriority() > other.job.getPriority() ? -1 : 1;
+			}
+			if(plan.getPeakBytes() != other.plan.getPeakBytes()){
+				return plan.getPeakBytes() < other.plan.getPeakBytes() ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
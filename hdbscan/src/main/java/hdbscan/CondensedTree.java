@@ -0,0 +1,325 @@
+package hdbscan;
+
+/**
+ * The condensed cluster tree of a {@link SingleLinkageTree} for a minimum
+ * cluster size. Walking down the dendrogram, a split where both sides hold at
+ * least minClSize points creates two child clusters; any smaller side is a
+ * set of points falling out of the current cluster. Densities are given as
+ * lambda = 1 / distance.
+ *
+ * <p>Clusters are numbered from 0 (the root) in the order they are created,
+ * so every cluster has a larger id than its parent. Every point falls out of
+ * exactly one cluster, which is stored per point instead of as tree rows.
+ * Building the tree and extracting a flat clustering are linear in the number
+ * of points and use no graph objects.</p>
+ *
+ * <p>GLOSH outlier scores are computed while condensing: a point's score is
+ * <code>1 - lambda_p / lambda_max</code>, where lambda_p is the level at which
+ * it leaves its cluster and lambda_max the highest level any point of that
+ * cluster or its descendants is still present at.</p>
+ */
+public class CondensedTree {
+
+	private int numPoints;
+	private int minClSize;
+	private int numClusters;
+
+	// per cluster
+	private int[] clusterParent;
+	private double[] birthLambda;
+	private double[] deathLambda;
+	private double[] stability;
+	private double[] maxPointLambda;
+	private boolean[] hasChildren;
+
+	// per point
+	private int[] pointCluster;
+	private double[] pointLambda;
+	private double[] outlierScores;
+
+	/**
+	 * Condenses the dendrogram.
+	 * @param slt The single linkage tree
+	 * @param minClSize The smallest total weight a cluster may have
+	 */
+	public CondensedTree(SingleLinkageTree slt, int minClSize) {
+		this.numPoints = slt.getNumPoints();
+		this.minClSize = minClSize;
+		// every split creates two clusters out of disjoint points
+		int maxClusters = Math.max(2 * numPoints, 1);
+		clusterParent = new int[maxClusters];
+		birthLambda = new double[maxClusters];
+		deathLambda = new double[maxClusters];
+		stability = new double[maxClusters];
+		maxPointLambda = new double[maxClusters];
+		hasChildren = new boolean[maxClusters];
+		pointCluster = new int[numPoints];
+		pointLambda = new double[numPoints];
+		outlierScores = new double[numPoints];
+
+		numClusters = 1;
+		clusterParent[0] = -1;
+		birthLambda[0] = 0.0;
+		if(numPoints == 0){
+			return;
+		}
+
+		// pairs of (dendrogram node, cluster) still to be walked
+		int[] stack = new int[2 * numPoints + 2];
+		int[] fallOut = new int[numPoints + 1];
+		int top = 0;
+		stack[top++] = slt.getRoot();
+		stack[top++] = 0;
+		while(top > 0){
+			int cluster = stack[--top];
+			int node = stack[--top];
+			if(slt.isLeaf(node)){
+				// a single location heavy enough to be a cluster never separates
+				addPoint(slt, node, cluster, Double.POSITIVE_INFINITY);
+				continue;
+			}
+			double lambda = lambda(slt.getDistance(node));
+			int left = slt.getLeft(node);
+			int right = slt.getRight(node);
+			boolean leftIsCluster = slt.getSize(left) >= minClSize;
+			boolean rightIsCluster = slt.getSize(right) >= minClSize;
+			if(leftIsCluster && rightIsCluster){
+				int leftCluster = addCluster(slt, left, cluster, lambda);
+				int rightCluster = addCluster(slt, right, cluster, lambda);
+				stack[top++] = left;
+				stack[top++] = leftCluster;
+				stack[top++] = right;
+				stack[top++] = rightCluster;
+				continue;
+			}
+			if(leftIsCluster){
+				stack[top++] = left;
+				stack[top++] = cluster;
+			}else{
+				addPoints(slt, left, cluster, lambda, fallOut);
+			}
+			if(rightIsCluster){
+				stack[top++] = right;
+				stack[top++] = cluster;
+			}else{
+				addPoints(slt, right, cluster, lambda, fallOut);
+			}
+		}
+		calculateOutlierScores();
+	}
+
+	/**
+	 * Propagates the highest point lambda of every cluster to its ancestors and
+	 * scores every point against the cluster it falls out of.
+	 */
+	private void calculateOutlierScores() {
+		for(int c = numClusters - 1; c > 0; c--){
+			int parent = clusterParent[c];
+			if(maxPointLambda[c] > maxPointLambda[parent]){
+				maxPointLambda[parent] = maxPointLambda[c];
+			}
+		}
+		for(int p = 0; p < numPoints; p++){
+			double maxLambda = maxPointLambda[pointCluster[p]];
+			if(maxLambda == 0.0 || pointLambda[p] == maxLambda){
+				outlierScores[p] = 0.0;
+			}else if(Double.isInfinite(maxLambda)){
+				outlierScores[p] = 1.0;
+			}else{
+				outlierScores[p] = 1.0 - pointLambda[p] / maxLambda;
+			}
+		}
+	}
+
+	/**
+	 * Converts a mutual reachability distance to a density level.
+	 */
+	public static double lambda(double distance) {
+		return distance > 0.0 ? 1.0 / distance : Double.POSITIVE_INFINITY;
+	}
+
+	private int addCluster(SingleLinkageTree slt, int node, int parent, double lambda) {
+		int cluster = numClusters++;
+		clusterParent[cluster] = parent;
+		birthLambda[cluster] = lambda;
+		hasChildren[parent] = true;
+		addToParent(parent, lambda, slt.getSize(node));
+		return cluster;
+	}
+
+	private void addPoint(SingleLinkageTree slt, int point, int cluster, double lambda) {
+		pointCluster[point] = cluster;
+		pointLambda[point] = lambda;
+		if(lambda > maxPointLambda[cluster]){
+			maxPointLambda[cluster] = lambda;
+		}
+		addToParent(cluster, lambda, slt.getWeight(point));
+	}
+
+	/**
+	 * Drops every point below a dendrogram node out of the cluster at lambda.
+	 */
+	private void addPoints(SingleLinkageTree slt, int node, int cluster, double lambda, int[] stack) {
+		int top = 0;
+		stack[top++] = node;
+		while(top > 0){
+			int current = stack[--top];
+			if(slt.isLeaf(current)){
+				addPoint(slt, current, cluster, lambda);
+			}else{
+				stack[top++] = slt.getLeft(current);
+				stack[top++] = slt.getRight(current);
+			}
+		}
+	}
+
+	private void addToParent(int parent, double lambda, int size) {
+		stability[parent] += size * (lambda - birthLambda[parent]);
+		if(lambda > deathLambda[parent]){
+			deathLambda[parent] = lambda;
+		}
+	}
+
+	/**
+	 * Selects flat clusters and labels every point. The root cluster is never
+	 * selected, so data without any split is all noise.
+	 * @param selection Excess of mass or leaf selection
+	 * @return Labels and membership probabilities indexed like the points
+	 */
+	public FlatClustering extractClusters(ClusterSelection selection) {
+		return extractClusters(selectClusters(selection));
+	}
+
+	/**
+	 * Labels every point by the given selection of clusters.
+	 * @param selected The clusters to keep, as returned by {@link #selectClusters(ClusterSelection)}
+	 * @return Labels and membership probabilities indexed like the points
+	 */
+	public FlatClustering extractClusters(boolean[] selected) {
+
+		// the selected cluster at or above every cluster, labels in id order
+		int[] labelOf = new int[numClusters];
+		int numLabels = 0;
+		labelOf[0] = -1;
+		for(int c = 1; c < numClusters; c++){
+			labelOf[c] = selected[c] ? numLabels++ : labelOf[clusterParent[c]];
+		}
+		int[] selectedCluster = new int[numLabels];
+		for(int c = 1; c < numClusters; c++){
+			if(selected[c]){
+				selectedCluster[labelOf[c]] = c;
+			}
+		}
+
+		int[] labels = new int[numPoints];
+		double[] probabilities = new double[numPoints];
+		for(int p = 0; p < numPoints; p++){
+			int label = labelOf[pointCluster[p]];
+			labels[p] = label;
+			if(label == FlatClustering.NOISE){
+				probabilities[p] = 0.0;
+				continue;
+			}
+			double maxLambda = deathLambda[selectedCluster[label]];
+			if(maxLambda == 0.0 || Double.isInfinite(pointLambda[p])){
+				probabilities[p] = 1.0;
+			}else{
+				probabilities[p] = Math.min(pointLambda[p], maxLambda) / maxLambda;
+			}
+		}
+		return new FlatClustering(labels, probabilities, outlierScores, numLabels);
+	}
+
+	/**
+	 * Marks the selected clusters. For excess of mass a cluster is kept if its
+	 * stability is at least the combined stability of the best selection
+	 * among its descendants.
+	 */
+	public boolean[] selectClusters(ClusterSelection selection) {
+		boolean[] selected = new boolean[numClusters];
+		if(selection == ClusterSelection.LEAF){
+			for(int c = 1; c < numClusters; c++){
+				selected[c] = !hasChildren[c];
+			}
+			return selected;
+		}
+		double[] bestBelow = new double[numClusters];
+		for(int c = numClusters - 1; c > 0; c--){
+			double best;
+			if(!hasChildren[c] || stability[c] >= bestBelow[c]){
+				selected[c] = true;
+				best = stability[c];
+			}else{
+				best = bestBelow[c];
+			}
+			bestBelow[clusterParent[c]] += best;
+		}
+		// a selected cluster hides every cluster below it, parents come first
+		boolean[] hidden = new boolean[numClusters];
+		for(int c = 1; c < numClusters; c++){
+			int parent = clusterParent[c];
+			if(parent > 0 && (selected[parent] || hidden[parent])){
+				selected[c] = false;
+				hidden[c] = true;
+			}
+		}
+		return selected;
+	}
+
+	public int getNumPoints() {
+		return numPoints;
+	}
+
+	public int getMinClSize() {
+		return minClSize;
+	}
+
+	public int getNumClusters() {
+		return numClusters;
+	}
+
+	public int getClusterParent(int cluster) {
+		return clusterParent[cluster];
+	}
+
+	public double getBirthLambda(int cluster) {
+		return birthLambda[cluster];
+	}
+
+	/**
+	 * @return the largest lambda at which a point or child cluster leaves the cluster
+	 */
+	public double getDeathLambda(int cluster) {
+		return deathLambda[cluster];
+	}
+
+	public double getStability(int cluster) {
+		return stability[cluster];
+	}
+
+	public boolean hasChildren(int cluster) {
+		return hasChildren[cluster];
+	}
+
+	/**
+	 * @return the cluster the point falls out of
+	 */
+	public int getPointCluster(int point) {
+		return pointCluster[point];
+	}
+
+	/**
+	 * @return the lambda at which the point falls out of its cluster
+	 */
+	public double getPointLambda(int point) {
+		return pointLambda[point];
+	}
+
+	/**
+	 * @return the GLOSH score of every point, from 0 for the densest points of
+	 *         a cluster towards 1 for outliers
+	 */
+	public double[] getOutlierScores() {
+		return outlierScores;
+	}
+}
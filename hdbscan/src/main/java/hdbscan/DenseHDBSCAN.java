@@ -0,0 +1,251 @@
+package hdbscan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Brute force neighbors and spanning tree for small and medium inputs, where
+ * building and searching a tree costs more than comparing every pair. Points
+ * are stored as unit vectors and compared by squared chord length, which
+ * orders pairs like the great-circle distance at the cost of three
+ * multiply-adds; distances are converted to kilometers only for the output.
+ *
+ * <p>The k nearest neighbors are found for blocks of rows against blocks of
+ * columns small enough to stay in cache, keeping only the candidates that
+ * beat the current k-th neighbor, with the row blocks spread over an
+ * executor unless the input is small. The spanning tree of the mutual
+ * reachability graph is built with Prim's algorithm in O(n&sup2;) time on
+ * primitive arrays, computing every distance when it is needed instead of
+ * storing the matrix.</p>
+ */
+public class DenseHDBSCAN {
+
+	private static final int R = 6371; // Radius of the earth
+	private static final int ROW_BLOCK = 32;
+	private static final int COLUMN_BLOCK = 1024;
+	// below this many points the row blocks run on the calling thread
+	private static final int PARALLEL_MIN_POINTS = 2048;
+
+	private int size;
+	private int k;
+	private int[] weights;
+	private double[] x;
+	private double[] y;
+	private double[] z;
+	// squared chord length of the core distances
+	private double[] coreChords;
+	private double[] coreDistances;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor = ForkJoinPool.commonPool();
+
+	/**
+	 * @param points The unique points
+	 * @param weights The multiplicity of every point, or null for all ones
+	 * @param k The number of neighbors used for core distances
+	 */
+	public DenseHDBSCAN(Coordinate[] points, int[] weights, int k) {
+		this.size = points.length;
+		this.k = k;
+		this.weights = weights;
+		this.x = new double[size];
+		this.y = new double[size];
+		this.z = new double[size];
+		for(int i = 0; i < size; i++){
+			double lat = Math.toRadians(points[i].y);
+			double lon = Math.toRadians(points[i].x);
+			x[i] = Math.cos(lat) * Math.cos(lon);
+			y[i] = Math.cos(lat) * Math.sin(lon);
+			z[i] = Math.sin(lat);
+		}
+	}
+
+	/**
+	 * Searches for the k nearest neighbors of every point and sets the core
+	 * distances, with weights counting towards k like in
+	 * {@link BallTree#findKNN()}.
+	 */
+	public void findKNN() {
+		coreChords = new double[size];
+		coreDistances = new double[size];
+		final int numBlocks = (size + ROW_BLOCK - 1) / ROW_BLOCK;
+		if(numThreads <= 1 || numBlocks <= 1 || size < PARALLEL_MIN_POINTS){
+			for(int start = 0; start < size; start += ROW_BLOCK){
+				findKNN(start, Math.min(size, start + ROW_BLOCK));
+			}
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int t = 0; t < Math.min(numThreads, numBlocks); t++){
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int block = next.getAndIncrement(); block < numBlocks; block = next.getAndIncrement()){
+						int start = block * ROW_BLOCK;
+						findKNN(start, Math.min(size, start + ROW_BLOCK));
+					}
+					return null;
+				}
+			});
+		}
+		try{
+			for(Future<Void> future : executor.invokeAll(tasks)){
+				future.get();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Neighbor search was interrupted", e);
+		}catch(ExecutionException e){
+			throw new IllegalStateException("Neighbor search failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Searches the neighbors of rows [start, end), one block of columns at a
+	 * time for all the rows.
+	 */
+	private void findKNN(int start, int end) {
+		BallTree.NeighborList[] lists = new BallTree.NeighborList[end - start];
+		for(int i = start; i < end; i++){
+			lists[i - start] = new BallTree.NeighborList(k);
+			lists[i - start].clear(weight(i));
+		}
+		for(int column = 0; column < size; column += COLUMN_BLOCK){
+			int columnEnd = Math.min(size, column + COLUMN_BLOCK);
+			for(int i = start; i < end; i++){
+				BallTree.NeighborList list = lists[i - start];
+				double bound = list.bound();
+				for(int j = column; j < columnEnd; j++){
+					double chord = chord(i, j);
+					if(chord < bound && j != i){
+						list.offer(j, chord, weight(j));
+						bound = list.bound();
+					}
+				}
+			}
+		}
+		for(int i = start; i < end; i++){
+			BallTree.NeighborList list = lists[i - start];
+			coreChords[i] = list.size() > 0 ? list.getDistance(list.size() - 1) : 0.0;
+			coreDistances[i] = toDistance(coreChords[i]);
+		}
+	}
+
+	/**
+	 * Computes the minimum spanning tree of the mutual reachability graph
+	 * with Prim's algorithm. The vertices not yet in the tree are kept
+	 * compacted at the front of the arrays with their lightest edge to the
+	 * tree, so every step is one pass over them. {@link #findKNN()} must have
+	 * been called.
+	 * @return The spanning tree over the point indices
+	 */
+	public MinimumSpanningTree calculateMST() {
+		MinimumSpanningTree mst = new MinimumSpanningTree(size);
+		if(size < 2){
+			return mst;
+		}
+		int remaining = size - 1;
+		int[] vertex = new int[remaining];
+		int[] nearest = new int[remaining];
+		double[] reach = new double[remaining];
+		for(int i = 0; i < remaining; i++){
+			vertex[i] = i + 1;
+			nearest[i] = 0;
+			reach[i] = Double.POSITIVE_INFINITY;
+		}
+		int current = 0;
+		while(remaining > 0){
+			double currentX = x[current];
+			double currentY = y[current];
+			double currentZ = z[current];
+			double currentCore = coreChords[current];
+			int best = 0;
+			for(int i = 0; i < remaining; i++){
+				int v = vertex[i];
+				double dx = currentX - x[v];
+				double dy = currentY - y[v];
+				double dz = currentZ - z[v];
+				double mrd = Math.max(Math.max(dx * dx + dy * dy + dz * dz, currentCore), coreChords[v]);
+				if(mrd < reach[i]){
+					reach[i] = mrd;
+					nearest[i] = current;
+				}
+				if(reach[i] < reach[best]){
+					best = i;
+				}
+			}
+			current = vertex[best];
+			mst.addEdge(nearest[best], current, toDistance(reach[best]));
+			remaining--;
+			vertex[best] = vertex[remaining];
+			nearest[best] = nearest[remaining];
+			reach[best] = reach[remaining];
+		}
+		return mst;
+	}
+
+	private double chord(int i, int j) {
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		double dz = z[i] - z[j];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// the great-circle distance in kilometers of a squared chord length
+	private static double toDistance(double chord) {
+		return 2 * R * Math.asin(Math.min(1.0, Math.sqrt(chord) / 2));
+	}
+
+	private int weight(int i) {
+		return weights == null ? 1 : weights[i];
+	}
+
+	/**
+	 * @return the core distance of every point in kilometers, set by {@link #findKNN()}
+	 */
+	public double[] getCoreDistances() {
+		return coreDistances;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads The largest number of tasks searching neighbors at
+	 *        once on the executor, each taking the next block of rows until
+	 *        none is left; with one or less, or fewer than 2048 points, the
+	 *        calling thread searches
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor The executor running the blocks of rows, the common
+	 *        fork/join pool by default; it is not shut down
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+}
@@ -0,0 +1,43 @@
+package hdbscan;
+
+/**
+ * Computes the great-circle distances from one query point to a block of
+ * points stored contiguously in latitude, longitude and cosine of latitude
+ * arrays, all in radians, as used by the leaf scans of {@link BallTree}.
+ *
+ * <p>{@link #getInstance()} returns a kernel built on the incubating Java
+ * Vector API when the <code>jdk.incubator.vector</code> module is available
+ * (run with <code>--add-modules jdk.incubator.vector</code>) and a scalar
+ * kernel otherwise. The vector kernel lives in the separate source set
+ * <code>src/main/java17</code>, which is only compiled by a JDK 17 or newer,
+ * so the rest of the library still targets Java 8. Its distances agree with
+ * {@link BallTree#distance} to within a few units in the last place, not
+ * bit for bit.</p>
+ */
+public abstract class DistanceKernel {
+
+	private static final DistanceKernel INSTANCE = load();
+
+	/**
+	 * Writes the distance in kilometers from the query point to every point
+	 * at positions [start, end) to <code>out[0..end-start)</code>.
+	 */
+	public abstract void distances(double lat, double lon, double cosLat, double[] lats, double[] lons,
+			double[] cosLats, int start, int end, double[] out);
+
+	/**
+	 * @return the vectorized kernel if the Vector API is available, the scalar one otherwise
+	 */
+	public static DistanceKernel getInstance() {
+		return INSTANCE;
+	}
+
+	private static DistanceKernel load() {
+		try{
+			// loaded by name so this class never links against the incubator module
+			return (DistanceKernel) Class.forName("hdbscan.VectorDistanceKernel").getDeclaredConstructor().newInstance();
+		}catch(ReflectiveOperationException | LinkageError e){
+			return new ScalarDistanceKernel();
+		}
+	}
+}
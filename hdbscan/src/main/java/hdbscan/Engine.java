@@ -0,0 +1,36 @@
+package hdbscan;
+
+/**
+ * The spatial index used to find nearest neighbors and build the minimum
+ * spanning tree.
+ */
+public enum Engine {
+	/** Point kd-tree over lon/lat envelopes, see {@link NearestKdTree}. */
+	KD_TREE,
+	/** Ball tree with great-circle bounds, see {@link BallTree}. Use when data
+	 * lies near the poles or crosses the antimeridian. */
+	BALL_TREE,
+	/** Brute force over all pairs, see {@link DenseHDBSCAN}. Fastest for small
+	 * inputs, quadratic in time. */
+	DENSE,
+	/** {@link #DENSE} up to {@link #DENSE_MAX_POINTS} unique points, 
+	 * {@link #BALL_TREE} above. */
+	AUTO;
+
+	/**
+	 * The largest number of unique points {@link #AUTO} runs dense, about
+	 * where the quadratic spanning tree starts to cost more than the ball tree.
+	 */
+	public static final int DENSE_MAX_POINTS = 10000;
+
+	/**
+	 * @param numPoints The number of unique points
+	 * @return the engine to run, this engine unless it is {@link #AUTO}
+	 */
+	public Engine resolve(int numPoints) {
+		if(this != AUTO){
+			return this;
+		}
+		return numPoints <= DENSE_MAX_POINTS ? DENSE : BALL_TREE;
+	}
+}
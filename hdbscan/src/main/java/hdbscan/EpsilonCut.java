@@ -0,0 +1,125 @@
+package hdbscan;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+/**
+ * The DBSCAN* clustering at a fixed distance threshold, cut directly from the
+ * mutual reachability spanning tree instead of selected by stability. The
+ * points whose core distance exceeds epsilon are noise, whatever their
+ * multiplicity. The other points joined by spanning tree edges no longer than
+ * epsilon form a cluster, and components of fewer than minClSize points are
+ * noise. Several thresholds are answered by one union-find sweep over the
+ * sorted edges.
+ */
+public class EpsilonCut {
+
+	/**
+	 * Cuts the spanning tree at one threshold.
+	 * @param mst The spanning tree over the unique points, whose edges are sorted in place
+	 * @param weights The multiplicity of every point, or null for all ones
+	 * @param coreDistances The core distance of every point the tree was built with
+	 * @param minClSize The smallest number of points in a cluster, counting multiplicities
+	 * @param epsilon The threshold in the unit of the edge weights, kilometers for the built-in trees
+	 * @return Labels and probabilities aligned with the vertices of the tree
+	 */
+	public static FlatClustering cut(MinimumSpanningTree mst, int[] weights, double[] coreDistances,
+			int minClSize, double epsilon) {
+		return cut(mst, weights, coreDistances, minClSize, new double[]{epsilon})[0];
+	}
+
+	/**
+	 * Cuts the spanning tree at every threshold in one pass: the edges are
+	 * sorted once and merged in ascending order, and the components are
+	 * labeled whenever the sweep passes a threshold.
+	 * @param mst The spanning tree over the unique points, whose edges are sorted in place
+	 * @param weights The multiplicity of every point, or null for all ones
+	 * @param coreDistances The core distance of every point the tree was built with
+	 * @param minClSize The smallest number of points in a cluster, counting multiplicities
+	 * @param epsilons The thresholds, in any order
+	 * @return One clustering per threshold, in the given order
+	 */
+	public static FlatClustering[] cut(MinimumSpanningTree mst, int[] weights, double[] coreDistances,
+			int minClSize, double[] epsilons) {
+		int n = mst.getNumVertices();
+		if(coreDistances.length != n){
+			throw new IllegalArgumentException(coreDistances.length + " core distances for " + n + " points");
+		}
+		mst.sortByWeight();
+		Integer[] order = new Integer[epsilons.length];
+		for(int i = 0; i < order.length; i++){
+			order[i] = i;
+		}
+		final double[] thresholds = epsilons;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				return Double.compare(thresholds[i], thresholds[j]);
+			}
+		});
+
+		UnionFind uf = new UnionFind(n);
+		// the number of points in the component of every union-find root
+		int[] componentWeight = new int[n];
+		for(int v = 0; v < n; v++){
+			componentWeight[v] = weights == null ? 1 : weights[v];
+		}
+		FlatClustering[] clusterings = new FlatClustering[epsilons.length];
+		int e = 0;
+		for(Integer i : order){
+			for(; e < mst.getNumEdges() && mst.getWeight(e) <= epsilons[i]; e++){
+				int root1 = uf.find(mst.getFrom(e));
+				int root2 = uf.find(mst.getTo(e));
+				int root = uf.union(root1, root2);
+				if(root >= 0){
+					componentWeight[root] = componentWeight[root1] + componentWeight[root2];
+				}
+			}
+			clusterings[i] = label(uf, componentWeight, coreDistances, minClSize, epsilons[i]);
+		}
+		return clusterings;
+	}
+
+	/**
+	 * Cuts the graph returned by {@link HDBSCAN#calculateMST(NearestKdTree)},
+	 * see {@link MinimumSpanningTree#fromGraph(SimpleWeightedGraph, WeightedPoints)}.
+	 * @param points The unique points of the tree the graph was built from
+	 * @param coreDistances The core distances of the unique points, see {@link NearestKdTree#getCoreDistances(int)}
+	 * @return One clustering of the unique points per threshold, in the given order
+	 */
+	public static FlatClustering[] cut(SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> graph,
+			WeightedPoints points, double[] coreDistances, int minClSize, double[] epsilons) {
+		return cut(MinimumSpanningTree.fromGraph(graph, points), points.getWeights(), coreDistances, minClSize, epsilons);
+	}
+
+	/**
+	 * Numbers the components of at least minClSize points in the order of
+	 * their first vertex and marks the others as noise, and the points that
+	 * are not core points at epsilon.
+	 */
+	private static FlatClustering label(UnionFind uf, int[] componentWeight, double[] coreDistances,
+			int minClSize, double epsilon) {
+		int n = componentWeight.length;
+		int[] labels = new int[n];
+		double[] probabilities = new double[n];
+		int[] labelOf = new int[n];
+		Arrays.fill(labelOf, FlatClustering.NOISE);
+		int numClusters = 0;
+		for(int v = 0; v < n; v++){
+			int root = uf.find(v);
+			if(coreDistances[v] > epsilon || componentWeight[root] < minClSize){
+				labels[v] = FlatClustering.NOISE;
+				continue;
+			}
+			if(labelOf[root] == FlatClustering.NOISE){
+				labelOf[root] = numClusters++;
+			}
+			labels[v] = labelOf[root];
+			probabilities[v] = 1.0;
+		}
+		return new FlatClustering(labels, probabilities, numClusters);
+	}
+}
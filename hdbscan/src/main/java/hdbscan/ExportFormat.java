@@ -0,0 +1,13 @@
+package hdbscan;
+
+/**
+ * The file formats written by {@link ClusterExporter}.
+ */
+public enum ExportFormat {
+	/** Comma separated values with the geometry as quoted WKT. */
+	CSV,
+	/** A GeoJSON FeatureCollection with the attributes as feature properties. */
+	GEOJSON,
+	/** Little-endian binary records: the attributes followed by the geometry as WKB. */
+	WKB
+}
@@ -0,0 +1,68 @@
+package hdbscan;
+
+/**
+ * A flat clustering: one label, one membership probability and one GLOSH
+ * outlier score per point. Noise points have the label -1 and probability 0.
+ */
+public class FlatClustering {
+
+	public static final int NOISE = -1;
+
+	private int[] labels;
+	private double[] probabilities;
+	private double[] outlierScores;
+	private int numClusters;
+
+	public FlatClustering(int[] labels, double[] probabilities, int numClusters) {
+		this(labels, probabilities, null, numClusters);
+	}
+
+	/**
+	 * @param outlierScores The GLOSH score of every point, or null if not computed
+	 */
+	public FlatClustering(int[] labels, double[] probabilities, double[] outlierScores, int numClusters) {
+		this.labels = labels;
+		this.probabilities = probabilities;
+		this.outlierScores = outlierScores;
+		this.numClusters = numClusters;
+	}
+
+	/**
+	 * Expands a clustering of unique points to the input rows they were
+	 * merged from.
+	 * @param rowIndex For every input row, the index of its unique point
+	 * @return A clustering aligned with the input rows
+	 */
+	public FlatClustering forRows(int[] rowIndex) {
+		int[] rowLabels = new int[rowIndex.length];
+		double[] rowProbabilities = new double[rowIndex.length];
+		double[] rowScores = outlierScores == null ? null : new double[rowIndex.length];
+		for(int row = 0; row < rowIndex.length; row++){
+			rowLabels[row] = labels[rowIndex[row]];
+			rowProbabilities[row] = probabilities[rowIndex[row]];
+			if(rowScores != null){
+				rowScores[row] = outlierScores[rowIndex[row]];
+			}
+		}
+		return new FlatClustering(rowLabels, rowProbabilities, rowScores, numClusters);
+	}
+
+	public int[] getLabels() {
+		return labels;
+	}
+
+	public double[] getProbabilities() {
+		return probabilities;
+	}
+
+	/**
+	 * @return the GLOSH outlier score of every point, or null if not computed
+	 */
+	public double[] getOutlierScores() {
+		return outlierScores;
+	}
+
+	public int getNumClusters() {
+		return numClusters;
+	}
+}
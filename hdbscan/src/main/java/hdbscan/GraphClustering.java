@@ -0,0 +1,48 @@
+package hdbscan;
+
+/**
+ * The clustering of the vertices of a {@link NeighborGraph}, as returned by
+ * {@link HDBSCAN#cluster(NeighborGraph, int, int)}, with the connected
+ * components of the graph. Vertices in different components are only joined
+ * at an infinite distance, so a graph that is not connected usually lists
+ * too few neighbors.
+ */
+public class GraphClustering {
+
+	private FlatClustering clustering;
+	private int[] components;
+	private int numComponents;
+
+	/**
+	 * @param clustering Labels and probabilities aligned with the vertices
+	 * @param components The component of every vertex, numbered in the order of their first vertex
+	 * @param numComponents The number of connected components
+	 */
+	public GraphClustering(FlatClustering clustering, int[] components, int numComponents) {
+		this.clustering = clustering;
+		this.components = components;
+		this.numComponents = numComponents;
+	}
+
+	public FlatClustering getClustering() {
+		return clustering;
+	}
+
+	public int[] getComponents() {
+		return components;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public boolean isConnected() {
+		return numComponents <= 1;
+	}
+
+	@Override
+	public String toString() {
+		return "GraphClustering [vertices=" + components.length + ", components=" + numComponents
+				+ ", clusters=" + clustering.getNumClusters() + "]";
+	}
+}
@@ -1,13 +1,13 @@
 package hdbscan;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.TreeSet;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
@@ -15,20 +15,58 @@ import org.jgrapht.graph.SimpleWeightedGraph;
 import org.jgrapht.graph.UndirectedWeightedSubgraph;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.PrecisionModel;
 
 public class HDBSCAN {
 	
 	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance){
-		NearestKdTree tree = new NearestKdTree(points,k,tolerance);
-		tree.findKNN();
+		return calculateNearestKdTree(points, k, tolerance, ClusteringContext.getDefault());
+	}
+	
+	/**
+	 * Builds the kd-tree with its nodes labeled by the given run and computes
+	 * the k nearest neighbors.
+	 */
+	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance,ClusteringContext context){
+		return calculateNearestKdTree(WeightedPoints.snap(points, tolerance), k, tolerance, context);
+	}
+	
+	/**
+	 * Builds the kd-tree over points already snapped with the given
+	 * tolerance and computes the k nearest neighbors.
+	 */
+	public static NearestKdTree calculateNearestKdTree(WeightedPoints points,int k,double tolerance,ClusteringContext context){
+		NearestKdTree tree = new NearestKdTree(points,k,tolerance,context);
+		tree.findAllKNN();
 		return tree;
 		
 	}
 	
 	
 	
+	/**
+	 * Snaps the points to the tolerance grid, merges duplicates into weighted
+	 * points, and computes the k nearest neighbors with a {@link BallTree}.
+	 */
+	public static BallTree calculateBallTree(Coordinate[] points,int k,double tolerance){
+		return calculateBallTree(points, k, tolerance, Precision.DOUBLE);
+	}
+	
+	/**
+	 * Like {@link #calculateBallTree(Coordinate[], int, double)}, storing the
+	 * coordinates, neighbor distances and spanning tree weights in the given
+	 * precision.
+	 */
+	public static BallTree calculateBallTree(Coordinate[] points,int k,double tolerance,Precision precision){
+		WeightedPoints unique = WeightedPoints.snap(points, tolerance);
+		BallTree tree = new BallTree(unique.getPoints(),unique.getWeights(),k,precision);
+		tree.findKNN();
+		return tree;
+	}
+	
+	public static MinimumSpanningTree calculateMST(BallTree ballTree){
+		return ballTree.calculateMST();
+	}
+	
 	public static SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> calculateMST(NearestKdTree kdTree){
 		SimpleWeightedGraph<ClusterNode,DefaultWeightedEdge> swg = new SimpleWeightedGraph(DefaultWeightedEdge.class);
 		HashSet<MutualReachabilityEdge> mrEdges = new HashSet();
@@ -66,56 +104,193 @@ public class HDBSCAN {
 	}
 	
 	
-	public static void createKmstWKT(SimpleWeightedGraph<KdNode, DefaultWeightedEdge> kmst){
-		GeometryFactory gf = new GeometryFactory(new PrecisionModel(),4326);
-		
-		try{
-			File file = new File("testWkt.csv");
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			FileWriter fw = new FileWriter(file.getAbsoluteFile());
-			BufferedWriter bw = new BufferedWriter(fw);
-			bw.write("v1,v2,weight,wkt");
-			for(DefaultWeightedEdge e : kmst.edgeSet()){
-				KdNode node1 = kmst.getEdgeSource(e);
-				KdNode node2 = kmst.getEdgeTarget(e);
-				Coordinate point1 =node1.getCoordinate();
-				Coordinate point2 = node2.getCoordinate();
-				Coordinate[] coords = {point1,point2};
-				bw.write("\n\"" + node1.getLabel() + "\"" + "," + "\"" + node2.getLabel() + "\"" + "," +
-						"\"" + kmst.getEdgeWeight(e) + "\"" + "," +"\"" + gf.createLineString(coords) + "\"");
+	/**
+	 * Condenses the cluster tree of a minimum spanning tree and selects flat
+	 * clusters from it.
+	 * @param mst The spanning tree over the unique points
+	 * @param points The unique points with their weights and input rows
+	 * @param minClSize The smallest number of input points in a cluster
+	 * @param selection Excess of mass or leaf selection
+	 * @return Labels and membership probabilities aligned with the input rows
+	 */
+	public static FlatClustering extractClusters(MinimumSpanningTree mst, WeightedPoints points, int minClSize,
+			ClusterSelection selection){
+		SingleLinkageTree slt = new SingleLinkageTree(mst, points.getWeights());
+		CondensedTree tree = new CondensedTree(slt, minClSize);
+		return tree.extractClusters(selection).forRows(points.getRowIndex());
+	}
+	
+	/**
+	 * Extracts flat clusters like {@link #extractClusters(MinimumSpanningTree, WeightedPoints, int, ClusterSelection)}
+	 * and streams <code>row, label, probability, outlier_score</code> for 
+	 * every input row, in input order, as CSV.
+	 * @param file The output file
+	 * @return the clustering of the unique points
+	 */
+	public static FlatClustering writeRowLabels(MinimumSpanningTree mst, WeightedPoints points, int minClSize,
+			ClusterSelection selection, File file) throws IOException{
+		SingleLinkageTree slt = new SingleLinkageTree(mst, points.getWeights());
+		FlatClustering clustering = new CondensedTree(slt, minClSize).extractClusters(selection);
+		new ClusterExporter(ExportFormat.CSV).writeRows(clustering, points.getRowIndex(), file);
+		return clustering;
+	}
+	
+	/**
+	 * Clusters the points within a heap budget. The memory of the requested
+	 * engine is estimated from the number of rows, an upper bound on the
+	 * unique points, before anything is allocated; if it exceeds the budget
+	 * the run either fails fast or, when allowed to degrade, switches to a
+	 * ball tree, single precision storage or {@link TiledHDBSCAN} tiles, which
+	 * spill their candidate edges to the temporary directory while the points
+	 * stay on the heap. {@link Engine#AUTO} is resolved by the number of
+	 * unique points once they are known.
+	 * @param points The input rows
+	 * @param k The number of neighbors used for core distances
+	 * @param minClSize The smallest number of input points in a cluster
+	 * @param tolerance The snapping tolerance, NaN to keep exact duplicates only
+	 * @param engine The requested nearest neighbor engine
+	 * @param memoryBudget The heap available to the run in bytes, see {@link MemoryEstimator#getAvailableHeap()}
+	 * @param degrade Whether to switch to a lower-memory mode instead of failing
+	 * @return Labels and membership probabilities aligned with the input rows
+	 * @throws IllegalStateException if the run does not fit the budget
+	 */
+	public static FlatClustering cluster(Coordinate[] points, int k, int minClSize, double tolerance, Engine engine,
+			long memoryBudget, boolean degrade) throws IOException{
+		return cluster(points, k, minClSize, tolerance, engine, memoryBudget, degrade, new ClusteringContext());
+	}
+	
+	/**
+	 * Like {@link #cluster(Coordinate[], int, int, double, Engine, long, boolean)}
+	 * within the given run context, so that concurrent runs keep their own labels.
+	 */
+	public static FlatClustering cluster(Coordinate[] points, int k, int minClSize, double tolerance, Engine engine,
+			long memoryBudget, boolean degrade, ClusteringContext context) throws IOException{
+		MemoryEstimate plan = MemoryEstimator.plan(points.length, k, 2, engine, Precision.DOUBLE, memoryBudget, degrade);
+		WeightedPoints unique = WeightedPoints.snap(points, tolerance);
+		Engine planned = plan.getEngine();
+		if(engine == Engine.AUTO && planned == Engine.BALL_TREE && plan.getPrecision() == Precision.DOUBLE && !plan.isTiled()){
+			// the dense engine needs less memory than the ball tree that fit
+			planned = engine.resolve(unique.size());
+		}
+		MinimumSpanningTree mst;
+		if(plan.isTiled()){
+			Coordinate[] coords = unique.getPoints();
+			double[] lon = new double[coords.length];
+			double[] lat = new double[coords.length];
+			for(int i = 0; i < coords.length; i++){
+				lon[i] = coords[i].x;
+				lat[i] = coords[i].y;
 			}
-			bw.close();
-		}catch(IOException e){
-			e.printStackTrace();
+			TiledHDBSCAN tiled = new TiledHDBSCAN(lon, lat, unique.getWeights(), k, plan.getMaxTilePoints());
+			tiled.findKNN();
+			mst = tiled.calculateMST();
+		}else if(planned == Engine.DENSE){
+			DenseHDBSCAN dense = new DenseHDBSCAN(unique.getPoints(), unique.getWeights(), k);
+			dense.setExecutor(context.getPool());
+			dense.findKNN();
+			mst = dense.calculateMST();
+		}else if(planned == Engine.KD_TREE){
+			NearestKdTree tree = calculateNearestKdTree(unique, k, tolerance, context);
+			mst = MinimumSpanningTree.fromGraph(calculateMST(tree), unique);
+		}else{
+			BallTree tree = new BallTree(unique.getPoints(), unique.getWeights(), k, plan.getPrecision());
+			tree.findKNN();
+			mst = tree.calculateMST();
 		}
+		return extractClusters(mst, unique, minClSize, ClusterSelection.EXCESS_OF_MASS);
 	}
 	
-	public static void createClusterWKT(SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> clusterGraph){
-		GeometryFactory gf = new GeometryFactory(new PrecisionModel(),4326);
-		
-		try{
-			File file = new File("testClusterWkt.csv");
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			FileWriter fw = new FileWriter(file.getAbsoluteFile());
-			BufferedWriter bw = new BufferedWriter(fw);
-			bw.write("v1,v2,weight,wkt");
-			for(DefaultWeightedEdge e : clusterGraph.edgeSet()){
-				ClusterNode node1 = clusterGraph.getEdgeSource(e);
-				ClusterNode node2 = clusterGraph.getEdgeTarget(e);
-				Coordinate point1 =node1.getCoord();
-				Coordinate point2 = node2.getCoord();
-				Coordinate[] coords = {point1,point2};
-				bw.write("\n\"" + node1.getCluster().getLabel() + "\"" + "," + "\"" + node2.getCluster().getLabel() + "\"" + "," +
-						"\"" + clusterGraph.getEdgeWeight(e) + "\"" + "," +"\"" + gf.createLineString(coords) + "\"");
+	/**
+	 * Clusters the points with a ball tree, writing every completed stage to a
+	 * {@link Checkpoint} directory. A rerun with the same rows, k and tolerance
+	 * loads the stages found there and resumes after the last one; stages of
+	 * other inputs or damaged files are recomputed and overwritten.
+	 * @param checkpointDir The checkpoint directory, created if missing
+	 * @return Labels and membership probabilities aligned with the input rows
+	 */
+	public static FlatClustering cluster(Coordinate[] points, int k, int minClSize, double tolerance,
+			File checkpointDir) throws IOException{
+		Checkpoint checkpoint = new Checkpoint(checkpointDir, points, k, tolerance);
+		WeightedPoints unique = checkpoint.loadPoints();
+		if(unique == null){
+			unique = WeightedPoints.snap(points, tolerance);
+			checkpoint.savePoints(unique);
+		}
+		MinimumSpanningTree mst = checkpoint.loadMST();
+		if(mst == null || mst.getNumVertices() != unique.size()){
+			BallTree tree = new BallTree(unique.getPoints(), unique.getWeights(), k);
+			double[] core = checkpoint.loadCoreDistances();
+			if(core == null || core.length != unique.size()){
+				tree.findKNN();
+				core = tree.getCoreDistances();
+				checkpoint.saveCoreDistances(core);
 			}
-			bw.close();
-		}catch(IOException e){
-			e.printStackTrace();
+			mst = tree.calculateMST(core);
+			checkpoint.saveMST(mst);
 		}
+		return extractClusters(mst, unique, minClSize, ClusterSelection.EXCESS_OF_MASS);
+	}
+
+	/**
+	 * Clusters the vertices of a precomputed distance graph without any
+	 * coordinates, see {@link SparseGraphHDBSCAN}.
+	 * @param graph The k nearest neighbors or another sparse distance graph of the points
+	 * @param k The number of neighbors used for core distances
+	 * @param minClSize The smallest number of vertices in a cluster
+	 * @return Labels and membership probabilities aligned with the vertices,
+	 *         and the connected components of the graph
+	 */
+	public static GraphClustering cluster(NeighborGraph graph, int k, int minClSize){
+		SparseGraphHDBSCAN sparse = new SparseGraphHDBSCAN(graph, null, k);
+		FlatClustering clustering = sparse.cluster(minClSize, ClusterSelection.EXCESS_OF_MASS);
+		return new GraphClustering(clustering, sparse.getComponents(), sparse.getNumComponents());
+	}
+
+	/**
+	 * Writes the edges of a kd-tree spanning tree as CSV with the node labels
+	 * and the edge as WKT, see {@link ClusterExporter}.
+	 * @param kmst The spanning tree, a tree or forest
+	 * @param file The output file
+	 */
+	public static void createKmstWKT(SimpleWeightedGraph<KdNode, DefaultWeightedEdge> kmst, File file) throws IOException{
+		Map<KdNode, Integer> index = new IdentityHashMap<>();
+		Coordinate[] points = new Coordinate[kmst.vertexSet().size()];
+		int[] labels = new int[points.length];
+		for(KdNode node : kmst.vertexSet()){
+			int i = index.size();
+			index.put(node, i);
+			points[i] = node.getCoordinate();
+			labels[i] = node.getLabel();
+		}
+		MinimumSpanningTree mst = new MinimumSpanningTree(points.length);
+		for(DefaultWeightedEdge e : kmst.edgeSet()){
+			mst.addEdge(index.get(kmst.getEdgeSource(e)), index.get(kmst.getEdgeTarget(e)), kmst.getEdgeWeight(e));
+		}
+		new ClusterExporter(ExportFormat.CSV).writeEdges(mst, points, labels, file);
+	}
+	
+	/**
+	 * Writes the edges of a spanning tree as CSV with the labels of the 
+	 * clusters of both vertices and the edge as WKT, see {@link ClusterExporter}.
+	 * @param clusterGraph The spanning tree, a tree or forest
+	 * @param file The output file
+	 */
+	public static void createClusterWKT(SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> clusterGraph, File file) throws IOException{
+		Map<ClusterNode, Integer> index = new IdentityHashMap<>();
+		Coordinate[] points = new Coordinate[clusterGraph.vertexSet().size()];
+		int[] labels = new int[points.length];
+		for(ClusterNode node : clusterGraph.vertexSet()){
+			int i = index.size();
+			index.put(node, i);
+			points[i] = node.getCoord();
+			labels[i] = node.getCluster().getLabel();
+		}
+		MinimumSpanningTree mst = new MinimumSpanningTree(points.length);
+		for(DefaultWeightedEdge e : clusterGraph.edgeSet()){
+			mst.addEdge(index.get(clusterGraph.getEdgeSource(e)), index.get(clusterGraph.getEdgeTarget(e)),
+					clusterGraph.getEdgeWeight(e));
+		}
+		new ClusterExporter(ExportFormat.CSV).writeEdges(mst, points, labels, file);
 	}
 	
 	/**
@@ -169,12 +344,30 @@ public class HDBSCAN {
 	}
 	 public static void main(String[] args) {
 		try{
+			Engine engine = args.length > 0 ? Engine.valueOf(args[0]) : Engine.KD_TREE;
 			Coordinate[] data = readInDataSet("data/testData.csv", ",");
 			long startTime = System.currentTimeMillis();
-			NearestKdTree tree = calculateNearestKdTree(data, 32, 0.001);
-			System.out.println("Time to calculate NN: " + (System.currentTimeMillis() - startTime));
-			startTime = System.currentTimeMillis();
-			SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> kmst = calculateMST(tree);
+			WeightedPoints weights = WeightedPoints.snap(data, 0.001);
+			engine = engine.resolve(weights.size());
+			SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> kmst;
+			if(engine == Engine.BALL_TREE){
+				BallTree tree = new BallTree(weights.getPoints(), weights.getWeights(), 32);
+				tree.findKNN();
+				System.out.println("Time to calculate NN: " + (System.currentTimeMillis() - startTime));
+				startTime = System.currentTimeMillis();
+				kmst = calculateMST(tree).toGraph(tree.getPoints());
+			}else if(engine == Engine.DENSE){
+				DenseHDBSCAN dense = new DenseHDBSCAN(weights.getPoints(), weights.getWeights(), 32);
+				dense.findKNN();
+				System.out.println("Time to calculate NN: " + (System.currentTimeMillis() - startTime));
+				startTime = System.currentTimeMillis();
+				kmst = dense.calculateMST().toGraph(weights.getPoints());
+			}else{
+				NearestKdTree tree = calculateNearestKdTree(weights, 32, 0.001, ClusteringContext.getDefault());
+				System.out.println("Time to calculate NN: " + (System.currentTimeMillis() - startTime));
+				startTime = System.currentTimeMillis();
+				kmst = calculateMST(tree);
+			}
 			System.out.println("Time add edges to create Minimum Spanning Tree: " + (System.currentTimeMillis() - startTime));
 			startTime = System.currentTimeMillis();
 			Double maxWeight = 0.0;
@@ -184,13 +377,16 @@ public class HDBSCAN {
 					maxWeight = currWeight;
 				}
 			}
-			Cluster rootCluster = new Cluster(null,maxWeight,32,new UndirectedWeightedSubgraph<>(kmst, null, null));
-			ClusterHeirarchy ch = new ClusterHeirarchy(rootCluster);
-			System.out.println("Build root cluster and init heirarchy: " + (System.currentTimeMillis() - startTime));
+			Cluster rootCluster = new Cluster(null,maxWeight,32,new UndirectedWeightedSubgraph<>(kmst, null, null),weights);
+			System.out.println("Build root cluster: " + (System.currentTimeMillis() - startTime));
 			startTime = System.currentTimeMillis();
-			ch.makeHeirarchy();
+			ClusterTask.analyze(rootCluster);
 			System.out.println("Make Heirarchy:" + (System.currentTimeMillis() - startTime));
-			createClusterWKT(kmst);
+			startTime = System.currentTimeMillis();
+			FlatClustering flat = extractClusters(MinimumSpanningTree.fromGraph(kmst, weights), weights, 32,
+					ClusterSelection.EXCESS_OF_MASS);
+			System.out.println("Extract " + flat.getNumClusters() + " flat clusters: " + (System.currentTimeMillis() - startTime));
+			createClusterWKT(kmst, new File("testClusterWkt.csv"));
 			System.out.println("Write MST to WKT: " + (System.currentTimeMillis() - startTime));
 			startTime = System.currentTimeMillis();
 			
@@ -1,6 +1,9 @@
 package hdbscan;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -23,18 +26,33 @@ public class KdNode implements Comparable<KdNode> {
     private Double coreDistance;
     private Double bboxDistance; 
 	private Integer label;
-	private TreeMap<Double, KdNode> neighbors;
+	// neighbors by distance, several at the same distance in one list
+	private TreeMap<Double, List<KdNode>> neighbors;
 	private KdNode currEdge;
 	private Double currEdgeWeight;
 	TreeSet<Double> intervals;
 	private Integer k;
-	private static int nodeCount = 0;
+	private int weight;
+	private int neighborWeight;
+	private int index = -1;
 
 
 	private Envelope bbox;
 	private Envelope prevBbox;
 	private boolean hasKNeighbors;
 
+	// bounding box of the subtree and the largest kNN bound in it
+	private double subtreeMinX;
+	private double subtreeMaxX;
+	private double subtreeMinY;
+	private double subtreeMaxY;
+	private double subtreeMinCosLat;
+	// the number of nodes and of points they stand for in the subtree
+	private int subtreeSize;
+	private int subtreeWeight;
+	private double cosLat;
+	private double subtreeBound = Double.POSITIVE_INFINITY;
+
     /**
      * Creates a new KdNode.
      * 
@@ -43,17 +61,27 @@ public class KdNode implements Comparable<KdNode> {
      * @param data a data objects to associate with this node
      */
     public KdNode(double _x, double _y,int axis, int k) {
+        this(_x, _y, axis, k, ClusteringContext.getDefault());
+    }
+
+    /**
+     * Creates a new KdNode labeled by the given run.
+     * 
+     * @param context the run drawing the node labels
+     */
+    public KdNode(double _x, double _y,int axis, int k, ClusteringContext context) {
         p = new Coordinate(_x, _y);
         left = null;
         right = null;
-        this.label = nodeCount;
-        nodeCount += 1;
+        this.label = context.nextNodeLabel();
         this.k = k;
+        this.weight = 1;
+        this.neighborWeight = 0;
         this.axis = axis;
         this.hasKNeighbors = false;
 		this.coreDistance = Double.MAX_VALUE;
 		this.bboxDistance = Double.MIN_VALUE;
-		this.neighbors = new TreeMap();
+		this.neighbors = new TreeMap<Double, List<KdNode>>();
 		intervals = new TreeSet();
 		
 		bbox = new Envelope(p,p);
@@ -67,18 +95,28 @@ public class KdNode implements Comparable<KdNode> {
      * @param data a data objects to associate with this node
      */
     public KdNode(Coordinate p, int axis, int k) {
+        this(p, axis, k, ClusteringContext.getDefault());
+    }
+
+    /**
+     * Creates a new KdNode labeled by the given run.
+     * 
+     * @param context the run drawing the node labels
+     */
+    public KdNode(Coordinate p, int axis, int k, ClusteringContext context) {
         this.p = new Coordinate(p);
         left = null;
         right = null;
         
-        this.label = nodeCount;
-        nodeCount += 1;
+        this.label = context.nextNodeLabel();
         this.k = k;
+        this.weight = 1;
+        this.neighborWeight = 0;
         this.axis = axis;
         this.hasKNeighbors = false;
 		this.coreDistance = Double.MAX_VALUE;
 		this.bboxDistance = Double.MIN_VALUE;
-		this.neighbors = new TreeMap();
+		this.neighbors = new TreeMap<Double, List<KdNode>>();
 		intervals = new TreeSet();
 		
 		bbox = new Envelope(p,p);
@@ -165,54 +203,69 @@ public class KdNode implements Comparable<KdNode> {
     }
     
     public Double addNeighbor(KdNode other){
-    	if(neighbors.containsValue(other)){
-    		return null;
-    	}
-
-		double currDistance = computeDistance(this.p,other.p);
-		double retDistance = currDistance;
-		
-		if(neighbors.size() < k){
-			neighbors.put(currDistance,other);
-			if(neighbors.size() == k){
-				hasKNeighbors = true;
-			}
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
-		}
-		else if(currDistance < coreDistance){
-//			System.out.println("Before remove:" + neighbors.size());
-			neighbors.pollLastEntry();
-//			System.out.println("After remove: " + neighbors.size());
-			neighbors.put(currDistance,other);
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
-		} else return null;
-		
+		return addNeighbor(other, computeDistance(this.p,other.p));
 	}
     
+    /**
+     * Offers a neighbor at the given distance. Every neighbor counts its weight
+     * towards k, so the neighbor list keeps only the nearest neighbors needed to
+     * reach k and the core distance is the distance of the farthest of them.
+     * 
+     * @return the distance if the neighbor was kept, otherwise null
+     */
     public Double addNeighbor(KdNode other, double distance){
-    	if(neighbors.containsValue(other)){
+		if(hasKNeighbors && distance >= coreDistance){
+			return null;
+		}
+    	if(containsNeighbor(other)){
     		return null;
     	}
-
-		double currDistance = distance;
-		double retDistance = currDistance;
-
-		if(neighbors.size() < k){
-			neighbors.put(currDistance,other);
-			if(neighbors.size() == k){
-				hasKNeighbors = true;
-			}
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
+		List<KdNode> atDistance = neighbors.get(distance);
+		if(atDistance == null){
+			atDistance = new ArrayList<KdNode>(1);
+			neighbors.put(distance, atDistance);
 		}
-		else if(currDistance < coreDistance){
-			neighbors.pollLastEntry();
-			neighbors.put(currDistance,other);
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
-		} else return null;
+		atDistance.add(other);
+		neighborWeight += other.weight;
+		trimNeighbors();
+		atDistance = neighbors.get(distance);
+		return atDistance != null && atDistance.contains(other) ? distance : null;
+    }
+    
+    private boolean containsNeighbor(KdNode other){
+    	for(List<KdNode> atDistance : neighbors.values()){
+    		if(atDistance.contains(other)){
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Drops the farthest neighbors that are not needed to reach k, counting
+     * this node's own duplicates first, and updates the core distance.
+     */
+    private void trimNeighbors(){
+    	while(neighbors.size() > 0){
+    		List<KdNode> farthest = neighbors.lastEntry().getValue();
+    		KdNode last = farthest.get(farthest.size() - 1);
+    		if((weight - 1) + neighborWeight - last.weight < k){
+    			break;
+    		}
+    		neighborWeight -= last.weight;
+    		farthest.remove(farthest.size() - 1);
+    		if(farthest.isEmpty()){
+    			neighbors.pollLastEntry();
+    		}
+    	}
+    	if((weight - 1) + neighborWeight >= k){
+    		hasKNeighbors = true;
+    	}
+    	if(neighbors.size() > 0){
+    		coreDistance = neighbors.lastKey();
+    	}else if(hasKNeighbors){
+    		coreDistance = 0.0;
+    	}
     }
     
     public void addInterval(KdNode other){
@@ -225,12 +278,14 @@ public class KdNode implements Comparable<KdNode> {
     }
     
     public void calculatePotentialEdgeFromNeighbors(Set<KdNode> potentialVertices){
-    	for(Double dist : neighbors.keySet()){
-    		KdNode compareNode = neighbors.get(dist);
-    		if(potentialVertices.contains(compareNode) && (currEdgeWeight == null || (dist < currEdgeWeight && 
-    				compareNode.getCoreDistance() < currEdgeWeight))){
-    			currEdgeWeight = dist;
-    			currEdge = compareNode;
+    	for(Entry<Double, List<KdNode>> entry : neighbors.entrySet()){
+    		Double dist = entry.getKey();
+    		for(KdNode compareNode : entry.getValue()){
+    			if(potentialVertices.contains(compareNode) && (currEdgeWeight == null || (dist < currEdgeWeight && 
+    					compareNode.getCoreDistance() < currEdgeWeight))){
+    				currEdgeWeight = dist;
+    				currEdge = compareNode;
+    			}
     		}
     	}
     }
@@ -246,26 +301,187 @@ public class KdNode implements Comparable<KdNode> {
     
     
     public double computeDistance(Coordinate point1, Coordinate point2){
+		return computeDistance(point1.x, point1.y, point2.x, point2.y);
+	}
+
+	/**
+	 * The haversine distance in kilometers between two lon/lat locations.
+	 */
+	public static double computeDistance(double lon1, double lat1, double lon2, double lat2){
 		final int R = 6371; // Radius of the earth
 		
-        Double lat1 = point1.y;
-        Double lon1 = point1.x;
-        Double lat2 = point2.y;
-        Double lon2 = point2.x;
-        Double latDistance = toRad(lat2-lat1);
-        Double lonDistance = toRad(lon2-lon1);
-        Double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) + 
-                   Math.cos(toRad(lat1)) * Math.cos(toRad(lat2)) * 
+        double latDistance = (lat2-lat1) * Math.PI / 180;
+        double lonDistance = (lon2-lon1) * Math.PI / 180;
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) + 
+                   Math.cos(lat1 * Math.PI / 180) * Math.cos(lat2 * Math.PI / 180) * 
                    Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
-        Double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-        Double distance = R * c;
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
         
-		return distance;
+		return R * c;
+	}
+
+	/**
+	 * Sets the bounding box of this node's subtree from its own point and the
+	 * boxes of its children, which must have been calculated first.
+	 */
+	public void calculateSubtreeBounds(){
+		subtreeMinX = subtreeMaxX = p.x;
+		subtreeMinY = subtreeMaxY = p.y;
+		subtreeMinCosLat = cosLat = Math.cos(Math.toRadians(p.y));
+		subtreeSize = 1;
+		subtreeWeight = weight;
+		for(KdNode child : new KdNode[]{left, right}){
+			if(child != null){
+				subtreeSize += child.subtreeSize;
+				subtreeWeight += child.subtreeWeight;
+				subtreeMinX = Math.min(subtreeMinX, child.subtreeMinX);
+				subtreeMaxX = Math.max(subtreeMaxX, child.subtreeMaxX);
+				subtreeMinY = Math.min(subtreeMinY, child.subtreeMinY);
+				subtreeMaxY = Math.max(subtreeMaxY, child.subtreeMaxY);
+				subtreeMinCosLat = Math.min(subtreeMinCosLat, child.subtreeMinCosLat);
+			}
+		}
+		updateSubtreeBound();
+	}
+
+	/**
+	 * The distance a neighbor must beat to enter this node's neighbor list,
+	 * infinite until it has k neighbors.
+	 */
+	public double getNeighborBound(){
+		return hasKNeighbors ? coreDistance : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Recomputes the largest neighbor bound of the subtree from this node's
+	 * own bound and the subtree bounds of its children.
+	 */
+	public void updateSubtreeBound(){
+		double bound = getNeighborBound();
+		if(left != null){
+			bound = Math.max(bound, left.subtreeBound);
+		}
+		if(right != null){
+			bound = Math.max(bound, right.subtreeBound);
+		}
+		subtreeBound = bound;
+	}
+
+	/**
+	 * Returns the largest neighbor bound of any node in the subtree, as of its
+	 * last update. Bounds only shrink, so a stale value is still an upper bound.
+	 */
+	public double getSubtreeBound(){
+		return subtreeBound;
+	}
+
+	/**
+	 * A lower bound on the haversine distance between any point of this
+	 * node's subtree and any point of the other node's subtree.
+	 */
+	public double minSubtreeDistance(KdNode other){
+		return minDistance(subtreeMinX, subtreeMaxX, subtreeMinY, subtreeMaxY,
+				other.subtreeMinX, other.subtreeMaxX, other.subtreeMinY, other.subtreeMaxY,
+				Math.min(subtreeMinCosLat, other.subtreeMinCosLat));
+	}
+
+	/**
+	 * A lower bound on the haversine distance between this node's point and
+	 * any point of the other node's subtree.
+	 */
+	public double minDistanceToSubtree(KdNode other){
+		return minDistance(p.x, p.x, p.y, p.y,
+				other.subtreeMinX, other.subtreeMaxX, other.subtreeMinY, other.subtreeMaxY,
+				Math.min(cosLat, other.subtreeMinCosLat));
+	}
+
+	/**
+	 * A lower bound on the haversine distance between a location and any
+	 * point of this node's subtree.
+	 * @param cosLat The cosine of the location's latitude
+	 */
+	public double minDistanceToSubtree(double x, double y, double cosLat){
+		return minDistance(x, x, y, y, subtreeMinX, subtreeMaxX, subtreeMinY, subtreeMaxY,
+				Math.min(cosLat, subtreeMinCosLat));
+	}
+
+	/**
+	 * An upper bound on the haversine distance between a location and any
+	 * point of this node's subtree. While the box stays within 90 degrees of
+	 * longitude of the location, the distance has no interior maximum along
+	 * a parallel or a meridian, so it is reached at a corner; otherwise the
+	 * bound is infinite.
+	 */
+	public double maxDistanceToSubtree(double x, double y){
+		double opposite = x > 0 ? x - 180 : x + 180;
+		if((subtreeMinX <= opposite && opposite <= subtreeMaxX)
+				|| lonGap(x, subtreeMinX) > 90 || lonGap(x, subtreeMaxX) > 90){
+			return Double.POSITIVE_INFINITY;
+		}
+		return Math.max(
+				Math.max(computeDistance(x, y, subtreeMinX, subtreeMinY), computeDistance(x, y, subtreeMinX, subtreeMaxY)),
+				Math.max(computeDistance(x, y, subtreeMaxX, subtreeMinY), computeDistance(x, y, subtreeMaxX, subtreeMaxY)));
+	}
+
+	// the difference in longitude, between 0 and 180 degrees
+	private static double lonGap(double x1, double x2){
+		double gap = Math.abs(x1 - x2) % 360;
+		return gap > 180 ? 360 - gap : gap;
+	}
+
+	/**
+	 * @return whether the envelope covers the box of this node's subtree
+	 */
+	public boolean subtreeWithin(Envelope env){
+		return env.getMinX() <= subtreeMinX && subtreeMaxX <= env.getMaxX()
+				&& env.getMinY() <= subtreeMinY && subtreeMaxY <= env.getMaxY();
+	}
+
+	/**
+	 * @return whether the envelope overlaps the box of this node's subtree
+	 */
+	public boolean subtreeIntersects(Envelope env){
+		return env.getMinX() <= subtreeMaxX && subtreeMinX <= env.getMaxX()
+				&& env.getMinY() <= subtreeMaxY && subtreeMinY <= env.getMaxY();
+	}
+
+	/**
+	 * @return the number of nodes in this node's subtree
+	 */
+	public int getSubtreeSize(){
+		return subtreeSize;
+	}
+
+	/**
+	 * @return the number of input points the nodes of this node's subtree
+	 *         stand for, counting the weight of every node
+	 */
+	public int getSubtreeWeight(){
+		return subtreeWeight;
+	}
+
+	/**
+	 * A lower bound on the haversine distance between two lon/lat boxes: the
+	 * gaps in latitude and longitude enter the haversine formula at the
+	 * smallest cosine of latitude in either box. It is evaluated without
+	 * trigonometry, as sin(x) >= x - x^3/6 and asin(x) >= x.
+	 */
+	private static double minDistance(double minX1, double maxX1, double minY1, double maxY1,
+			double minX2, double maxX2, double minY2, double maxY2, double minCosLat){
+		final int R = 6371; // Radius of the earth
+		double latGap = Math.max(0.0, Math.max(minY1 - maxY2, minY2 - maxY1));
+		double lonGap = Math.max(0.0, Math.max(minX1 - maxX2, minX2 - maxX1));
+		// the boxes may be closer across the antimeridian
+		lonGap = Math.min(lonGap, Math.max(0.0, 360 - (Math.max(maxX1, maxX2) - Math.min(minX1, minX2))));
+		double sinLat = lowerSin(Math.toRadians(latGap) / 2);
+		double sinLon = Math.max(0.0, minCosLat) * lowerSin(Math.toRadians(lonGap) / 2);
+		return 2 * R * Math.sqrt(sinLat * sinLat + sinLon * sinLon);
+	}
+
+	// a lower bound of sin(x) for 0 <= x <= PI/2
+	private static double lowerSin(double x){
+		return x - x * x * x / 6;
 	}
-	
-	private static Double toRad(Double value) {
-        return value * Math.PI / 180;
-    }
 	
 	public int getAxis(){
 		return axis;
@@ -343,12 +559,35 @@ public class KdNode implements Comparable<KdNode> {
 		return coreDistance;
 	}
 
+	/**
+	 * Returns the core distance for a smaller number of neighbors, read from
+	 * the sorted neighbor list found for this node's k.
+	 */
+	public double getCoreDistance(int k) {
+		int count = weight - 1;
+		double dist = 0.0;
+		for(Entry<Double, List<KdNode>> entry : neighbors.entrySet()){
+			for(KdNode neighbor : entry.getValue()){
+				if(count >= k){
+					return dist;
+				}
+				count += neighbor.weight;
+				dist = entry.getKey();
+			}
+		}
+		return dist;
+	}
+
 	public int getLabel() {
 		return label;
 	}
 
 
-	public TreeMap<Double, KdNode> getNeighbors() {
+	/**
+	 * @return the kept neighbors by distance, with every neighbor at the same
+	 *         distance in one list
+	 */
+	public TreeMap<Double, List<KdNode>> getNeighbors() {
 		return neighbors;
 	}
 	
@@ -370,6 +609,29 @@ public class KdNode implements Comparable<KdNode> {
 		return k;
 	}
 
+	/**
+	 * Returns the number of input points snapped onto this node's location.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	public void setWeight(int weight) {
+		this.weight = weight;
+		trimNeighbors();
+	}
+
+	/**
+	 * @return the index of the node's point in {@link WeightedPoints#getPoints()}
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
     /**
      * Returns the left node of the tree
      * 
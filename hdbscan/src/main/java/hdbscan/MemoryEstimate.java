@@ -0,0 +1,102 @@
+package hdbscan;
+
+/**
+ * The estimated heap use of a clustering run, by stage, together with the
+ * engine and storage mode it was estimated for. Sizes are in bytes.
+ */
+public class MemoryEstimate {
+
+	private int numPoints;
+	private int k;
+	private Engine engine;
+	private Precision precision;
+	private int maxTilePoints;
+	private long pointBytes;
+	private long treeBytes;
+	private long knnBytes;
+	private long mstBytes;
+	private long hierarchyBytes;
+
+	/**
+	 * @param maxTilePoints The tile size of a {@link TiledHDBSCAN} run, or 0 for a run over all points at once
+	 */
+	public MemoryEstimate(int numPoints, int k, Engine engine, Precision precision, int maxTilePoints,
+			long pointBytes, long treeBytes, long knnBytes, long mstBytes, long hierarchyBytes) {
+		this.numPoints = numPoints;
+		this.k = k;
+		this.engine = engine;
+		this.precision = precision;
+		this.maxTilePoints = maxTilePoints;
+		this.pointBytes = pointBytes;
+		this.treeBytes = treeBytes;
+		this.knnBytes = knnBytes;
+		this.mstBytes = mstBytes;
+		this.hierarchyBytes = hierarchyBytes;
+	}
+
+	/**
+	 * The data of every stage stays reachable until the run ends, so the peak
+	 * is their sum.
+	 * @return the estimated peak heap use of the run
+	 */
+	public long getPeakBytes() {
+		return pointBytes + treeBytes + knnBytes + mstBytes + hierarchyBytes;
+	}
+
+	public boolean isTiled() {
+		return maxTilePoints > 0;
+	}
+
+	public int getNumPoints() {
+		return numPoints;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	public int getMaxTilePoints() {
+		return maxTilePoints;
+	}
+
+	public long getPointBytes() {
+		return pointBytes;
+	}
+
+	public long getTreeBytes() {
+		return treeBytes;
+	}
+
+	public long getKnnBytes() {
+		return knnBytes;
+	}
+
+	public long getMstBytes() {
+		return mstBytes;
+	}
+
+	public long getHierarchyBytes() {
+		return hierarchyBytes;
+	}
+
+	private static String toMegabytes(long bytes) {
+		return (bytes >> 20) + " MB";
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryEstimate [engine=" + engine + ", precision=" + precision
+				+ (isTiled() ? ", maxTilePoints=" + maxTilePoints : "")
+				+ ", points=" + toMegabytes(pointBytes) + ", tree=" + toMegabytes(treeBytes)
+				+ ", knn=" + toMegabytes(knnBytes) + ", mst=" + toMegabytes(mstBytes)
+				+ ", hierarchy=" + toMegabytes(hierarchyBytes) + ", peak=" + toMegabytes(getPeakBytes()) + "]";
+	}
+}
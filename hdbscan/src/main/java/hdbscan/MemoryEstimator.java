@@ -0,0 +1,170 @@
+package hdbscan;
+
+/**
+ * Estimates the heap a clustering run needs before it starts, so that a job
+ * too large for the heap fails fast instead of running out of memory halfway
+ * through the spanning tree, or falls back to a mode that needs less memory.
+ *
+ * <p>The per-point sizes were calibrated by measuring the heap retained after
+ * every stage on a 64-bit JVM with compressed pointers, for 20,000 to 100,000
+ * points and k from 3 to 20, adding the temporary arrays a stage frees before
+ * it returns and a margin of about a fifth. Every stage is counted as if it
+ * were still held when the next one runs, so the estimates are upper bounds
+ * for such a JVM.</p>
+ */
+public class MemoryEstimator {
+
+	private static final int OBJECT_HEADER = 16;
+	private static final int REFERENCE = 4;
+	// a JTS coordinate always holds x, y and z
+	private static final int COORDINATE_ORDINATES = 3;
+
+	// WeightedPoints: weights and row index, the hash table of up to four
+	// slots per row and the row-sized arrays trimmed when snapping ends
+	private static final int WEIGHTED_POINT_BYTES = 4 + 4 + 16 + 4 + 4 + 8;
+	// KdNode with its boxed fields, envelopes and empty maps, measured 435
+	private static final int KD_NODE_BYTES = 520;
+	// neighbor map and search state of a kd-tree node, measured 1000 plus 112 per neighbor
+	private static final int KD_SEARCH_BYTES = 1200;
+	private static final int KD_NEIGHBOR_BYTES = 140;
+	// vertex, edge and map entries of the JGraphT spanning tree, measured 236
+	private static final int GRAPH_VERTEX_BYTES = 300;
+	// ball tree order arrays, unit vectors while building and node arrays, measured 4 + 4 + 24 + 12
+	private static final int BALL_TREE_BYTES = 4 + 4 + 24 + 16;
+	// Boruvka core, component, best edge and union-find arrays, measured 38
+	private static final int BORUVKA_BYTES = 44;
+	// dense unit vectors and core distances, and Prim's vertex, nearest and reach arrays, measured 42 and 16
+	private static final int DENSE_BYTES = 48;
+	private static final int PRIM_BYTES = 4 + 4 + 8;
+	// single linkage tree, condensed tree and the flat clustering of every row, measured 146
+	private static final int HIERARCHY_BYTES = 180;
+	private static final int MIN_TILE_POINTS = 1024;
+
+	/**
+	 * Estimates the heap used by an in-memory run.
+	 * @param numPoints The number of unique points, or the number of rows as an upper bound
+	 * @param k The number of neighbors
+	 * @param dimension The number of ordinates per point
+	 * @param engine The nearest neighbor engine, {@link Engine#AUTO} is resolved by the number of points
+	 * @param precision The storage precision, only used by {@link Engine#BALL_TREE}
+	 */
+	public static MemoryEstimate estimate(int numPoints, int k, int dimension, Engine engine, Precision precision) {
+		engine = engine.resolve(numPoints);
+		long n = numPoints;
+		long points = n * pointBytes(dimension);
+		long mst = n * (8 + valueBytes(precision));
+		long hierarchy = n * HIERARCHY_BYTES;
+		if(engine == Engine.KD_TREE){
+			long tree = n * KD_NODE_BYTES;
+			long knn = n * KD_SEARCH_BYTES + n * k * KD_NEIGHBOR_BYTES;
+			mst += n * GRAPH_VERTEX_BYTES;
+			return new MemoryEstimate(numPoints, k, engine, Precision.DOUBLE, 0, points, tree, knn, mst, hierarchy);
+		}
+		if(engine == Engine.DENSE){
+			// the neighbor lists of a block of rows are negligible
+			long tree = n * DENSE_BYTES;
+			mst = n * (8 + 8) + n * PRIM_BYTES;
+			return new MemoryEstimate(numPoints, k, engine, Precision.DOUBLE, 0, points, tree, 0, mst, hierarchy);
+		}
+		long tree = n * (BALL_TREE_BYTES + 3 * valueBytes(precision));
+		long knn = n * k * (4 + valueBytes(precision)) + n * 8;
+		mst += n * BORUVKA_BYTES;
+		return new MemoryEstimate(numPoints, k, engine, precision, 0, points, tree, knn, mst, hierarchy);
+	}
+
+	/**
+	 * Estimates the heap used by a {@link TiledHDBSCAN} run. The points and a
+	 * few arrays per point stay on the heap, together with the spanning tree
+	 * and the arrays of the merge and the Boruvka rounds; the tree structures
+	 * are held for a bounded number of tiles, and only the candidate edges go
+	 * to disk.
+	 * @param maxTilePoints The largest number of points in a tile
+	 */
+	public static MemoryEstimate estimateTiled(int numPoints, int k, int dimension, int maxTilePoints) {
+		long n = numPoints;
+		// the unique points, their primitive coordinates, the tile order and the tile of every point
+		long points = n * (pointBytes(dimension) + 8 * dimension + 4 + 4);
+		long tree = perTilePoint(k) * maxTilePoints;
+		long knn = n * 8;
+		// the tree edges, the union-find, the margins and flags of the merge with the
+		// buffers of its runs, and the component and best edge arrays of Boruvka
+		long numTiles = maxTilePoints > 0 ? 2 * (n / Math.max(maxTilePoints / 2, 1) + 1) : 0;
+		long mst = n * (8 + 8) + n * (4 + 4) + n * (8 + 1) + numTiles * TiledHDBSCAN.RUN_BUFFER_SIZE
+				+ n * (4 + 8 + 4 + 4);
+		long hierarchy = n * HIERARCHY_BYTES;
+		return new MemoryEstimate(numPoints, k, Engine.BALL_TREE, Precision.DOUBLE, maxTilePoints,
+				points, tree, knn, mst, hierarchy);
+	}
+
+	/**
+	 * Chooses how to run within a memory budget. The requested engine and
+	 * precision are used if they fit. Otherwise, if allowed to degrade, a
+	 * double and then a single precision ball tree are tried, and finally the
+	 * largest tiles of a {@link TiledHDBSCAN} run that fit, which spills its
+	 * candidate edges to disk but keeps the points on the heap.
+	 * @param budget The heap available to the run in bytes
+	 * @param degrade Whether to fall back to a lower-memory mode
+	 * @return the estimate of the mode to run
+	 * @throws IllegalStateException if no allowed mode fits the budget
+	 */
+	public static MemoryEstimate plan(int numPoints, int k, int dimension, Engine engine, Precision precision,
+			long budget, boolean degrade) {
+		MemoryEstimate requested = estimate(numPoints, k, dimension, engine, precision);
+		if(requested.getPeakBytes() <= budget){
+			return requested;
+		}
+		if(degrade){
+			MemoryEstimate[] candidates = new MemoryEstimate[]{
+					estimate(numPoints, k, dimension, Engine.BALL_TREE, Precision.DOUBLE),
+					estimate(numPoints, k, dimension, Engine.BALL_TREE, Precision.SINGLE)};
+			for(MemoryEstimate candidate : candidates){
+				if(candidate.getPeakBytes() <= budget){
+					return candidate;
+				}
+			}
+			long remaining = budget - estimateTiled(numPoints, k, dimension, 0).getPeakBytes();
+			long maxTilePoints = Math.min(numPoints, remaining / perTilePoint(k));
+			// smaller tiles need more run buffers while merging
+			while(maxTilePoints >= Math.min(numPoints, MIN_TILE_POINTS)){
+				MemoryEstimate tiled = estimateTiled(numPoints, k, dimension, (int) maxTilePoints);
+				if(tiled.getPeakBytes() <= budget){
+					return tiled;
+				}
+				maxTilePoints = maxTilePoints * 7 / 8;
+			}
+		}
+		throw new IllegalStateException("Estimated peak heap of " + (requested.getPeakBytes() >> 20)
+				+ " MB exceeds the budget of " + (budget >> 20) + " MB: " + requested);
+	}
+
+	/**
+	 * @return the heap that can still be allocated before reaching the maximum heap size
+	 */
+	public static long getAvailableHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	private static long pointBytes(int dimension) {
+		int ordinates = Math.max(COORDINATE_ORDINATES, dimension);
+		return OBJECT_HEADER + 8 * ordinates + REFERENCE + WEIGHTED_POINT_BYTES;
+	}
+
+	private static int valueBytes(Precision precision) {
+		return precision == Precision.SINGLE ? 4 : 8;
+	}
+
+	/**
+	 * The bytes per tile point of the tiles held at once: the cached ball
+	 * trees with the component search of a round, the ball tree and neighbor
+	 * lists of the tile searched from, and the tile and halo of up to twice
+	 * the points whose spanning tree is written to a run.
+	 */
+	private static long perTilePoint(int k) {
+		long treePoint = OBJECT_HEADER + 8 * COORDINATE_ORDINATES + REFERENCE + BALL_TREE_BYTES + 24;
+		long cached = TiledHDBSCAN.CACHED_TILES * (treePoint + 8 + 4 + 16);
+		long own = treePoint + k * 12L + 8;
+		long halo = 2 * (treePoint + 8 + 4 + 16 + BORUVKA_BYTES);
+		return cached + own + halo;
+	}
+}
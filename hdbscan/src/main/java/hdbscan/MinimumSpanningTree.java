@@ -0,0 +1,229 @@
+package hdbscan;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A mutual reachability minimum spanning tree stored as parallel primitive
+ * arrays. Vertices are the indices <code>0..numVertices-1</code> of the points
+ * the tree was computed from. Weights are stored as doubles or, with
+ * {@link Precision#SINGLE}, as floats.
+ */
+public class MinimumSpanningTree {
+
+	private int numVertices;
+	private int numEdges;
+	private int[] from;
+	private int[] to;
+	private double[] weights;
+	private float[] singleWeights;
+
+	/**
+	 * Creates an empty tree with room for the <code>numVertices - 1</code> edges
+	 * of a spanning tree.
+	 * @param numVertices The number of points spanned by the tree
+	 */
+	public MinimumSpanningTree(int numVertices) {
+		this(numVertices, Precision.DOUBLE);
+	}
+
+	/**
+	 * Creates an empty tree storing its weights in the given precision.
+	 * @param numVertices The number of points spanned by the tree
+	 * @param precision Double or single precision weights
+	 */
+	public MinimumSpanningTree(int numVertices, Precision precision) {
+		this.numVertices = numVertices;
+		this.numEdges = 0;
+		int capacity = Math.max(numVertices - 1, 0);
+		this.from = new int[capacity];
+		this.to = new int[capacity];
+		if(precision == Precision.SINGLE){
+			this.singleWeights = new float[capacity];
+		}else{
+			this.weights = new double[capacity];
+		}
+	}
+
+	/**
+	 * Computes the minimum spanning forest of a sparse graph, such as a k
+	 * nearest neighbor graph, with Kruskal's algorithm: edges are taken in
+	 * ascending order of weight while they join two components. The edge
+	 * arrays are sorted in place.
+	 * @param numVertices The number of vertices
+	 * @param from The first vertex of every edge
+	 * @param to The second vertex of every edge
+	 * @param weights The weight of every edge
+	 * @param numEdges The number of edges in the arrays
+	 * @return A spanning tree, or a forest if the graph is not connected
+	 */
+	public static MinimumSpanningTree kruskal(int numVertices, int[] from, int[] to, double[] weights, int numEdges) {
+		MinimumSpanningTree edges = new MinimumSpanningTree(0);
+		edges.from = from;
+		edges.to = to;
+		edges.weights = weights;
+		edges.numEdges = numEdges;
+		edges.sortByWeight();
+		MinimumSpanningTree mst = new MinimumSpanningTree(numVertices);
+		UnionFind uf = new UnionFind(numVertices);
+		for(int e = 0; e < numEdges && uf.getNumComponents() > 1; e++){
+			if(uf.union(from[e], to[e]) >= 0){
+				mst.addEdge(from[e], to[e], weights[e]);
+			}
+		}
+		return mst;
+	}
+
+	public void addEdge(int v1, int v2, double weight) {
+		from[numEdges] = v1;
+		to[numEdges] = v2;
+		if(singleWeights != null){
+			singleWeights[numEdges] = (float) weight;
+		}else{
+			weights[numEdges] = weight;
+		}
+		numEdges++;
+	}
+
+	/**
+	 * Sorts the edges by ascending weight.
+	 */
+	public void sortByWeight() {
+		sort(0, numEdges - 1);
+	}
+
+	private void sort(int lo, int hi) {
+		while(hi - lo > 16){
+			int mid = (lo + hi) >>> 1;
+			if(getWeight(mid) < getWeight(lo)) swap(mid, lo);
+			if(getWeight(hi) < getWeight(lo)) swap(hi, lo);
+			if(getWeight(hi) < getWeight(mid)) swap(hi, mid);
+			double pivot = getWeight(mid);
+			int i = lo;
+			int j = hi;
+			while(i <= j){
+				while(getWeight(i) < pivot) i++;
+				while(getWeight(j) > pivot) j--;
+				if(i <= j){
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller half to bound the stack depth
+			if(j - lo < hi - i){
+				sort(lo, j);
+				lo = i;
+			}else{
+				sort(i, hi);
+				hi = j;
+			}
+		}
+		for(int i = lo + 1; i <= hi; i++){
+			for(int j = i; j > lo && getWeight(j) < getWeight(j - 1); j--){
+				swap(j, j - 1);
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int tempFrom = from[i];
+		int tempTo = to[i];
+		from[i] = from[j];
+		to[i] = to[j];
+		from[j] = tempFrom;
+		to[j] = tempTo;
+		if(singleWeights != null){
+			float tempWeight = singleWeights[i];
+			singleWeights[i] = singleWeights[j];
+			singleWeights[j] = tempWeight;
+		}else{
+			double tempWeight = weights[i];
+			weights[i] = weights[j];
+			weights[j] = tempWeight;
+		}
+	}
+
+	/**
+	 * Builds the JGraphT representation consumed by {@link Cluster}.
+	 * @param points The points the tree was computed from, indexed by vertex
+	 * @return A weighted graph with one {@link ClusterNode} per vertex
+	 */
+	public SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> toGraph(Coordinate[] points) {
+		return toGraph(points, ClusteringContext.getDefault());
+	}
+
+	/**
+	 * Builds the JGraphT representation with the vertices labeled by the given run.
+	 */
+	public SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> toGraph(Coordinate[] points, ClusteringContext context) {
+		SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> swg =
+				new SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge>(DefaultWeightedEdge.class);
+		ClusterNode[] vertices = new ClusterNode[numVertices];
+		for(int i = 0; i < numVertices; i++){
+			vertices[i] = new ClusterNode(new KdNode(points[i], 0, 0, context));
+			swg.addVertex(vertices[i]);
+		}
+		for(int i = 0; i < numEdges; i++){
+			DefaultWeightedEdge e = swg.addEdge(vertices[from[i]], vertices[to[i]]);
+			swg.setEdgeWeight(e, getWeight(i));
+		}
+		return swg;
+	}
+
+	/**
+	 * Converts the graph returned by {@link HDBSCAN#calculateMST(NearestKdTree)}
+	 * to edge arrays whose vertices are the indices of the unique points.
+	 * @param graph The minimum spanning tree as a graph
+	 * @param points The unique points of the tree the graph was built from
+	 */
+	public static MinimumSpanningTree fromGraph(SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> graph,
+			WeightedPoints points) {
+		MinimumSpanningTree mst = new MinimumSpanningTree(points.size());
+		UnionFind uf = new UnionFind(points.size());
+		for(DefaultWeightedEdge e : graph.edgeSet()){
+			int v1 = points.indexOf(graph.getEdgeSource(e).getCoord());
+			int v2 = points.indexOf(graph.getEdgeTarget(e).getCoord());
+			if(v1 >= 0 && v2 >= 0 && uf.union(v1, v2) >= 0){
+				mst.addEdge(v1, v2, graph.getEdgeWeight(e));
+			}
+		}
+		return mst;
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	public int getNumEdges() {
+		return numEdges;
+	}
+
+	public int getFrom(int edge) {
+		return from[edge];
+	}
+
+	public int getTo(int edge) {
+		return to[edge];
+	}
+
+	public double getWeight(int edge) {
+		return weights != null ? weights[edge] : singleWeights[edge];
+	}
+
+	public Precision getPrecision() {
+		return singleWeights != null ? Precision.SINGLE : Precision.DOUBLE;
+	}
+
+	public double getMaxWeight() {
+		double maxWeight = 0.0;
+		for(int i = 0; i < numEdges; i++){
+			if(getWeight(i) > maxWeight){
+				maxWeight = getWeight(i);
+			}
+		}
+		return maxWeight;
+	}
+}
@@ -2,8 +2,14 @@ package hdbscan;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
@@ -43,6 +49,14 @@ public class NearestKdTree{
 	private KdNode last = null;
 	private long numberOfNodes;
 	private Envelope treeBBox;
+	private WeightedPoints weightedPoints;
+	private ClusteringContext context;
+	// every node in range query order, the tree does not change after loading
+	private KdNode[] nodes;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor;
+	
+	private static final int QUERY_BLOCK_SIZE = 1 << 12;
 	/**
 	 * <p>Creates an empty <code>NearestKdTree</code>.</p>
 	 * 
@@ -51,9 +65,7 @@ public class NearestKdTree{
 	 * factory method: {@link #loadNearestKdTree(Coordinate[])}.</p>
 	 */
 	public NearestKdTree(Coordinate[] points,int k) { 
-		super();
-		this.tolerance = Double.NaN;
-		loadTree(points, k);
+		this(points, k, Double.NaN);
 	}
 	
 	/**
@@ -63,8 +75,37 @@ public class NearestKdTree{
 	 * @param tol the snap tolerance
 	 */
 	public NearestKdTree(Coordinate[] points, int k, double tol) { 
+		this(points, k, tol, ClusteringContext.getDefault());
+	}
+	
+	/**
+	 * Creates a KdTree with the specified snap tolerance whose nodes are 
+	 * labeled by the given run.
+	 * 
+	 * @param tol the snap tolerance
+	 * @param context the run the tree belongs to
+	 */
+	public NearestKdTree(Coordinate[] points, int k, double tol, ClusteringContext context) { 
 		super();
 		this.tolerance = tol;
+		this.context = context;
+		this.executor = context.getPool();
+		loadTree(WeightedPoints.snap(points, tol),k);
+	}
+	
+	/**
+	 * Creates a KdTree over points that are already snapped and merged, 
+	 * whose nodes are labeled by the given run.
+	 * 
+	 * @param points the unique points with their multiplicities
+	 * @param tol the snap tolerance the points were snapped with
+	 * @param context the run the tree belongs to
+	 */
+	public NearestKdTree(WeightedPoints points, int k, double tol, ClusteringContext context) { 
+		super();
+		this.tolerance = tol;
+		this.context = context;
+		this.executor = context.getPool();
 		loadTree(points,k);
 	}
 	
@@ -82,102 +123,35 @@ public class NearestKdTree{
 
 		public static void queryNode(KdNode currentNode, KdNode searchNode,
 				Envelope queryEnv) {
-			if (currentNode == null)
-				return;
-
-			double min;
-			double max;
-			double discriminant;
-			if (currentNode.getAxis()==0) {
-				min = queryEnv.getMinX();
-				max = queryEnv.getMaxX();
-				discriminant = currentNode.getX();
-			} else {
-				min = queryEnv.getMinY();
-				max = queryEnv.getMaxY();
-				discriminant = currentNode.getY();
-			}
-			boolean searchLeft = min < discriminant;
-			boolean searchRight = discriminant <= max;
-
-			if (searchLeft) {
-				queryNode(currentNode.getLeft(), searchNode, queryEnv);
-			}
-			if (!currentNode.equals(searchNode) && queryEnv.contains(currentNode.getCoordinate())) {
-				Double distance = searchNode.addNeighbor(currentNode);
-				if(distance != null){
-					currentNode.addNeighbor(searchNode,distance);
+			RangeTraversal range = RANGE_TRAVERSAL.get().start(currentNode, queryEnv);
+			for(KdNode node = range.next(); node != null; node = range.next()){
+				if (!node.equals(searchNode) && queryEnv.contains(node.getCoordinate())) {
+					Double distance = searchNode.addNeighbor(node);
+					if(distance != null){
+						node.addNeighbor(searchNode,distance);
+					}
 				}
-				
 			}
-			if (searchRight) {
-				queryNode(currentNode.getRight(), searchNode, queryEnv);
-			}
-
 		}
 		
 		private static void queryNode(KdNode currentNode, KdNode searchNode, Envelope queryEnv, Envelope prevEnv) {
-			if (currentNode == null)
-				return;
-
-			double min;
-			double max;
-			double discriminant;
-			if (currentNode.getAxis()==0) {
-				min = queryEnv.getMinX();
-				max = queryEnv.getMaxX();
-				discriminant = currentNode.getX();
-			} else {
-				min = queryEnv.getMinY();
-				max = queryEnv.getMaxY();
-				discriminant = currentNode.getY();
-			}
-			boolean searchLeft = min < discriminant;
-			boolean searchRight = discriminant <= max;
-
-			if (searchLeft) {
-				queryNode(currentNode.getLeft(),searchNode, queryEnv, prevEnv);
-			}
-			if (!currentNode.equals(searchNode) && queryEnv.contains(currentNode.getCoordinate()) && 
-					!prevEnv.contains(currentNode.getCoordinate())) {
-				searchNode.addNeighbor(currentNode);
-			}
-			if (searchRight) {
-				queryNode(currentNode.getRight(),searchNode, queryEnv,prevEnv);
+			RangeTraversal range = RANGE_TRAVERSAL.get().start(currentNode, queryEnv);
+			for(KdNode node = range.next(); node != null; node = range.next()){
+				if (!node.equals(searchNode) && queryEnv.contains(node.getCoordinate()) && 
+						!prevEnv.contains(node.getCoordinate())) {
+					searchNode.addNeighbor(node);
+				}
 			}
-
 		}
 		
 		public static void queryNode(KdNode currentNode, KdNode searchNode, Envelope queryEnv, Set<KdNode> potentialVertices) {
-			if (currentNode == null)
-				return;
-
-			double min;
-			double max;
-			double discriminant;
-			if (currentNode.getAxis()==0) {
-				min = queryEnv.getMinX();
-				max = queryEnv.getMaxX();
-				discriminant = currentNode.getX();
-			} else {
-				min = queryEnv.getMinY();
-				max = queryEnv.getMaxY();
-				discriminant = currentNode.getY();
-			}
-			boolean searchLeft = min < discriminant;
-			boolean searchRight = discriminant <= max;
-
-			if (searchLeft) {
-				queryNode(currentNode.getLeft(),searchNode, queryEnv, potentialVertices);
-			}
-			if (!currentNode.equals(searchNode) && queryEnv.contains(currentNode.getCoordinate()) && 
-					potentialVertices.contains(currentNode)) {
-				searchNode.checkPotentialEdge(currentNode);
-			}
-			if (searchRight) {
-				queryNode(currentNode.getRight(),searchNode, queryEnv,potentialVertices);
+			RangeTraversal range = RANGE_TRAVERSAL.get().start(currentNode, queryEnv);
+			for(KdNode node = range.next(); node != null; node = range.next()){
+				if (!node.equals(searchNode) && queryEnv.contains(node.getCoordinate()) && 
+						potentialVertices.contains(node)) {
+					searchNode.checkPotentialEdge(node);
+				}
 			}
-
 		}
 		
 
@@ -188,33 +162,86 @@ public class NearestKdTree{
 		 *          the range rectangle to query
 		 * @return a list of the KdNodes found
 		 */
-		public static void query(KdNode currentNode, Envelope queryEnv, ArrayListVisitor v) {
-			if (currentNode == null)
-				return;
-
-			double min;
-			double max;
-			double discriminant;
-			if (currentNode.getAxis()==0) {
-				min = queryEnv.getMinX();
-				max = queryEnv.getMaxX();
-				discriminant = currentNode.getX();
-			} else {
-				min = queryEnv.getMinY();
-				max = queryEnv.getMaxY();
-				discriminant = currentNode.getY();
+		public static void query(KdNode currentNode, Envelope queryEnv, ItemVisitor v) {
+			RangeTraversal range = RANGE_TRAVERSAL.get().start(currentNode, queryEnv);
+			for(KdNode node = range.next(); node != null; node = range.next()){
+				if (queryEnv.contains(node.getCoordinate())) {
+					v.visitItem(node);
+				}
 			}
-			boolean searchLeft = min < discriminant;
-			boolean searchRight = discriminant <= max;
-
-			if (searchLeft) {
-				query(currentNode.getLeft(),queryEnv, v);
+		}
+		
+		/**
+		 * Walks the nodes of a subtree whose splits overlap a query envelope in
+		 * order, on an explicit stack. Every thread reuses one instance, so the
+		 * range queries allocate nothing and do not recurse; they must not be 
+		 * nested within each other on the same thread.
+		 */
+		private static final class RangeTraversal {
+			private KdNode[] stack = new KdNode[64];
+			private int size;
+			private KdNode current;
+			private Envelope queryEnv;
+			
+			RangeTraversal start(KdNode root, Envelope queryEnv){
+				this.size = 0;
+				this.current = root;
+				this.queryEnv = queryEnv;
+				return this;
 			}
-			if (queryEnv.contains(currentNode.getCoordinate())) {
-				v.visitItem(currentNode);
+			
+			/**
+			 * @return the next node, or null when the walk is done
+			 */
+			KdNode next(){
+				while(current != null){
+					if(size == stack.length){
+						stack = Arrays.copyOf(stack, 2 * size);
+					}
+					stack[size++] = current;
+					// points equal to the split may lie on either side
+					current = current.getLeft() != null && min(current) <= discriminant(current) ? current.getLeft() : null;
+				}
+				if(size == 0){
+					queryEnv = null;
+					return null;
+				}
+				KdNode node = stack[--size];
+				stack[size] = null;
+				current = node.getRight() != null && discriminant(node) <= max(node) ? node.getRight() : null;
+				return node;
+			}
+			
+			private double discriminant(KdNode node){
+				return node.getAxis() == 0 ? node.getX() : node.getY();
+			}
+			
+			private double min(KdNode node){
+				return node.getAxis() == 0 ? queryEnv.getMinX() : queryEnv.getMinY();
+			}
+			
+			private double max(KdNode node){
+				return node.getAxis() == 0 ? queryEnv.getMaxX() : queryEnv.getMaxY();
+			}
+		}
+		
+		private static final ThreadLocal<RangeTraversal> RANGE_TRAVERSAL = new ThreadLocal<RangeTraversal>(){
+			@Override
+			protected RangeTraversal initialValue(){
+				return new RangeTraversal();
 			}
-			if (searchRight) {
-				query(currentNode.getRight(),queryEnv, v);
+		};
+		
+		/**
+		 * Adds the distance to every visited node as an interval of the node it
+		 * is set to, see {@link KdNode#addInterval(KdNode)}.
+		 */
+		private static final class IntervalVisitor implements ItemVisitor {
+			private KdNode node;
+			
+			@Override
+			public void visitItem(Object item) {
+				node.addInterval((KdNode) item);
 			}
 		}
 	
@@ -338,21 +365,25 @@ public class NearestKdTree{
 	/**
 	 * Searches for K nearest neighbors for all Nodes in the graph.
 	 */
-	@SuppressWarnings("unchecked")
 	public void findKNN() {
-		ArrayList<KdNode> path;
-		for(KdNode node : getAllNodes()){
-			ArrayListVisitor v = new ArrayListVisitor();
-			traverse(root,node,v);
-			path = v.getItems();
-			for(int i=0; i<path.size();i++){
-				node.addInterval(path.get(i));
-			}
+		IntervalVisitor intervals = new IntervalVisitor();
+		for(KdNode node : nodes){
+			intervals.node = node;
+			traverse(root,node,intervals);
 //			System.out.println(node);
 			while(!node.hasKNeighbors() || node.getBboxDistance() < node.getCoreDistance()){
 //				System.out.println(node + " " + node.getBboxDistance() + " " + node.getBbox() + " " + node.getCoreDistance());
-				if(node.getBboxDistance().equals(node.getIntervals().last())){
-					path = this.getAllNodes();
+				if(node.getIntervals().isEmpty() || node.getBboxDistance().equals(node.getIntervals().last())){
+					// the box cannot grow any further, offer every other node
+					for(KdNode other : nodes){
+						if(!node.equals(other)){
+							Double distance = node.addNeighbor(other);
+							if(distance != null){
+								other.addNeighbor(node, distance);
+							}
+						}
+					}
+					break;
 				}else{
 					node.calculateBBox();
 					if(node.getPrevBbox() != null && node.getPrevBbox()!= node.getBbox()){
@@ -365,6 +396,523 @@ public class NearestKdTree{
 		}
 	}
 	
+	/**
+	 * Searches for K nearest neighbors for all Nodes in the graph with a 
+	 * dual-tree traversal: the tree is walked as query and as reference tree
+	 * at once, and a pair of subtrees is pruned when their bounding boxes are
+	 * farther apart than the largest core distance still to beat in the query
+	 * subtree. Nodes close to each other share the work of one search instead
+	 * of each descending from the root. Finds the same neighbors as 
+	 * {@link #findKNN()} and keeps the path intervals the spanning tree 
+	 * search starts from.
+	 */
+	public void findAllKNN() {
+		if(root == null){
+			return;
+		}
+		// the path of every node gives its intervals and first neighbors
+		IntervalVisitor intervals = new IntervalVisitor();
+		for(KdNode node : nodes){
+			intervals.node = node;
+			traverse(root,node,intervals);
+		}
+		calculateSubtreeBounds(root);
+		dualTree(root, root);
+	}
+	
+	private static void calculateSubtreeBounds(KdNode node){
+		if(node.getLeft() != null){
+			calculateSubtreeBounds(node.getLeft());
+		}
+		if(node.getRight() != null){
+			calculateSubtreeBounds(node.getRight());
+		}
+		node.calculateSubtreeBounds();
+	}
+	
+	/**
+	 * Offers every point of the reference subtree to every point of the query
+	 * subtree that is not pruned by the distance between their boxes.
+	 */
+	private static void dualTree(KdNode query, KdNode reference){
+		if(query.minSubtreeDistance(reference) > query.getSubtreeBound()){
+			return;
+		}
+		// the query point against the whole reference subtree
+		searchSubtree(query, reference);
+		// the rest of the query subtree against the reference point
+		offerToSubtree(query.getLeft(), reference);
+		offerToSubtree(query.getRight(), reference);
+		// the remaining pairs of child subtrees, nearer reference first
+		for(KdNode child : new KdNode[]{query.getLeft(), query.getRight()}){
+			if(child == null){
+				continue;
+			}
+			KdNode near = reference.getLeft();
+			KdNode far = reference.getRight();
+			if(near == null || (far != null && child.minSubtreeDistance(far) < child.minSubtreeDistance(near))){
+				near = reference.getRight();
+				far = reference.getLeft();
+			}
+			if(near != null){
+				dualTree(child, near);
+			}
+			if(far != null){
+				dualTree(child, far);
+			}
+		}
+		query.updateSubtreeBound();
+	}
+	
+	/**
+	 * Offers the points of the reference subtree to a single query node.
+	 */
+	private static void searchSubtree(KdNode query, KdNode reference){
+		if(reference == null || query.minDistanceToSubtree(reference) > query.getNeighborBound()){
+			return;
+		}
+		offer(query, reference);
+		KdNode near = reference.getLeft();
+		KdNode far = reference.getRight();
+		if(near == null || (far != null && query.minDistanceToSubtree(far) < query.minDistanceToSubtree(near))){
+			near = reference.getRight();
+			far = reference.getLeft();
+		}
+		searchSubtree(query, near);
+		searchSubtree(query, far);
+	}
+	
+	/**
+	 * Offers a single reference node to the points of the query subtree.
+	 */
+	private static void offerToSubtree(KdNode query, KdNode reference){
+		if(query == null || reference.minDistanceToSubtree(query) > query.getSubtreeBound()){
+			return;
+		}
+		offer(query, reference);
+		offerToSubtree(query.getLeft(), reference);
+		offerToSubtree(query.getRight(), reference);
+		query.updateSubtreeBound();
+	}
+	
+	private static void offer(KdNode query, KdNode reference){
+		if(query != reference){
+			double distance = query.computeDistance(query.getCoordinate(), reference.getCoordinate());
+			query.addNeighbor(reference, distance);
+			reference.addNeighbor(query, distance);
+		}
+	}
+	
+	// ------------------------------ BATCH QUERIES ------------------------------
+	
+	/**
+	 * Searches the k nearest points of the tree for a batch of locations that
+	 * need not be points of the tree. Weights count towards k like in 
+	 * {@link BallTree#query(double, double, int, int[], double[])}. The tree
+	 * is only read and the batch is split over at most {@link #getNumThreads()}
+	 * tasks on {@link #getExecutor()}; nothing is allocated per query.
+	 * @param queries The query locations
+	 * @param k The number of neighbors
+	 * @param neighbors Receives the indices in {@link WeightedPoints#getPoints()}
+	 *        of the neighbors of query i from i * k on, nearest first
+	 * @param distances Receives the distances, laid out like the neighbors
+	 * @param counts Receives the number of neighbors found for every query
+	 */
+	public void queryKNN(final Coordinate[] queries, final int k, final int[] neighbors, 
+			final double[] distances, final int[] counts) {
+		if(neighbors.length < (long) queries.length * k || distances.length < (long) queries.length * k 
+				|| counts.length < queries.length){
+			throw new IllegalArgumentException("Output arrays are too short for " + queries.length + " queries");
+		}
+		runBlocks(queries.length, new BlockQuery() {
+			@Override
+			public void run(int start, int end) {
+				BallTree.NeighborList list = new BallTree.NeighborList(k);
+				QueryStack stack = new QueryStack();
+				for(int i = start; i < end; i++){
+					list.clear(1);
+					searchKNN(queries[i], list, stack);
+					for(int j = 0; j < list.size(); j++){
+						neighbors[i * k + j] = list.getPosition(j);
+						distances[i * k + j] = list.getDistance(j);
+					}
+					counts[i] = list.size();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Finds all points of the tree within a radius of a batch of locations,
+	 * in parallel like {@link #queryKNN(Coordinate[], int, int[], double[], int[])}.
+	 * The results are laid out in compressed sparse rows: the neighbors of
+	 * query i are at offsets[i] until offsets[i + 1], in no particular order.
+	 * If the neighbor or distance array is null or shorter than the total,
+	 * only the offsets are filled, and the call can be repeated with arrays of
+	 * the returned size.
+	 * @param queries The query locations
+	 * @param radius The radius in kilometers
+	 * @param offsets Receives the start of every query's neighbors, of length queries.length + 1
+	 * @param neighbors Receives the indices in {@link WeightedPoints#getPoints()} of the neighbors
+	 * @param distances Receives the distances of the neighbors
+	 * @return the total number of neighbors of all queries
+	 */
+	public int queryRadius(final Coordinate[] queries, final double radius, final int[] offsets, 
+			final int[] neighbors, final double[] distances) {
+		if(offsets.length < queries.length + 1){
+			throw new IllegalArgumentException("The offsets need " + (queries.length + 1) + " entries");
+		}
+		runBlocks(queries.length, new BlockQuery() {
+			@Override
+			public void run(int start, int end) {
+				QueryStack stack = new QueryStack();
+				for(int i = start; i < end; i++){
+					offsets[i + 1] = countRadius(queries[i], radius, false, stack);
+				}
+			}
+		});
+		offsets[0] = 0;
+		for(int i = 0; i < queries.length; i++){
+			offsets[i + 1] += offsets[i];
+		}
+		final int total = offsets[queries.length];
+		if(neighbors == null || distances == null || neighbors.length < total || distances.length < total){
+			return total;
+		}
+		runBlocks(queries.length, new BlockQuery() {
+			@Override
+			public void run(int start, int end) {
+				QueryStack stack = new QueryStack();
+				for(int i = start; i < end; i++){
+					searchRadius(queries[i], radius, stack, neighbors, distances, offsets[i]);
+				}
+			}
+		});
+		return total;
+	}
+	
+	/**
+	 * Offers the points of the tree to the list, descending into the nearer
+	 * child first and skipping subtrees that cannot beat the list's bound.
+	 */
+	private void searchKNN(Coordinate q, BallTree.NeighborList list, QueryStack stack) {
+		if(root == null){
+			return;
+		}
+		double cosLat = Math.cos(Math.toRadians(q.y));
+		stack.clear();
+		stack.push(root, 0.0);
+		while(stack.size() > 0){
+			double bound = stack.peekBound();
+			KdNode node = stack.pop();
+			if(bound >= list.bound()){
+				continue;
+			}
+			list.offer(node.getIndex(), node.computeDistance(q, node.getCoordinate()), node.getWeight());
+			KdNode near = node.getLeft();
+			KdNode far = node.getRight();
+			double nearBound = near == null ? Double.POSITIVE_INFINITY : near.minDistanceToSubtree(q.x, q.y, cosLat);
+			double farBound = far == null ? Double.POSITIVE_INFINITY : far.minDistanceToSubtree(q.x, q.y, cosLat);
+			if(farBound < nearBound){
+				KdNode temp = near;
+				near = far;
+				far = temp;
+				double tempBound = nearBound;
+				nearBound = farBound;
+				farBound = tempBound;
+			}
+			if(far != null && farBound < list.bound()){
+				stack.push(far, farBound);
+			}
+			if(near != null && nearBound < list.bound()){
+				stack.push(near, nearBound);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the points of the tree within the radius of q from the given
+	 * offset. A subtree that lies entirely within the radius is written as a
+	 * whole, so the points written are exactly the ones counted by
+	 * {@link #countRadius(Coordinate, double, boolean, QueryStack)}.
+	 * @return the number of points written
+	 */
+	private int searchRadius(Coordinate q, double radius, QueryStack stack, 
+			int[] neighbors, double[] distances, int offset) {
+		if(root == null){
+			return 0;
+		}
+		double cosLat = Math.cos(Math.toRadians(q.y));
+		int count = 0;
+		stack.clear();
+		stack.push(root, 0.0);
+		while(stack.size() > 0){
+			// a negative bound marks a subtree within the radius
+			boolean within = stack.peekBound() < 0;
+			KdNode node = stack.pop();
+			double distance = node.computeDistance(q, node.getCoordinate());
+			within = within || isWithin(node, q, radius, distance);
+			if(within || distance <= radius){
+				neighbors[offset + count] = node.getIndex();
+				distances[offset + count] = distance;
+				count++;
+			}
+			if(within){
+				if(node.getLeft() != null){
+					stack.push(node.getLeft(), -1.0);
+				}
+				if(node.getRight() != null){
+					stack.push(node.getRight(), -1.0);
+				}
+			}else{
+				pushWithin(node.getLeft(), q, cosLat, radius, stack);
+				pushWithin(node.getRight(), q, cosLat, radius, stack);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Whether a subtree lies entirely within the radius, given the distance 
+	 * to its node. Leaves are tested by their point alone.
+	 */
+	private static boolean isWithin(KdNode node, Coordinate q, double radius, double distance) {
+		return distance <= radius && !node.isBottom() && node.maxDistanceToSubtree(q.x, q.y) <= radius;
+	}
+	
+	private static void pushWithin(KdNode child, Coordinate q, double cosLat, double radius, QueryStack stack) {
+		if(child != null){
+			double bound = child.minDistanceToSubtree(q.x, q.y, cosLat);
+			if(bound <= radius){
+				stack.push(child, bound);
+			}
+		}
+	}
+	
+	// ------------------------------ COUNTING QUERIES ------------------------------
+	
+	/**
+	 * Counts the input points within an envelope, including the duplicates
+	 * merged into every node. Subtrees whose box lies inside the envelope are
+	 * added from their stored counts without being visited.
+	 * @return the number of input points within the envelope
+	 */
+	public int count(Envelope env) {
+		return count(env, new QueryStack());
+	}
+	
+	/**
+	 * Counts the input points within every envelope of a batch, for example
+	 * the cells of a density grid, in parallel like 
+	 * {@link #queryKNN(Coordinate[], int, int[], double[], int[])}.
+	 * @param cells The envelopes to count in
+	 * @param counts Receives the number of input points within every envelope
+	 */
+	public void count(final Envelope[] cells, final int[] counts) {
+		if(counts.length < cells.length){
+			throw new IllegalArgumentException("The counts need " + cells.length + " entries");
+		}
+		runBlocks(cells.length, new BlockQuery() {
+			@Override
+			public void run(int start, int end) {
+				QueryStack stack = new QueryStack();
+				for(int i = start; i < end; i++){
+					counts[i] = count(cells[i], stack);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Counts the input points within a radius of a location, including the
+	 * duplicates merged into every node. Subtrees that lie entirely within the
+	 * radius are added from their stored counts without being visited.
+	 * @param radius The radius in kilometers
+	 * @return the number of input points within the radius
+	 */
+	public int countWithinRadius(Coordinate q, double radius) {
+		return countRadius(q, radius, true, new QueryStack());
+	}
+	
+	/**
+	 * Counts the input points within a radius of every location of a batch,
+	 * in parallel like {@link #queryKNN(Coordinate[], int, int[], double[], int[])}.
+	 * @param queries The query locations
+	 * @param radius The radius in kilometers
+	 * @param counts Receives the number of input points within the radius of every query
+	 */
+	public void countWithinRadius(final Coordinate[] queries, final double radius, final int[] counts) {
+		if(counts.length < queries.length){
+			throw new IllegalArgumentException("The counts need " + queries.length + " entries");
+		}
+		runBlocks(queries.length, new BlockQuery() {
+			@Override
+			public void run(int start, int end) {
+				QueryStack stack = new QueryStack();
+				for(int i = start; i < end; i++){
+					counts[i] = countRadius(queries[i], radius, true, stack);
+				}
+			}
+		});
+	}
+	
+	private int count(Envelope env, QueryStack stack) {
+		if(root == null){
+			return 0;
+		}
+		int count = 0;
+		stack.clear();
+		stack.push(root, 0.0);
+		while(stack.size() > 0){
+			KdNode node = stack.pop();
+			if(!node.subtreeIntersects(env)){
+				continue;
+			}
+			if(node.subtreeWithin(env)){
+				count += node.getSubtreeWeight();
+				continue;
+			}
+			if(env.contains(node.getCoordinate())){
+				count += node.getWeight();
+			}
+			if(node.getLeft() != null){
+				stack.push(node.getLeft(), 0.0);
+			}
+			if(node.getRight() != null){
+				stack.push(node.getRight(), 0.0);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts the points within the radius of q, either the nodes or the input
+	 * points they stand for.
+	 */
+	private int countRadius(Coordinate q, double radius, boolean weighted, QueryStack stack) {
+		if(root == null){
+			return 0;
+		}
+		double cosLat = Math.cos(Math.toRadians(q.y));
+		int count = 0;
+		stack.clear();
+		stack.push(root, 0.0);
+		while(stack.size() > 0){
+			KdNode node = stack.pop();
+			double distance = node.computeDistance(q, node.getCoordinate());
+			if(isWithin(node, q, radius, distance)){
+				count += weighted ? node.getSubtreeWeight() : node.getSubtreeSize();
+				continue;
+			}
+			if(distance <= radius){
+				count += weighted ? node.getWeight() : 1;
+			}
+			pushWithin(node.getLeft(), q, cosLat, radius, stack);
+			pushWithin(node.getRight(), q, cosLat, radius, stack);
+		}
+		return count;
+	}
+	
+	/**
+	 * Runs a batch of queries in blocks on {@link #getExecutor()}, with at
+	 * most {@link #getNumThreads()} tasks taking the next block until none
+	 * is left, or on the calling thread if there is only one block.
+	 */
+	private void runBlocks(int numQueries, final BlockQuery query) {
+		if(numQueries <= QUERY_BLOCK_SIZE || numThreads <= 1){
+			query.run(0, numQueries);
+			return;
+		}
+		final int numBlocks = (numQueries + QUERY_BLOCK_SIZE - 1) / QUERY_BLOCK_SIZE;
+		final int total = numQueries;
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int t = 0; t < Math.min(numThreads, numBlocks); t++){
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int block = next.getAndIncrement(); block < numBlocks; block = next.getAndIncrement()){
+						int start = block * QUERY_BLOCK_SIZE;
+						query.run(start, Math.min(total, start + QUERY_BLOCK_SIZE));
+					}
+					return null;
+				}
+			});
+		}
+		try{
+			for(Future<Void> future : executor.invokeAll(tasks)){
+				future.get();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Query was interrupted", e);
+		}catch(ExecutionException e){
+			throw new IllegalStateException("Query failed", e.getCause());
+		}
+	}
+	
+	private interface BlockQuery {
+		void run(int start, int end);
+	}
+	
+	/**
+	 * The nodes still to visit by a query with the lower bound of the distance
+	 * to their subtree, reused by all the queries of a block.
+	 */
+	private static final class QueryStack {
+		private KdNode[] nodes = new KdNode[64];
+		private double[] bounds = new double[64];
+		private int size;
+		
+		void clear(){
+			size = 0;
+		}
+		
+		int size(){
+			return size;
+		}
+		
+		void push(KdNode node, double bound){
+			if(size == nodes.length){
+				nodes = Arrays.copyOf(nodes, 2 * size);
+				bounds = Arrays.copyOf(bounds, 2 * size);
+			}
+			nodes[size] = node;
+			bounds[size++] = bound;
+		}
+		
+		double peekBound(){
+			return bounds[size - 1];
+		}
+		
+		KdNode pop(){
+			return nodes[--size];
+		}
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * @param numThreads The largest number of blocks of a batch query run at
+	 *        once, one or less to run them on the calling thread
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * @param executor The executor running the blocks of batch queries, the
+	 *        pool of the tree's context by default; it is not shut down
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
 	
 	public KdNode getRoot() {
 		return root;
@@ -406,10 +954,42 @@ public class NearestKdTree{
 		this.numberOfNodes = numberOfNodes;
 	}
 	
+	/**
+	 * Returns the core distances for a number of neighbors no larger than the
+	 * k the tree was built with, derived from the neighbors found by 
+	 * {@link #findKNN()}.
+	 * @return the core distance of every unique point, indexed like 
+	 *         {@link WeightedPoints#getPoints()}
+	 */
+	public double[] getCoreDistances(int k) {
+		double[] core = new double[weightedPoints.size()];
+		for(KdNode node : nodes){
+			if(k > node.getK()){
+				throw new IllegalArgumentException("k = " + k + " exceeds the " + node.getK() + " neighbors that were searched");
+			}
+			core[weightedPoints.indexOf(node.getCoordinate())] = node.getCoreDistance(k);
+		}
+		return core;
+	}
+	
+	/**
+	 * Returns the unique snapped points of the tree with their multiplicities
+	 * and the mapping from input rows to unique points.
+	 */
+	public WeightedPoints getWeightedPoints() {
+		return weightedPoints;
+	}
+	
+	public ClusteringContext getContext() {
+		return context;
+	}
+	
+	/**
+	 * @return a new list of all the nodes, copied from the array built when
+	 *         the tree was loaded
+	 */
 	public ArrayList<KdNode> getAllNodes(){
-		ArrayListVisitor visitor = new ArrayListVisitor();
-		query(root,treeBBox,visitor);
-		return visitor.getItems();
+		return new ArrayList<KdNode>(Arrays.asList(nodes));
 	}
 
 	/**
@@ -424,8 +1004,16 @@ public class NearestKdTree{
 	 * @return the root of the produced tree.
 	 * @since 1.12
 	 */
-	@SuppressWarnings("unchecked")
 	protected static KdNode makeTree(Coordinate[]points, int level, int k) {
+		return makeTree(points, level, k, ClusteringContext.getDefault());
+	}
+	
+	/**
+	 * Like {@link #makeTree(Coordinate[], int, int)}, labeling the nodes in
+	 * the given run.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static KdNode makeTree(Coordinate[]points, int level, int k, ClusteringContext context) {
 		KdNode middle = null;
 		KdNode left = null;
 		KdNode right = null;
@@ -439,7 +1027,7 @@ public class NearestKdTree{
 		// If the list is bigger than three points, recurse.
 		if (points.length > 3) { 
 			int median_idx = points.length/2 ; 
-			middle = new KdNode(points[median_idx],axis, k) ;
+			middle = new KdNode(points[median_idx],axis, k, context) ;
 			
 			Coordinate []leftPoints = new Coordinate[median_idx];  
 			Coordinate []rightPoints = new Coordinate[points.length-(median_idx+1)] ; 
@@ -451,18 +1039,18 @@ public class NearestKdTree{
 			for (int i=median_idx+1; i<points.length; i++) { 
 				rightPoints[i-(median_idx+1)] = points[i] ; 
 			}
-			left = makeTree(leftPoints,level+1,k);
-			right = makeTree(rightPoints,level+1,k);
+			left = makeTree(leftPoints,level+1,k,context);
+			right = makeTree(rightPoints,level+1,k,context);
 			middle.setLeft(left) ; 
 			left.setParent(middle);
 			middle.setRight(right);
 			right.setParent(middle);
 		} else if (points.length == 3) {
 			// if exactly three points, we know how this plays out
-			middle = new KdNode(points[1],axis,k) ; 
+			middle = new KdNode(points[1],axis,k,context) ; 
 			axis = (axis+1) %2 ;
-			left = new KdNode(points[0],axis,k);
-			right = new KdNode(points[2],axis,k);
+			left = new KdNode(points[0],axis,k,context);
+			right = new KdNode(points[2],axis,k,context);
 			
 			middle.setLeft(left);
 			left.setParent(middle);
@@ -470,54 +1058,70 @@ public class NearestKdTree{
 			right.setParent(middle);
 		} else if (points.length == 2) { 
 			// if exactly two points, we can also just hardcode it
-			middle = new KdNode(points[1],axis,k) ;
+			middle = new KdNode(points[1],axis,k,context) ;
 			axis = (axis+1)%2 ;
-			left = new KdNode(points[0],axis,k);
+			left = new KdNode(points[0],axis,k,context);
 			middle.setLeft(left);
 			left.setParent(middle);
 		} else if (points.length == 1) { 
 			// we should only get here if the list starts out with 
 			// length one.
-			middle = new KdNode(points[0],axis,k);  
+			middle = new KdNode(points[0],axis,k,context);  
 		}
 		
 		return middle ; 
 	}
 	
 	/**
-	 * Factory method to create a balanced kd-tree from an array of 
-	 * {@link Coordinate}s. The algorithm used is recursive. The points 
-	 * array is sorted based on the x coordinate when this call completes.
-	 * @param points Points to index with a kd-tree.
-	 * @return Balanced Kd tree containing all the points in the array. 
+	 * Factory method to create a balanced kd-tree from the unique points
+	 * of snapped input rows. The algorithm used is recursive. Every unique
+	 * point becomes a single node whose weight is the number of rows merged
+	 * into it; the points are left unchanged.
+	 * @param points Unique points to index with a kd-tree.
 	 * @since 1.12
 	 */
-	private void loadTree(Coordinate []points,int k) { 
-		// sift for duplicates
-		TreeSet<Coordinate> uniquePoints = new TreeSet<Coordinate>() ;
+	private void loadTree(WeightedPoints points,int k) { 
+		weightedPoints = points;
 		double minX = Double.MAX_VALUE;
 		double minY = Double.MAX_VALUE;
-		double maxX = Double.MIN_VALUE;
-		double maxY = Double.MIN_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
 		
-		for (Coordinate point : points) {
-			if(tolerance != Double.NaN){
-				point.x = Math.round(point.x / tolerance) / (1/tolerance);
-				point.y = Math.round(point.y / tolerance) / (1/tolerance);
-			}
+		for (Coordinate point : weightedPoints.getPoints()) {
 			if(point.x < minX) minX = point.x;
 			if(point.y < minY) minY = point.y;
 			if(point.x > maxX) maxX = point.x;
 			if(point.y > maxY) maxY = point.y;
-			
-			uniquePoints.add(point) ; 
 		}
-		Coordinate []unique = new Coordinate[uniquePoints.size()];
-		uniquePoints.toArray(unique); 
+		// makeTree sorts its input, keep the unique points in first-seen order
+		Coordinate []unique = weightedPoints.getPoints().clone();
 		
-		this.root = makeTree(unique,0,k);		
+		this.root = makeTree(unique,0,k,context);		
 		this.numberOfNodes = unique.length;
 		this.treeBBox = new Envelope(new Coordinate(minX,minY), new Coordinate(maxX,maxY));
+		this.nodes = new KdNode[unique.length];
+		collectNodes(root, 0);
+		for(KdNode node : nodes){
+			node.setWeight(weightedPoints.getWeight(node.getCoordinate()));
+			node.setIndex(weightedPoints.indexOf(node.getCoordinate()));
+		}
+		if(root != null){
+			calculateSubtreeBounds(root);
+		}
+	}
+	
+	/**
+	 * Stores the nodes of a subtree in order into {@link #nodes} from the
+	 * given position on.
+	 * @return the position after the last node of the subtree
+	 */
+	private int collectNodes(KdNode node, int position) {
+		if(node == null){
+			return position;
+		}
+		position = collectNodes(node.getLeft(), position);
+		nodes[position++] = node;
+		return collectNodes(node.getRight(), position);
 	}
 	
 	public static void main(String[] args) {
@@ -0,0 +1,150 @@
+package hdbscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A precomputed sparse distance graph in compressed sparse rows, such as the
+ * k nearest neighbors of every point by road distance. The neighbors of
+ * vertex i and their distances are at offsets[i] until offsets[i + 1]. Rows
+ * need not be sorted, and an edge may be listed from one or both ends.
+ *
+ * <p>The binary file holds, big-endian: the magic number "HDBG", the format
+ * version, the number of vertices n and of entries m, then n + 1 int
+ * offsets, m int neighbors and m double distances.</p>
+ */
+public class NeighborGraph {
+
+	private static final int MAGIC = 0x48444247; // "HDBG"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private int[] offsets;
+	private int[] neighbors;
+	private double[] distances;
+
+	/**
+	 * @param offsets The start of every vertex's row, of length numVertices + 1
+	 * @param neighbors The neighbor of every entry
+	 * @param distances The distance of every entry, not negative
+	 * @throws IllegalArgumentException if the arrays do not form a valid graph
+	 */
+	public NeighborGraph(int[] offsets, int[] neighbors, double[] distances) {
+		if(offsets.length == 0 || offsets[0] != 0 || offsets[offsets.length - 1] > neighbors.length
+				|| offsets[offsets.length - 1] > distances.length){
+			throw new IllegalArgumentException("Offsets must start at 0 and end within the entries");
+		}
+		int numVertices = offsets.length - 1;
+		for(int i = 0; i < numVertices; i++){
+			if(offsets[i + 1] < offsets[i]){
+				throw new IllegalArgumentException("Offsets decrease at vertex " + i);
+			}
+			for(int e = offsets[i]; e < offsets[i + 1]; e++){
+				if(neighbors[e] < 0 || neighbors[e] >= numVertices){
+					throw new IllegalArgumentException("Vertex " + i + " has neighbor " + neighbors[e]
+							+ " outside 0.." + (numVertices - 1));
+				}
+				if(!(distances[e] >= 0)){
+					throw new IllegalArgumentException("Vertex " + i + " has distance " + distances[e]);
+				}
+			}
+		}
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.distances = distances;
+	}
+
+	/**
+	 * Reads a graph written by {@link #write(File)} or by an external tool
+	 * in the same format.
+	 * @throws IOException if the file cannot be read or is not a graph file
+	 */
+	public static NeighborGraph read(File file) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))){
+			if(in.readInt() != MAGIC){
+				throw new IOException(file + " is not a neighbor graph file");
+			}
+			int version = in.readInt();
+			if(version != VERSION){
+				throw new IOException("Unsupported neighbor graph version " + version + " in " + file);
+			}
+			int numVertices = in.readInt();
+			int numEntries = in.readInt();
+			if(numVertices < 0 || numEntries < 0){
+				throw new IOException("Invalid graph size in " + file);
+			}
+			// check the counts against the file before allocating for them
+			long length = HEADER_BYTES + 4L * (numVertices + 1L) + 12L * numEntries;
+			if(length != file.length()){
+				throw new IOException(numVertices + " vertices and " + numEntries + " entries need " + length
+						+ " bytes but " + file + " has " + file.length());
+			}
+			int[] offsets = new int[numVertices + 1];
+			for(int i = 0; i < offsets.length; i++){
+				offsets[i] = in.readInt();
+			}
+			int[] neighbors = new int[numEntries];
+			for(int e = 0; e < numEntries; e++){
+				neighbors[e] = in.readInt();
+			}
+			double[] distances = new double[numEntries];
+			for(int e = 0; e < numEntries; e++){
+				distances[e] = in.readDouble();
+			}
+			try{
+				return new NeighborGraph(offsets, neighbors, distances);
+			}catch(IllegalArgumentException e){
+				throw new IOException("Invalid neighbor graph in " + file + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the graph in the binary format read by {@link #read(File)}.
+	 */
+	public void write(File file) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))){
+			int numEntries = getNumEntries();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(getNumVertices());
+			out.writeInt(numEntries);
+			for(int offset : offsets){
+				out.writeInt(offset);
+			}
+			for(int e = 0; e < numEntries; e++){
+				out.writeInt(neighbors[e]);
+			}
+			for(int e = 0; e < numEntries; e++){
+				out.writeDouble(distances[e]);
+			}
+		}
+	}
+
+	public int getNumVertices() {
+		return offsets.length - 1;
+	}
+
+	public int getNumEntries() {
+		return offsets[offsets.length - 1];
+	}
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	public int[] getNeighbors() {
+		return neighbors;
+	}
+
+	public double[] getDistances() {
+		return distances;
+	}
+}
@@ -0,0 +1,167 @@
+package hdbscan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Explores clustering parameters without repeating the expensive stages.
+ * The single linkage tree only depends on the spanning tree, so it is built
+ * once and condensed for every minimum cluster size in parallel, each
+ * condensation being a linear pass. Likewise the neighbors are searched once
+ * for the largest k and the core distances for smaller k are read from the
+ * sorted neighbor lists, leaving one spanning tree per k.
+ */
+public class ParameterSweep {
+
+	/**
+	 * Extracts a flat clustering for every minimum cluster size from one
+	 * spanning tree, on the common fork/join pool.
+	 * @param mst The spanning tree over the unique points
+	 * @param points The unique points with their weights and input rows
+	 * @param minClSizes The minimum cluster sizes to try
+	 * @param selection Excess of mass or leaf selection
+	 * @param numThreads The number of condensations run at once
+	 * @return One result per minimum cluster size, in the given order
+	 */
+	public static SweepResult[] sweepMinClusterSize(MinimumSpanningTree mst, WeightedPoints points,
+			int[] minClSizes, ClusterSelection selection, int numThreads) {
+		return sweepMinClusterSize(mst, points, minClSizes, selection, numThreads, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Extracts a flat clustering for every minimum cluster size from one
+	 * spanning tree.
+	 * @param mst The spanning tree over the unique points
+	 * @param points The unique points with their weights and input rows
+	 * @param minClSizes The minimum cluster sizes to try
+	 * @param selection Excess of mass or leaf selection
+	 * @param numThreads The number of condensations run at once
+	 * @param executor The executor running the condensations; it is not shut down
+	 * @return One result per minimum cluster size, in the given order
+	 */
+	public static SweepResult[] sweepMinClusterSize(MinimumSpanningTree mst, final WeightedPoints points,
+			final int[] minClSizes, final ClusterSelection selection, int numThreads, ExecutorService executor) {
+		final SingleLinkageTree slt = new SingleLinkageTree(mst, points.getWeights());
+		final SweepResult[] results = new SweepResult[minClSizes.length];
+		run(minClSizes.length, numThreads, executor, new Task() {
+			@Override
+			public void run(int i) {
+				results[i] = condense(slt, minClSizes[i], selection, points.getRowIndex());
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Clusters the points for every number of neighbors from a single
+	 * neighbor search at the largest k, on the common fork/join pool.
+	 * @param points The unique points with their weights and input rows
+	 * @param ks The numbers of neighbors (minPts) to try
+	 * @param minClSize The minimum cluster size
+	 * @param selection Excess of mass or leaf selection
+	 * @param numThreads The number of spanning trees built at once
+	 * @return One result per k, in the given order
+	 */
+	public static SweepResult[] sweepMinPts(WeightedPoints points, int[] ks, int minClSize,
+			ClusterSelection selection, int numThreads) {
+		return sweepMinPts(points, ks, minClSize, selection, numThreads, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Clusters the points for every number of neighbors from a single
+	 * neighbor search at the largest k. The spanning trees are built in
+	 * parallel from their own core distance arrays.
+	 * @param points The unique points with their weights and input rows
+	 * @param ks The numbers of neighbors (minPts) to try
+	 * @param minClSize The minimum cluster size
+	 * @param selection Excess of mass or leaf selection
+	 * @param numThreads The number of spanning trees built at once
+	 * @param executor The executor building the spanning trees; it is not shut down
+	 * @return One result per k, in the given order
+	 */
+	public static SweepResult[] sweepMinPts(final WeightedPoints points, final int[] ks, final int minClSize,
+			final ClusterSelection selection, int numThreads, ExecutorService executor) {
+		int maxK = 0;
+		for(int k : ks){
+			maxK = Math.max(maxK, k);
+		}
+		final BallTree tree = new BallTree(points.getPoints(), points.getWeights(), maxK);
+		tree.findKNN();
+		final SweepResult[] results = new SweepResult[ks.length];
+		run(ks.length, numThreads, executor, new Task() {
+			@Override
+			public void run(int i) {
+				MinimumSpanningTree mst = tree.calculateMST(tree.getCoreDistances(ks[i]));
+				SingleLinkageTree slt = new SingleLinkageTree(mst, points.getWeights());
+				SweepResult result = condense(slt, minClSize, selection, points.getRowIndex());
+				results[i] = new SweepResult(ks[i], minClSize, result.getClustering(), result.getClusterStabilities());
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Runs tasks 0 to numTasks - 1 with at most numThreads callables on the
+	 * executor, each taking the next task until none is left, or on the
+	 * calling thread for a single thread or task.
+	 */
+	private static void run(final int numTasks, int numThreads, ExecutorService executor, final Task task) {
+		if(numThreads <= 1 || numTasks <= 1){
+			for(int i = 0; i < numTasks; i++){
+				task.run(i);
+			}
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+		for(int t = 0; t < Math.min(numThreads, numTasks); t++){
+			callables.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int i = next.getAndIncrement(); i < numTasks; i = next.getAndIncrement()){
+						task.run(i);
+					}
+					return null;
+				}
+			});
+		}
+		try{
+			for(Future<Void> future : executor.invokeAll(callables)){
+				future.get();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Parameter sweep was interrupted", e);
+		}catch(ExecutionException e){
+			throw new IllegalStateException("Parameter sweep failed", e.getCause());
+		}
+	}
+
+	private interface Task {
+		void run(int i);
+	}
+
+	/**
+	 * Condenses a shared single linkage tree for one minimum cluster size.
+	 * @param rowIndex For every input row, the index of its unique point
+	 */
+	public static SweepResult condense(SingleLinkageTree slt, int minClSize, ClusterSelection selection, int[] rowIndex) {
+		CondensedTree tree = new CondensedTree(slt, minClSize);
+		boolean[] selected = tree.selectClusters(selection);
+		FlatClustering clustering = tree.extractClusters(selected);
+		double[] stabilities = new double[clustering.getNumClusters()];
+		int label = 0;
+		for(int c = 1; c < tree.getNumClusters(); c++){
+			if(selected[c]){
+				stabilities[label++] = tree.getStability(c);
+			}
+		}
+		return new SweepResult(minClSize, clustering.forRows(rowIndex), stabilities);
+	}
+}
@@ -0,0 +1,16 @@
+package hdbscan;
+
+/**
+ * How coordinates, neighbor distances and spanning tree weights are stored.
+ */
+public enum Precision {
+	/** 64 bit doubles. */
+	DOUBLE,
+	/**
+	 * 32 bit floats, half the memory of {@link #DOUBLE}. A float resolves about
+	 * half a meter on the earth's surface, far below the usual snapping
+	 * tolerance. Sums such as cluster stabilities are still accumulated in
+	 * double precision.
+	 */
+	SINGLE
+}
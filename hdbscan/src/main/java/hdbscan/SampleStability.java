@@ -0,0 +1,124 @@
+package hdbscan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How much the labels of a {@link SampledHDBSCAN} run depend on the sample:
+ * the adjusted Rand index between the clusterings of every pair of seeds.
+ * An index of 1 means identical partitions, around 0 agreement by chance.
+ * Noise counts as a label of its own.
+ */
+public class SampleStability {
+
+	private long[] seeds;
+	private FlatClustering[] clusterings;
+	private double[][] adjustedRandIndex;
+
+	public SampleStability(long[] seeds, FlatClustering[] clusterings) {
+		this.seeds = seeds;
+		this.clusterings = clusterings;
+		this.adjustedRandIndex = new double[seeds.length][seeds.length];
+		for(int i = 0; i < seeds.length; i++){
+			adjustedRandIndex[i][i] = 1.0;
+			for(int j = i + 1; j < seeds.length; j++){
+				double ari = adjustedRandIndex(clusterings[i].getLabels(), clusterings[j].getLabels());
+				adjustedRandIndex[i][j] = ari;
+				adjustedRandIndex[j][i] = ari;
+			}
+		}
+	}
+
+	/**
+	 * The adjusted Rand index of two labelings of the same points, from the
+	 * contingency table of their label pairs.
+	 */
+	public static double adjustedRandIndex(int[] labels1, int[] labels2) {
+		Map<Long, int[]> pairs = new HashMap<Long, int[]>();
+		Map<Integer, int[]> counts1 = new HashMap<Integer, int[]>();
+		Map<Integer, int[]> counts2 = new HashMap<Integer, int[]>();
+		for(int i = 0; i < labels1.length; i++){
+			increment(pairs, ((long) labels1[i] << 32) ^ (labels2[i] & 0xffffffffL));
+			increment(counts1, labels1[i]);
+			increment(counts2, labels2[i]);
+		}
+		double index = 0.0;
+		for(int[] count : pairs.values()){
+			index += pairsOf(count[0]);
+		}
+		double sum1 = 0.0;
+		for(int[] count : counts1.values()){
+			sum1 += pairsOf(count[0]);
+		}
+		double sum2 = 0.0;
+		for(int[] count : counts2.values()){
+			sum2 += pairsOf(count[0]);
+		}
+		double expected = sum1 * sum2 / pairsOf(labels1.length);
+		double max = (sum1 + sum2) / 2;
+		if(max == expected){
+			return 1.0;
+		}
+		return (index - expected) / (max - expected);
+	}
+
+	private static <K> void increment(Map<K, int[]> counts, K key) {
+		int[] count = counts.get(key);
+		if(count == null){
+			counts.put(key, new int[]{1});
+		}else{
+			count[0]++;
+		}
+	}
+
+	private static double pairsOf(long n) {
+		return n * (n - 1) / 2.0;
+	}
+
+	public long[] getSeeds() {
+		return seeds;
+	}
+
+	public FlatClustering[] getClusterings() {
+		return clusterings;
+	}
+
+	/**
+	 * @return the adjusted Rand index of every pair of seeds
+	 */
+	public double[][] getAdjustedRandIndex() {
+		return adjustedRandIndex;
+	}
+
+	public double getMeanAdjustedRandIndex() {
+		double sum = 0.0;
+		int count = 0;
+		for(int i = 0; i < seeds.length; i++){
+			for(int j = i + 1; j < seeds.length; j++){
+				sum += adjustedRandIndex[i][j];
+				count++;
+			}
+		}
+		return count == 0 ? 1.0 : sum / count;
+	}
+
+	public double getMinAdjustedRandIndex() {
+		double min = 1.0;
+		for(int i = 0; i < seeds.length; i++){
+			for(int j = i + 1; j < seeds.length; j++){
+				min = Math.min(min, adjustedRandIndex[i][j]);
+			}
+		}
+		return min;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder clusters = new StringBuilder();
+		for(FlatClustering clustering : clusterings){
+			clusters.append(clusters.length() == 0 ? "" : ",").append(clustering.getNumClusters());
+		}
+		return "SampleStability [seeds=" + seeds.length + ", clusters=" + clusters
+				+ ", meanARI=" + getMeanAdjustedRandIndex() + ", minARI=" + getMinAdjustedRandIndex() + "]";
+	}
+}
@@ -0,0 +1,311 @@
+package hdbscan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Clusters inputs too large for an exact fit from a sample. The sample is
+ * drawn per stratum of a grid over the bounding box, see {@link Sampling},
+ * and clustered exactly with a {@link BallTree}, its spanning tree and the
+ * condensed tree. Every row is then assigned through the sample's tree: among
+ * its k nearest sample points it takes the one at the smallest mutual
+ * reachability distance, and joins that point's cluster if the cluster
+ * already exists at that distance. Otherwise the row is noise.
+ *
+ * <p>The minimum cluster size is given in input rows and scaled by the
+ * sampling fraction for the fit. Rows are assigned in parallel blocks; the
+ * tree is only read.</p>
+ */
+public class SampledHDBSCAN {
+
+	// the average number of sampled rows per stratum
+	private static final int ROWS_PER_STRATUM = 16;
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	private Coordinate[] rows;
+	private int sampleSize;
+	private int k;
+	private int minClSize;
+	private double tolerance;
+	private Sampling sampling = Sampling.STRATIFIED;
+	private ClusterSelection selection = ClusterSelection.EXCESS_OF_MASS;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor = ForkJoinPool.commonPool();
+
+	/**
+	 * @param rows The input rows
+	 * @param sampleSize The number of rows to fit on
+	 * @param k The number of neighbors used for core distances
+	 * @param minClSize The smallest number of input rows in a cluster
+	 * @param tolerance The snapping tolerance of the sample, NaN to keep exact duplicates only
+	 */
+	public SampledHDBSCAN(Coordinate[] rows, int sampleSize, int k, int minClSize, double tolerance) {
+		this.rows = rows;
+		this.sampleSize = Math.min(sampleSize, rows.length);
+		this.k = k;
+		this.minClSize = minClSize;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Draws a sample, fits on it and assigns every row.
+	 * @param seed The seed of the sample
+	 * @return Labels and membership probabilities aligned with the input rows
+	 */
+	public FlatClustering cluster(long seed) {
+		int[] sample = sample(seed);
+		Coordinate[] sampleRows = new Coordinate[sample.length];
+		for(int i = 0; i < sample.length; i++){
+			sampleRows[i] = rows[sample[i]];
+		}
+		WeightedPoints points = WeightedPoints.snap(sampleRows, tolerance);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), k);
+		tree.findKNN();
+		SingleLinkageTree slt = new SingleLinkageTree(tree.calculateMST(), points.getWeights());
+		int sampleMinClSize = (int) Math.max(2, Math.round((double) minClSize * sample.length / rows.length));
+		CondensedTree condensed = new CondensedTree(slt, sampleMinClSize);
+		boolean[] selected = condensed.selectClusters(selection);
+		FlatClustering fit = condensed.extractClusters(selected);
+
+		// the selected cluster at or above every cluster, like CondensedTree#extractClusters
+		int[] selectedAncestor = new int[condensed.getNumClusters()];
+		selectedAncestor[0] = -1;
+		for(int c = 1; c < selectedAncestor.length; c++){
+			selectedAncestor[c] = selected[c] ? c : selectedAncestor[condensed.getClusterParent(c)];
+		}
+
+		int[] labels = new int[rows.length];
+		double[] probabilities = new double[rows.length];
+		assign(tree, condensed, fit, selectedAncestor, labels, probabilities);
+		// sampled rows keep the label of the fit
+		for(int i = 0; i < sample.length; i++){
+			int p = points.getRowIndex()[i];
+			labels[sample[i]] = fit.getLabels()[p];
+			probabilities[sample[i]] = fit.getProbabilities()[p];
+		}
+		return new FlatClustering(labels, probabilities, fit.getNumClusters());
+	}
+
+	/**
+	 * Clusters once per seed and compares the labels of every pair of runs.
+	 * @param seeds The seeds of the samples
+	 * @return the clusterings and their pairwise adjusted Rand index
+	 */
+	public SampleStability stability(long[] seeds) {
+		FlatClustering[] clusterings = new FlatClustering[seeds.length];
+		for(int i = 0; i < seeds.length; i++){
+			clusterings[i] = cluster(seeds[i]);
+		}
+		return new SampleStability(seeds, clusterings);
+	}
+
+	// ------------------------------ SAMPLE ------------------------------
+
+	/**
+	 * Draws the sample: rows are grouped by grid stratum with a counting
+	 * sort, every stratum gets a quota by randomized rounding and its rows
+	 * are drawn by a partial shuffle.
+	 * @return the indices of the sampled rows, ascending
+	 */
+	int[] sample(long seed) {
+		int n = rows.length;
+		if(sampleSize >= n){
+			int[] all = new int[n];
+			for(int i = 0; i < n; i++){
+				all[i] = i;
+			}
+			return all;
+		}
+		double minX = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for(Coordinate row : rows){
+			minX = Math.min(minX, row.x);
+			maxX = Math.max(maxX, row.x);
+			minY = Math.min(minY, row.y);
+			maxY = Math.max(maxY, row.y);
+		}
+		int side = (int) Math.max(1, Math.sqrt((double) sampleSize / ROWS_PER_STRATUM));
+		double width = Math.max(maxX - minX, Double.MIN_VALUE);
+		double height = Math.max(maxY - minY, Double.MIN_VALUE);
+		int[] stratum = new int[n];
+		int[] start = new int[side * side + 1];
+		for(int i = 0; i < n; i++){
+			int x = Math.min(side - 1, (int) ((rows[i].x - minX) / width * side));
+			int y = Math.min(side - 1, (int) ((rows[i].y - minY) / height * side));
+			stratum[i] = y * side + x;
+			start[stratum[i] + 1]++;
+		}
+		for(int s = 0; s < side * side; s++){
+			start[s + 1] += start[s];
+		}
+		int[] order = new int[n];
+		int[] next = Arrays.copyOf(start, side * side);
+		for(int i = 0; i < n; i++){
+			order[next[stratum[i]]++] = i;
+		}
+
+		double[] share = new double[side * side];
+		double total = 0.0;
+		for(int s = 0; s < share.length; s++){
+			int count = start[s + 1] - start[s];
+			share[s] = sampling == Sampling.DENSITY ? Math.sqrt(count) : count;
+			total += share[s];
+		}
+		Random random = new Random(seed);
+		int[] sample = new int[sampleSize];
+		int numSampled = 0;
+		for(int s = 0; s < share.length && numSampled < sampleSize; s++){
+			int count = start[s + 1] - start[s];
+			double exact = share[s] * sampleSize / total;
+			int quota = (int) exact + (random.nextDouble() < exact - (int) exact ? 1 : 0);
+			quota = Math.min(Math.min(quota, count), sampleSize - numSampled);
+			for(int i = 0; i < quota; i++){
+				int j = start[s] + i + random.nextInt(count - i);
+				int temp = order[start[s] + i];
+				order[start[s] + i] = order[j];
+				order[j] = temp;
+				sample[numSampled++] = order[start[s] + i];
+			}
+		}
+		sample = Arrays.copyOf(sample, numSampled);
+		Arrays.sort(sample);
+		return sample;
+	}
+
+	// ------------------------------ ASSIGN ------------------------------
+
+	/**
+	 * Assigns the rows in blocks on the executor, with at most
+	 * {@link #getNumThreads()} tasks taking the next block until none is left.
+	 */
+	private void assign(final BallTree tree, final CondensedTree condensed, final FlatClustering fit,
+			final int[] selectedAncestor, final int[] labels, final double[] probabilities) {
+		final int numBlocks = (rows.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		if(numThreads <= 1 || numBlocks <= 1){
+			assign(tree, condensed, fit, selectedAncestor, 0, rows.length, labels, probabilities);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int t = 0; t < Math.min(numThreads, numBlocks); t++){
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int block = next.getAndIncrement(); block < numBlocks; block = next.getAndIncrement()){
+						int start = block * BLOCK_SIZE;
+						int end = Math.min(rows.length, start + BLOCK_SIZE);
+						assign(tree, condensed, fit, selectedAncestor, start, end, labels, probabilities);
+					}
+					return null;
+				}
+			});
+		}
+		try{
+			for(Future<Void> future : executor.invokeAll(tasks)){
+				future.get();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Assignment was interrupted", e);
+		}catch(ExecutionException e){
+			throw new IllegalStateException("Assignment failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Assigns rows [start, end) to the cluster of their nearest sample point
+	 * by mutual reachability distance, using the k-th sample neighbor of the
+	 * row as its core distance.
+	 */
+	private void assign(BallTree tree, CondensedTree condensed, FlatClustering fit, int[] selectedAncestor,
+			int start, int end, int[] labels, double[] probabilities) {
+		double[] core = tree.getCoreDistances();
+		int[] neighbors = new int[k];
+		double[] distances = new double[k];
+		for(int row = start; row < end; row++){
+			int found = tree.query(rows[row].x, rows[row].y, k, neighbors, distances);
+			labels[row] = FlatClustering.NOISE;
+			if(found == 0){
+				continue;
+			}
+			double rowCore = distances[found - 1];
+			int nearest = -1;
+			double reachability = Double.POSITIVE_INFINITY;
+			for(int i = 0; i < found; i++){
+				double mrd = Math.max(Math.max(distances[i], core[neighbors[i]]), rowCore);
+				if(mrd < reachability){
+					reachability = mrd;
+					nearest = neighbors[i];
+				}
+			}
+			int label = fit.getLabels()[nearest];
+			if(label == FlatClustering.NOISE){
+				continue;
+			}
+			int cluster = selectedAncestor[condensed.getPointCluster(nearest)];
+			double lambda = CondensedTree.lambda(reachability);
+			if(lambda < condensed.getBirthLambda(cluster)){
+				continue;
+			}
+			labels[row] = label;
+			double maxLambda = condensed.getDeathLambda(cluster);
+			probabilities[row] = maxLambda == 0.0 || Double.isInfinite(lambda) ? 1.0 : Math.min(lambda, maxLambda) / maxLambda;
+		}
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	public Sampling getSampling() {
+		return sampling;
+	}
+
+	public void setSampling(Sampling sampling) {
+		this.sampling = sampling;
+	}
+
+	public ClusterSelection getSelection() {
+		return selection;
+	}
+
+	public void setSelection(ClusterSelection selection) {
+		this.selection = selection;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads The largest number of blocks of rows assigned at once,
+	 *        one or less to assign them on the calling thread
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor The executor assigning the blocks of rows, the common
+	 *        fork/join pool by default; it is not shut down
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+}
@@ -0,0 +1,16 @@
+package hdbscan;
+
+/**
+ * How {@link SampledHDBSCAN} draws its sample. Both split the bounding box
+ * into a grid of strata and draw at random within every stratum.
+ */
+public enum Sampling {
+	/** Every stratum in proportion to its number of rows, so the sample has the density of the input. */
+	STRATIFIED,
+	/**
+	 * Every stratum in proportion to the square root of its number of rows.
+	 * Sparse regions are over-represented, which keeps small clusters apart
+	 * from the noise at the cost of flattening density differences.
+	 */
+	DENSITY
+}
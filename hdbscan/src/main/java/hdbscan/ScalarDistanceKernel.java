@@ -0,0 +1,20 @@
+package hdbscan;
+
+/**
+ * Computes one haversine distance at a time with {@link BallTree#distance}.
+ */
+public class ScalarDistanceKernel extends DistanceKernel {
+
+	@Override
+	public void distances(double lat, double lon, double cosLat, double[] lats, double[] lons, double[] cosLats,
+			int start, int end, double[] out) {
+		for(int i = start; i < end; i++){
+			out[i - start] = BallTree.distance(lat, lon, cosLat, lats[i], lons[i], cosLats[i]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ScalarDistanceKernel";
+	}
+}
@@ -0,0 +1,205 @@
+package hdbscan;
+
+import java.util.Arrays;
+
+/**
+ * The single linkage dendrogram of a minimum spanning tree. Leaves are the
+ * point indices <code>0..n-1</code>; merge i creates node <code>n + i</code>
+ * joining two earlier nodes at the weight of the edge that connected them.
+ * Building it is a union-find pass over the sorted edges. The left child of
+ * a merge is the one holding the lower point index, so the dendrogram does
+ * not depend on the direction in which the edges were found. Components
+ * joined at the same distance are merged one after the other in the order of
+ * their lowest point index, so the dendrogram does not depend on which of
+ * several equally light spanning trees it was built from either.
+ */
+public class SingleLinkageTree {
+
+	private int numPoints;
+	private int numMerges;
+	private int[] left;
+	private int[] right;
+	private double[] distances;
+	private int[] sizes;
+	private int[] weights;
+	// the lowest point index below every merge
+	private int[] firstPoints;
+
+	/**
+	 * Builds the dendrogram. The edges of the spanning tree are sorted in place.
+	 * If the tree is a forest, its components are joined last at an infinite
+	 * distance.
+	 * @param mst The mutual reachability minimum spanning tree
+	 * @param weights The multiplicity of every point, or null for all ones
+	 */
+	public SingleLinkageTree(MinimumSpanningTree mst, int[] weights) {
+		this.numPoints = mst.getNumVertices();
+		this.weights = weights;
+		int capacity = Math.max(numPoints - 1, 0);
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.distances = new double[capacity];
+		this.sizes = new int[capacity];
+		this.firstPoints = new int[capacity];
+		this.numMerges = 0;
+
+		mst.sortByWeight();
+		UnionFind uf = new UnionFind(numPoints);
+		// the dendrogram node currently representing each union-find root
+		int[] nodeOf = new int[numPoints];
+		for(int i = 0; i < numPoints; i++){
+			nodeOf[i] = i;
+		}
+		int[] nodeByFirst = new int[numPoints];
+		int[] minFirsts = new int[numPoints];
+		for(int e = 0, end; e < mst.getNumEdges(); e = end){
+			end = e + 1;
+			while(end < mst.getNumEdges() && mst.getWeight(end) == mst.getWeight(e)){
+				end++;
+			}
+			if(end == e + 1){
+				merge(uf, nodeOf, mst.getFrom(e), mst.getTo(e), mst.getWeight(e));
+			}else{
+				mergeTies(uf, nodeOf, nodeByFirst, minFirsts, mst, e, end);
+			}
+		}
+		for(int i = 1; i < numPoints && numMerges < capacity; i++){
+			merge(uf, nodeOf, 0, i, Double.POSITIVE_INFINITY);
+		}
+	}
+
+	private void merge(UnionFind uf, int[] nodeOf, int v1, int v2, double distance) {
+		int root1 = uf.find(v1);
+		int root2 = uf.find(v2);
+		if(root1 == root2){
+			return;
+		}
+		int node1 = nodeOf[root1];
+		int node2 = nodeOf[root2];
+		if(firstPoint(node2) < firstPoint(node1)){
+			int temp = node1;
+			node1 = node2;
+			node2 = temp;
+		}
+		left[numMerges] = node1;
+		right[numMerges] = node2;
+		distances[numMerges] = distance;
+		sizes[numMerges] = getSize(node1) + getSize(node2);
+		firstPoints[numMerges] = firstPoint(node1);
+		nodeOf[uf.union(root1, root2)] = numPoints + numMerges;
+		numMerges++;
+	}
+
+	/**
+	 * Merges the components joined by edges of equal weight. Every resulting
+	 * component folds the ones it joins in the order of their lowest point,
+	 * and the resulting components follow each other in the same order.
+	 */
+	private void mergeTies(UnionFind uf, int[] nodeOf, int[] nodeByFirst, int[] minFirsts,
+			MinimumSpanningTree mst, int start, int end) {
+		int[] roots = new int[2 * (end - start)];
+		int numRoots = 0;
+		for(int e = start; e < end; e++){
+			roots[numRoots++] = uf.find(mst.getFrom(e));
+			roots[numRoots++] = uf.find(mst.getTo(e));
+		}
+		// the first point of every old component before the edges join them
+		int[] firsts = new int[numRoots];
+		for(int i = 0; i < numRoots; i++){
+			firsts[i] = firstPoint(nodeOf[roots[i]]);
+			nodeByFirst[firsts[i]] = nodeOf[roots[i]];
+		}
+		for(int e = start; e < end; e++){
+			uf.union(uf.find(mst.getFrom(e)), uf.find(mst.getTo(e)));
+		}
+		// the lowest first point of every new component, as a sort key before the old first point
+		for(int i = 0; i < numRoots; i++){
+			minFirsts[uf.find(roots[i])] = Integer.MAX_VALUE;
+		}
+		for(int i = 0; i < numRoots; i++){
+			int root = uf.find(roots[i]);
+			minFirsts[root] = Math.min(minFirsts[root], firsts[i]);
+		}
+		long[] keys = new long[numRoots];
+		for(int i = 0; i < numRoots; i++){
+			keys[i] = ((long) minFirsts[uf.find(roots[i])] << 32) | firsts[i];
+		}
+		Arrays.sort(keys);
+		int node = -1;
+		for(int i = 0; i < numRoots; i++){
+			if(i > 0 && keys[i] == keys[i - 1]){
+				continue;
+			}
+			int first = (int) keys[i];
+			if(first == (int) (keys[i] >>> 32)){
+				node = nodeByFirst[first];
+			}else{
+				int other = nodeByFirst[first];
+				left[numMerges] = node;
+				right[numMerges] = other;
+				distances[numMerges] = mst.getWeight(start);
+				sizes[numMerges] = getSize(node) + getSize(other);
+				firstPoints[numMerges] = firstPoint(node);
+				node = numPoints + numMerges;
+				numMerges++;
+			}
+			nodeOf[uf.find(first)] = node;
+		}
+	}
+
+	private int firstPoint(int node) {
+		return node < numPoints ? node : firstPoints[node - numPoints];
+	}
+
+	public int getNumPoints() {
+		return numPoints;
+	}
+
+	public int getNumMerges() {
+		return numMerges;
+	}
+
+	/**
+	 * @return the node created by the last merge, or point 0 for a single point
+	 */
+	public int getRoot() {
+		return numMerges == 0 ? 0 : numPoints + numMerges - 1;
+	}
+
+	public boolean isLeaf(int node) {
+		return node < numPoints;
+	}
+
+	public int getLeft(int node) {
+		return left[node - numPoints];
+	}
+
+	public int getRight(int node) {
+		return right[node - numPoints];
+	}
+
+	public double getDistance(int node) {
+		return distances[node - numPoints];
+	}
+
+	/**
+	 * @return the total weight of the points below the node
+	 */
+	public int getSize(int node) {
+		if(node < numPoints){
+			return getWeight(node);
+		}
+		return sizes[node - numPoints];
+	}
+
+	public int getWeight(int point) {
+		return weights == null ? 1 : weights[point];
+	}
+
+	/**
+	 * @return the multiplicity of every point, or null if all points have weight one
+	 */
+	public int[] getWeights() {
+		return weights;
+	}
+}
@@ -0,0 +1,963 @@
+package hdbscan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Clusters a stream of timestamped points over a sliding time window.
+ * Instead of rebuilding the neighbor index on every tick, the points of the
+ * window are kept in a uniform grid of longitude/latitude cells together with
+ * their k nearest neighbors:
+ *
+ * <ul>
+ * <li> An arriving point searches its neighbors ring by ring around its cell,
+ *      and is offered to the points that have it closer than their k-th
+ *      neighbor. These are found in a stack of coarser grids, where every
+ *      point is filed at the finest level whose cells are wider than its core
+ *      distance, so only the 3x3 cells around the new point are checked per level.</li>
+ * <li> An expiring point is removed from the grid and only the points that had
+ *      it as a neighbor search theirs again.</li>
+ * </ul>
+ *
+ * <p>The work per arrival or expiration therefore depends on the local
+ * density, not on the size of the window. At the configured cadence the
+ * exact spanning tree of the mutual reachability graph of the window is
+ * computed from the maintained core distances and condensed into flat
+ * clusters, like a batch run over the same points. The spanning tree is
+ * repaired from the previous one: the edges that expired or became heavier
+ * are cut and the pieces joined again, and the arrived points and the edges
+ * that became lighter are added where they close a cycle with a heavier
+ * edge. Both steps search a ball tree over the window, which is rebuilt per
+ * clustering in O(n log n) for n points; the first tree, and a tree after
+ * more than half of the window arrived, is computed from scratch.</p>
+ *
+ * <p>Points must arrive in non-decreasing time order. Distances are haversine
+ * kilometers; longitudes are not wrapped at the antimeridian.</p>
+ */
+public class SlidingWindowHDBSCAN {
+
+	private static final int R = 6371; // Radius of the earth
+	private static final int INITIAL_CAPACITY = 1024;
+	// levels of the core distance grids, each with cells twice as wide
+	private static final int NUM_LEVELS = 32;
+
+	private int k;
+	private int minClSize;
+	private long windowMillis;
+	private long emitMillis;
+	private double cellDegrees;
+	private ClusterSelection selection = ClusterSelection.EXCESS_OF_MASS;
+
+	// points by slot, the slots of expired points are reused
+	private int capacity;
+	private int numSlots;
+	private double[] lon;
+	private double[] lat;
+	private double[] radLat;
+	private double[] radLon;
+	private double[] cosLat;
+	private long[] times;
+	private long[] ids;
+	private Cell[] cellOf;
+	private int[] cellPosition;
+	private Cell[] coreCellOf;
+	private int[] corePosition;
+	private int[] neighbors;
+	private double[] neighborDistances;
+	private int[] numNeighbors;
+	private int[] freeSlots;
+	private int numFree;
+	// whether a point arrived since the last spanning tree, and the core distance it had in it
+	private boolean[] arrived;
+	private double[] treeCore;
+	private int[] windowIndex;
+
+	// slots in arrival order, a circular queue
+	private int[] queue;
+	private int head;
+	private int size;
+
+	// the last spanning tree, by slot, or none before the first
+	private int numTreeEdges = -1;
+	private int[] treeFrom;
+	private int[] treeTo;
+	private double[] treeWeights;
+
+	private long nextId;
+	private long lastTime = Long.MIN_VALUE;
+	private long lastEmit = Long.MIN_VALUE;
+
+	private Map<Long, Cell> grid = new HashMap<Long, Cell>();
+	// points by the grid level that bounds their core distance
+	private List<Map<Long, Cell>> coreGrids = new ArrayList<Map<Long, Cell>>();
+	private int[] coreLevelSizes = new int[NUM_LEVELS];
+	// points whose core distance exceeds every level
+	private Cell wide = new Cell(NUM_LEVELS, 0, 0);
+	// buffers of the searches
+	private ArrayList<Cell> ring = new ArrayList<Cell>();
+	private int[] affected = new int[64];
+	private int numAffected;
+
+	/**
+	 * @param k The number of neighbors used for core distances
+	 * @param minClSize The smallest number of points in a cluster
+	 * @param windowMillis The length of the window; a point expires this long after its time
+	 * @param emitMillis The time between two emitted clusterings
+	 * @param cellDegrees The side of a grid cell in degrees, about the typical core distance
+	 */
+	public SlidingWindowHDBSCAN(int k, int minClSize, long windowMillis, long emitMillis, double cellDegrees) {
+		if(k < 1 || windowMillis <= 0 || emitMillis < 0 || !(cellDegrees > 0)){
+			throw new IllegalArgumentException("Invalid window parameters: k=" + k + ", window=" + windowMillis
+					+ ", emit=" + emitMillis + ", cell=" + cellDegrees);
+		}
+		this.k = k;
+		this.minClSize = minClSize;
+		this.windowMillis = windowMillis;
+		this.emitMillis = emitMillis;
+		this.cellDegrees = cellDegrees;
+		for(int level = 0; level < NUM_LEVELS; level++){
+			coreGrids.add(new HashMap<Long, Cell>());
+		}
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int newCapacity) {
+		lon = grow(lon, newCapacity);
+		lat = grow(lat, newCapacity);
+		radLat = grow(radLat, newCapacity);
+		radLon = grow(radLon, newCapacity);
+		cosLat = grow(cosLat, newCapacity);
+		times = times == null ? new long[newCapacity] : Arrays.copyOf(times, newCapacity);
+		ids = ids == null ? new long[newCapacity] : Arrays.copyOf(ids, newCapacity);
+		cellOf = cellOf == null ? new Cell[newCapacity] : Arrays.copyOf(cellOf, newCapacity);
+		cellPosition = grow(cellPosition, newCapacity);
+		coreCellOf = coreCellOf == null ? new Cell[newCapacity] : Arrays.copyOf(coreCellOf, newCapacity);
+		corePosition = grow(corePosition, newCapacity);
+		neighbors = grow(neighbors, newCapacity * k);
+		neighborDistances = grow(neighborDistances, newCapacity * k);
+		numNeighbors = grow(numNeighbors, newCapacity);
+		freeSlots = grow(freeSlots, newCapacity);
+		arrived = arrived == null ? new boolean[newCapacity] : Arrays.copyOf(arrived, newCapacity);
+		treeCore = grow(treeCore, newCapacity);
+		windowIndex = grow(windowIndex, newCapacity);
+		int[] newQueue = new int[newCapacity];
+		for(int i = 0; i < size; i++){
+			newQueue[i] = queue[(head + i) % capacity];
+		}
+		queue = newQueue;
+		head = 0;
+		capacity = newCapacity;
+	}
+
+	private static double[] grow(double[] values, int length) {
+		return values == null ? new double[length] : Arrays.copyOf(values, length);
+	}
+
+	private static int[] grow(int[] values, int length) {
+		return values == null ? new int[length] : Arrays.copyOf(values, length);
+	}
+
+	// ------------------------------ STREAM ------------------------------
+
+	/**
+	 * Adds a point, first expiring the points that left the window.
+	 * @param lon The longitude in degrees
+	 * @param lat The latitude in degrees
+	 * @param time The time of the point in milliseconds, not before the previous one
+	 * @return the clustering of the window if one is due, null otherwise
+	 */
+	public WindowClustering add(double lon, double lat, long time) {
+		advanceTime(time);
+		insert(lon, lat, time);
+		return emitIfDue(time);
+	}
+
+	/**
+	 * Moves the end of the window without adding a point, expiring the points
+	 * that left it.
+	 * @return the clustering of the window if one is due, null otherwise
+	 */
+	public WindowClustering advance(long time) {
+		advanceTime(time);
+		return emitIfDue(time);
+	}
+
+	private void advanceTime(long time) {
+		if(time < lastTime){
+			throw new IllegalArgumentException("Time " + time + " is before the previous time " + lastTime);
+		}
+		lastTime = time;
+		if(lastEmit == Long.MIN_VALUE){
+			lastEmit = time;
+		}
+		while(size > 0 && times[queue[head]] <= time - windowMillis){
+			int p = queue[head];
+			head = (head + 1) % capacity;
+			size--;
+			expire(p);
+		}
+	}
+
+	private WindowClustering emitIfDue(long time) {
+		if(time - lastEmit < emitMillis){
+			return null;
+		}
+		lastEmit = time;
+		return cluster();
+	}
+
+	private void insert(double x, double y, long time) {
+		if(numFree == 0 && numSlots == capacity){
+			allocate(capacity * 2);
+		}
+		int p = numFree > 0 ? freeSlots[--numFree] : numSlots++;
+		lon[p] = x;
+		lat[p] = y;
+		radLat[p] = Math.toRadians(y);
+		radLon[p] = Math.toRadians(x);
+		cosLat[p] = Math.cos(radLat[p]);
+		times[p] = time;
+		ids[p] = nextId++;
+		queue[(head + size) % capacity] = p;
+		size++;
+
+		long cx = cellX(p);
+		long cy = cellY(p);
+		Long key = key(cx, cy);
+		Cell cell = grid.get(key);
+		if(cell == null){
+			cell = new Cell(0, cx, cy);
+			grid.put(key, cell);
+		}
+		cellPosition[p] = cell.add(p);
+		cellOf[p] = cell;
+
+		arrived[p] = true;
+		searchKNN(p);
+		addCore(p);
+		findReverseNeighbors(p);
+		for(int i = 0; i < numAffected; i++){
+			int q = affected[i];
+			removeCore(q);
+			offer(q, p, distance(p, q));
+			addCore(q);
+		}
+	}
+
+	private void expire(int p) {
+		Cell cell = cellOf[p];
+		int moved = cell.remove(cellPosition[p]);
+		if(moved >= 0){
+			cellPosition[moved] = cellPosition[p];
+		}
+		if(cell.size == 0){
+			grid.remove(key(cell.x, cell.y));
+		}
+		removeCore(p);
+		cellOf[p] = null;
+		findReverseNeighbors(p);
+		for(int i = 0; i < numAffected; i++){
+			int q = affected[i];
+			if(hasNeighbor(q, p)){
+				removeCore(q);
+				searchKNN(q);
+				addCore(q);
+			}
+		}
+		freeSlots[numFree++] = p;
+	}
+
+	// ------------------------------ SEARCH ------------------------------
+
+	/**
+	 * Searches the k nearest neighbors of point p ring by ring until the next
+	 * ring cannot hold a point closer than the k-th neighbor.
+	 */
+	private void searchKNN(int p) {
+		numNeighbors[p] = 0;
+		long cx = cellX(p);
+		long cy = cellY(p);
+		int visited = 0;
+		for(int r = 0; ; r++){
+			boolean last = collectRing(cx, cy, r);
+			for(Cell cell : ring){
+				for(int i = 0; i < cell.size; i++){
+					int q = cell.slots[i];
+					if(q != p){
+						offer(p, q, distance(p, q));
+					}
+				}
+			}
+			visited += ring.size();
+			if(last || visited >= grid.size()){
+				return;
+			}
+			if(numNeighbors[p] == k && neighborDistances[p * k + k - 1] <= gap(p, r)){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Collects the points that may have point p among their k nearest
+	 * neighbors: those with p no farther than their core distance, or all
+	 * points while the window holds too few for k neighbors each.
+	 */
+	private void findReverseNeighbors(int p) {
+		numAffected = 0;
+		if(size <= k + 1){
+			for(Cell cell : grid.values()){
+				collectAffected(p, cell, true);
+			}
+			return;
+		}
+		double side = cellDegrees;
+		for(int level = 0; level < NUM_LEVELS; level++, side *= 2){
+			if(coreLevelSizes[level] == 0){
+				continue;
+			}
+			Map<Long, Cell> cells = coreGrids.get(level);
+			long cx = (long) Math.floor(lon[p] / side);
+			long cy = (long) Math.floor(lat[p] / side);
+			for(long x = cx - 1; x <= cx + 1; x++){
+				for(long y = cy - 1; y <= cy + 1; y++){
+					Cell cell = cells.get(key(x, y));
+					if(cell != null){
+						collectAffected(p, cell, false);
+					}
+				}
+			}
+		}
+		collectAffected(p, wide, false);
+	}
+
+	private void collectAffected(int p, Cell cell, boolean all) {
+		for(int i = 0; i < cell.size; i++){
+			int q = cell.slots[i];
+			if(q != p && (all || distance(p, q) <= getCoreDistance(q))){
+				if(numAffected == affected.length){
+					affected = Arrays.copyOf(affected, numAffected * 2);
+				}
+				affected[numAffected++] = q;
+			}
+		}
+	}
+
+	/**
+	 * Collects the occupied cells at Chebyshev distance r from cell (cx, cy).
+	 * Once the ring has more cells than the grid, all occupied cells at
+	 * distance r and beyond are collected instead and the search ends.
+	 * @return whether the remaining cells were collected
+	 */
+	private boolean collectRing(long cx, long cy, int r) {
+		ring.clear();
+		if(r == 0){
+			addCell(cx, cy);
+			return false;
+		}
+		if(8L * r > grid.size()){
+			for(Cell cell : grid.values()){
+				if(Math.max(Math.abs(cell.x - cx), Math.abs(cell.y - cy)) >= r){
+					ring.add(cell);
+				}
+			}
+			return true;
+		}
+		for(long x = cx - r; x <= cx + r; x++){
+			addCell(x, cy - r);
+			addCell(x, cy + r);
+		}
+		for(long y = cy - r + 1; y < cy + r; y++){
+			addCell(cx - r, y);
+			addCell(cx + r, y);
+		}
+		return false;
+	}
+
+	private void addCell(long x, long y) {
+		Cell cell = grid.get(key(x, y));
+		if(cell != null){
+			ring.add(cell);
+		}
+	}
+
+	/**
+	 * A lower bound on the distance from point p to any point outside the
+	 * cells within Chebyshev distance r of its own. A point outside has either
+	 * a latitude gap, which is at least that many kilometers along a meridian,
+	 * or a longitude gap, which is shortest at the highest latitude of the cells.
+	 */
+	private double gap(int p, int r) {
+		long cx = cellX(p);
+		long cy = cellY(p);
+		double latGap = Math.min(lat[p] - (cy - r) * cellDegrees, (cy + r + 1) * cellDegrees - lat[p]);
+		double lonGap = Math.min(lon[p] - (cx - r) * cellDegrees, (cx + r + 1) * cellDegrees - lon[p]);
+		double maxLat = Math.max(Math.abs((cy - r) * cellDegrees), Math.abs((cy + r + 1) * cellDegrees));
+		return Math.min(R * Math.toRadians(latGap), lonDistance(lonGap, maxLat));
+	}
+
+	/**
+	 * A lower bound on the distance between two points whose longitudes are
+	 * at least lonGap degrees apart and whose latitudes are at most maxLat
+	 * degrees from the equator.
+	 */
+	private static double lonDistance(double lonGap, double maxLat) {
+		if(maxLat >= 90){
+			return 0.0;
+		}
+		double a = Math.cos(Math.toRadians(maxLat)) * Math.sin(Math.toRadians(Math.min(lonGap, 180)) / 2);
+		return 2 * R * Math.asin(Math.min(1.0, a));
+	}
+
+	/**
+	 * The finest core grid level at which any point within the core distance
+	 * of point p lies in the 3x3 cells around p's cell: its cells are wider
+	 * than the core distance in latitude, and in longitude at the highest
+	 * latitude such a point can have.
+	 */
+	private int getCoreLevel(int p) {
+		double core = getCoreDistance(p);
+		double side = cellDegrees;
+		for(int level = 0; level < NUM_LEVELS; level++, side *= 2){
+			if(core < lonDistance(side, Math.abs(lat[p]) + side)){
+				return level;
+			}
+		}
+		return NUM_LEVELS;
+	}
+
+	/**
+	 * Inserts q into the sorted neighbors of p if it is among the k nearest.
+	 */
+	private void offer(int p, int q, double dist) {
+		int base = p * k;
+		int n = numNeighbors[p];
+		if(n == k){
+			if(dist >= neighborDistances[base + k - 1]){
+				return;
+			}
+			n--;
+		}
+		int i = n;
+		while(i > 0 && neighborDistances[base + i - 1] > dist){
+			neighbors[base + i] = neighbors[base + i - 1];
+			neighborDistances[base + i] = neighborDistances[base + i - 1];
+			i--;
+		}
+		neighbors[base + i] = q;
+		neighborDistances[base + i] = dist;
+		numNeighbors[p] = n + 1;
+	}
+
+	private boolean hasNeighbor(int p, int q) {
+		for(int i = 0; i < numNeighbors[p]; i++){
+			if(neighbors[p * k + i] == q){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The distance to the k-th neighbor, or to the farthest point if the
+	 * window holds fewer than k others, like {@link BallTree#findKNN()}.
+	 */
+	private double getCoreDistance(int p) {
+		return numNeighbors[p] == 0 ? 0.0 : neighborDistances[p * k + numNeighbors[p] - 1];
+	}
+
+	/**
+	 * Files point p in the core grid level of its current core distance.
+	 */
+	private void addCore(int p) {
+		int level = getCoreLevel(p);
+		Cell cell = wide;
+		if(level < NUM_LEVELS){
+			double side = cellDegrees * (1L << level);
+			long cx = (long) Math.floor(lon[p] / side);
+			long cy = (long) Math.floor(lat[p] / side);
+			Long key = key(cx, cy);
+			cell = coreGrids.get(level).get(key);
+			if(cell == null){
+				cell = new Cell(level, cx, cy);
+				coreGrids.get(level).put(key, cell);
+			}
+			coreLevelSizes[level]++;
+		}
+		corePosition[p] = cell.add(p);
+		coreCellOf[p] = cell;
+	}
+
+	/**
+	 * Removes point p from the core grids, before its core distance changes.
+	 */
+	private void removeCore(int p) {
+		Cell cell = coreCellOf[p];
+		int moved = cell.remove(corePosition[p]);
+		if(moved >= 0){
+			corePosition[moved] = corePosition[p];
+		}
+		if(cell.level < NUM_LEVELS){
+			coreLevelSizes[cell.level]--;
+			if(cell.size == 0){
+				coreGrids.get(cell.level).remove(key(cell.x, cell.y));
+			}
+		}
+		coreCellOf[p] = null;
+	}
+
+	private double distance(int p, int q) {
+		return BallTree.distance(radLat[p], radLon[p], cosLat[p], radLat[q], radLon[q], cosLat[q]);
+	}
+
+	private long cellX(int p) {
+		return (long) Math.floor(lon[p] / cellDegrees);
+	}
+
+	private long cellY(int p) {
+		return (long) Math.floor(lat[p] / cellDegrees);
+	}
+
+	private static Long key(long x, long y) {
+		return (x << 32) ^ (y & 0xffffffffL);
+	}
+
+	// ------------------------------ CLUSTERS ------------------------------
+
+	/**
+	 * Clusters the current window: computes its spanning tree with
+	 * {@link #calculateMST()} and extracts flat clusters.
+	 * @return the clustering of the points in the window, in arrival order
+	 */
+	public WindowClustering cluster() {
+		long[] windowIds = new long[size];
+		for(int i = 0; i < size; i++){
+			windowIds[i] = ids[queue[(head + i) % capacity]];
+		}
+		if(size == 0){
+			return new WindowClustering(lastTime, windowIds, new FlatClustering(new int[0], new double[0], new double[0], 0));
+		}
+		SingleLinkageTree slt = new SingleLinkageTree(calculateMST(), null);
+		FlatClustering clustering = new CondensedTree(slt, minClSize).extractClusters(selection);
+		return new WindowClustering(lastTime, windowIds, clustering);
+	}
+
+	/**
+	 * Computes the minimum spanning tree of the mutual reachability graph of
+	 * the points in the window from their maintained core distances, by
+	 * repairing the previous tree: {@link #reconnect} cuts the edges that
+	 * expired or became heavier and joins the pieces again, and
+	 * {@link #insert(BallTree, int[], double[], MinimumSpanningTree, boolean[])}
+	 * adds the arrived points and the edges that became lighter. The first
+	 * tree, and a tree after more than half of the window arrived, is
+	 * computed from scratch with the Boruvka search of a ball tree.
+	 * @return The spanning tree over the points of the window in arrival order
+	 */
+	public MinimumSpanningTree calculateMST() {
+		int[] order = new int[size];
+		double[] core = new double[size];
+		int numArrived = 0;
+		for(int i = 0; i < size; i++){
+			int p = queue[(head + i) % capacity];
+			order[i] = p;
+			core[i] = getCoreDistance(p);
+			windowIndex[p] = i;
+			if(arrived[p]){
+				numArrived++;
+			}
+		}
+		BallTree tree = new BallTree(lon, lat, order, size, k);
+		MinimumSpanningTree mst;
+		if(numTreeEdges < 0 || 2 * numArrived > size){
+			mst = tree.calculateMST(core);
+		}else{
+			// the larger of the core distances in the previous tree and now
+			double[] upper = new double[size];
+			boolean[] search = new boolean[size];
+			boolean lighter = false;
+			for(int i = 0; i < size; i++){
+				int p = order[i];
+				upper[i] = arrived[p] ? core[i] : Math.max(core[i], treeCore[p]);
+				search[i] = arrived[p] || core[i] < treeCore[p];
+				lighter |= search[i];
+			}
+			mst = reconnect(tree, order, upper);
+			if(lighter){
+				mst = insert(tree, order, core, mst, search);
+			}
+		}
+		if(treeFrom == null || treeFrom.length < mst.getNumEdges()){
+			treeFrom = new int[capacity];
+			treeTo = new int[capacity];
+			treeWeights = new double[capacity];
+		}
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			treeFrom[e] = order[mst.getFrom(e)];
+			treeTo[e] = order[mst.getTo(e)];
+			treeWeights[e] = mst.getWeight(e);
+		}
+		numTreeEdges = mst.getNumEdges();
+		for(int i = 0; i < size; i++){
+			arrived[order[i]] = false;
+			treeCore[order[i]] = core[i];
+		}
+		return mst;
+	}
+
+	/**
+	 * Computes the spanning tree of the points that were in the previous
+	 * tree, with every point at the larger of its core distances then and
+	 * now, so that no edge became lighter. The edges of the previous tree
+	 * that kept their weight stay in the tree when expired points are removed
+	 * and other edges become heavier. The pieces they form are joined with
+	 * Boruvka rounds in which every piece but the largest searches its
+	 * lightest edge to another. An edge out of a piece was no lighter than
+	 * the heaviest edge on the previous tree path between its ends, which
+	 * leaves the piece through a cut edge, so the heaviest edge on the path
+	 * from a point to its nearest cut edge bounds the searches from it.
+	 * The cut edges that only became heavier bound the first searches of
+	 * every round, then the points at a cut edge search, then the others.
+	 * Every point keeps the lower bound found for it in earlier rounds, and
+	 * the lightest edge out of it while its other end stays outside.
+	 * Arrived points are left out of the tree.
+	 * @param upper The core distance of every point in the window
+	 */
+	private MinimumSpanningTree reconnect(BallTree tree, int[] order, double[] upper) {
+		MinimumSpanningTree mst = new MinimumSpanningTree(size);
+		UnionFind uf = new UnionFind(size);
+		int numArrived = 0;
+		int[] component = new int[size];
+		for(int i = 0; i < size; i++){
+			if(arrived[order[i]]){
+				component[i] = -1;
+				numArrived++;
+			}
+		}
+		// the lightest cut edge of every point, and the cut edges between kept points
+		double[] cut = new double[size];
+		Arrays.fill(cut, Double.POSITIVE_INFINITY);
+		int[] raisedFrom = new int[numTreeEdges];
+		int[] raisedTo = new int[numTreeEdges];
+		double[] raisedWeights = new double[numTreeEdges];
+		int numRaised = 0;
+		for(int e = 0; e < numTreeEdges; e++){
+			int p1 = treeFrom[e];
+			int p2 = treeTo[e];
+			boolean kept1 = cellOf[p1] != null && !arrived[p1];
+			boolean kept2 = cellOf[p2] != null && !arrived[p2];
+			if(kept1 && kept2){
+				int i1 = windowIndex[p1];
+				int i2 = windowIndex[p2];
+				if(Math.max(upper[i1], upper[i2]) <= treeWeights[e]){
+					uf.union(i1, i2);
+					mst.addEdge(i1, i2, treeWeights[e]);
+				}else{
+					cut[i1] = Math.min(cut[i1], treeWeights[e]);
+					cut[i2] = Math.min(cut[i2], treeWeights[e]);
+					raisedFrom[numRaised] = i1;
+					raisedTo[numRaised] = i2;
+					raisedWeights[numRaised++] = Math.max(upper[i1], upper[i2]);
+				}
+			}else if(kept1){
+				cut[windowIndex[p1]] = Math.min(cut[windowIndex[p1]], treeWeights[e]);
+			}else if(kept2){
+				cut[windowIndex[p2]] = Math.min(cut[windowIndex[p2]], treeWeights[e]);
+			}
+		}
+		double[] lowerBound = getPathBounds(mst, cut);
+		for(int i = 0; i < size; i++){
+			lowerBound[i] = Math.max(lowerBound[i], upper[i]);
+		}
+		double[] bestWeight = new double[size];
+		int[] bestFrom = new int[size];
+		int[] bestTo = new int[size];
+		int[] partner = new int[size];
+		double[] partnerWeights = new double[size];
+		Arrays.fill(partner, -1);
+		while(uf.getNumComponents() - numArrived > 1){
+			int largest = -1;
+			for(int i = 0; i < size; i++){
+				if(component[i] >= 0){
+					component[i] = uf.find(i);
+				}
+				bestWeight[i] = Double.POSITIVE_INFINITY;
+				bestTo[i] = -1;
+				if(component[i] == i && (largest < 0 || uf.getSize(i) > uf.getSize(largest))){
+					largest = i;
+				}
+			}
+			for(int e = 0; e < numRaised; e++){
+				int c1 = component[raisedFrom[e]];
+				int c2 = component[raisedTo[e]];
+				if(c1 != c2 && c1 != largest && raisedWeights[e] < bestWeight[c1]){
+					bestWeight[c1] = raisedWeights[e];
+					bestFrom[c1] = raisedFrom[e];
+					bestTo[c1] = raisedTo[e];
+				}
+				if(c1 != c2 && c2 != largest && raisedWeights[e] < bestWeight[c2]){
+					bestWeight[c2] = raisedWeights[e];
+					bestFrom[c2] = raisedTo[e];
+					bestTo[c2] = raisedFrom[e];
+				}
+			}
+			for(int i = 0; i < size; i++){
+				int c = component[i];
+				if(c >= 0 && c != largest && partner[i] >= 0 && component[partner[i]] != c
+						&& partnerWeights[i] < bestWeight[c]){
+					bestWeight[c] = partnerWeights[i];
+					bestFrom[c] = i;
+					bestTo[c] = partner[i];
+				}
+			}
+			BallTree.ComponentSearch search = tree.new ComponentSearch(upper, component);
+			for(int pass = 0; pass < 2; pass++){
+				for(int i = 0; i < size; i++){
+					int c = component[i];
+					if(c < 0 || c == largest || (cut[i] < Double.POSITIVE_INFINITY) != (pass == 0)
+							|| lowerBound[i] >= bestWeight[c] || (partner[i] >= 0 && component[partner[i]] != c)){
+						continue;
+					}
+					int j = search.search(lon[order[i]], lat[order[i]], upper[i], c, bestWeight[c]);
+					partner[i] = j;
+					if(j >= 0){
+						bestWeight[c] = search.getWeight();
+						bestFrom[c] = i;
+						bestTo[c] = j;
+						partnerWeights[i] = bestWeight[c];
+					}
+					// the lightest edge to another component only grows as components merge
+					lowerBound[i] = bestWeight[c];
+				}
+			}
+			for(int c = 0; c < size; c++){
+				if(bestTo[c] >= 0 && uf.union(bestFrom[c], bestTo[c]) >= 0){
+					mst.addEdge(bestFrom[c], bestTo[c], bestWeight[c]);
+				}
+			}
+		}
+		return mst;
+	}
+
+	/**
+	 * @param forest The edges of a spanning forest
+	 * @param sources A value at every vertex
+	 * @return for every vertex the smallest over all vertices of the larger
+	 *         of their value and the heaviest edge on the path to them
+	 */
+	private static double[] getPathBounds(MinimumSpanningTree forest, double[] sources) {
+		int n = forest.getNumVertices();
+		int[] start = new int[n + 1];
+		for(int e = 0; e < forest.getNumEdges(); e++){
+			start[forest.getFrom(e) + 1]++;
+			start[forest.getTo(e) + 1]++;
+		}
+		for(int v = 0; v < n; v++){
+			start[v + 1] += start[v];
+		}
+		int[] fill = Arrays.copyOf(start, n);
+		int[] adjacent = new int[start[n]];
+		double[] adjacentWeights = new double[start[n]];
+		for(int e = 0; e < forest.getNumEdges(); e++){
+			int from = forest.getFrom(e);
+			int to = forest.getTo(e);
+			adjacent[fill[from]] = to;
+			adjacentWeights[fill[from]++] = forest.getWeight(e);
+			adjacent[fill[to]] = from;
+			adjacentWeights[fill[to]++] = forest.getWeight(e);
+		}
+		// every tree in breadth first order from its first vertex
+		int[] order = new int[n];
+		int[] parent = new int[n];
+		double[] parentWeights = new double[n];
+		boolean[] visited = new boolean[n];
+		int numOrdered = 0;
+		for(int root = 0; root < n; root++){
+			if(visited[root]){
+				continue;
+			}
+			visited[root] = true;
+			parent[root] = -1;
+			order[numOrdered++] = root;
+			for(int i = numOrdered - 1; i < numOrdered; i++){
+				int v = order[i];
+				for(int a = start[v]; a < start[v + 1]; a++){
+					int w = adjacent[a];
+					if(!visited[w]){
+						visited[w] = true;
+						parent[w] = v;
+						parentWeights[w] = adjacentWeights[a];
+						order[numOrdered++] = w;
+					}
+				}
+			}
+		}
+		double[] bounds = Arrays.copyOf(sources, n);
+		// first over the subtree of every vertex, then over its whole tree
+		for(int i = n - 1; i > 0; i--){
+			int v = order[i];
+			if(parent[v] >= 0){
+				bounds[parent[v]] = Math.min(bounds[parent[v]], Math.max(bounds[v], parentWeights[v]));
+			}
+		}
+		for(int i = 1; i < n; i++){
+			int v = order[i];
+			if(parent[v] >= 0){
+				bounds[v] = Math.min(bounds[v], Math.max(bounds[parent[v]], parentWeights[v]));
+			}
+		}
+		return bounds;
+	}
+
+	/**
+	 * Adds the arrived points and the edges that became lighter to the
+	 * spanning tree of the other points. Every arrived point is tied to an
+	 * anchor, a point of the tree, by its lightest edge to one of its
+	 * neighbors, or to the point found by a search if none is in the tree.
+	 * An edge can only replace the heaviest edge of the cycle it closes if
+	 * it is lighter than the bottleneck of the tree path through the anchors,
+	 * so only such edges are searched from the arrived points and the points
+	 * whose core distance shrank. Kruskal's algorithm over the tree, the
+	 * anchor edges and these edges then drops the heaviest edge of every cycle.
+	 * @param search Whether to search the edges of a point
+	 */
+	private MinimumSpanningTree insert(BallTree tree, int[] order, double[] core, MinimumSpanningTree kept,
+			boolean[] search) {
+		int[] anchors = new int[size];
+		double[] offsets = new double[size];
+		BallTree.ComponentSearch treeSearch = null;
+		for(int i = 0; i < size; i++){
+			int p = order[i];
+			anchors[i] = i;
+			if(!arrived[p]){
+				continue;
+			}
+			anchors[i] = -1;
+			offsets[i] = Double.POSITIVE_INFINITY;
+			for(int n = 0; n < numNeighbors[p]; n++){
+				int q = neighbors[p * k + n];
+				double weight = Math.max(Math.max(core[i], getCoreDistance(q)), neighborDistances[p * k + n]);
+				if(!arrived[q] && weight < offsets[i]){
+					anchors[i] = windowIndex[q];
+					offsets[i] = weight;
+				}
+			}
+			if(anchors[i] < 0){
+				if(treeSearch == null){
+					// the tree as one component, searched from outside it
+					int[] component = new int[size];
+					for(int j = 0; j < size; j++){
+						component[j] = arrived[order[j]] ? -1 : 0;
+					}
+					treeSearch = tree.new ComponentSearch(core, component);
+				}
+				anchors[i] = treeSearch.search(lon[p], lat[p], core[i], 1, Double.POSITIVE_INFINITY);
+				offsets[i] = treeSearch.getWeight();
+			}
+		}
+
+		int numEdges = kept.getNumEdges();
+		int[] from = new int[2 * numEdges + 1];
+		int[] to = new int[from.length];
+		double[] weights = new double[from.length];
+		for(int e = 0; e < numEdges; e++){
+			from[e] = kept.getFrom(e);
+			to[e] = kept.getTo(e);
+			weights[e] = kept.getWeight(e);
+		}
+		BallTree.InsertionSearch edges = tree.new InsertionSearch(core, anchors, offsets, new BottleneckIndex(kept));
+		for(int i = 0; i < size; i++){
+			if(!search[i]){
+				continue;
+			}
+			int numFound = edges.search(i);
+			if(numEdges + numFound + 1 > from.length){
+				int length = Math.max(2 * from.length, numEdges + numFound + 1);
+				from = Arrays.copyOf(from, length);
+				to = Arrays.copyOf(to, length);
+				weights = Arrays.copyOf(weights, length);
+			}
+			if(anchors[i] != i){
+				from[numEdges] = i;
+				to[numEdges] = anchors[i];
+				weights[numEdges++] = offsets[i];
+			}
+			for(int n = 0; n < numFound; n++){
+				from[numEdges] = i;
+				to[numEdges] = edges.getPoint(n);
+				weights[numEdges++] = edges.getWeight(n);
+			}
+		}
+		return MinimumSpanningTree.kruskal(size, from, to, weights, numEdges);
+	}
+
+	/**
+	 * @return the number of points in the window
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	public long getEmitMillis() {
+		return emitMillis;
+	}
+
+	public ClusterSelection getSelection() {
+		return selection;
+	}
+
+	public void setSelection(ClusterSelection selection) {
+		this.selection = selection;
+	}
+
+	/**
+	 * The points of one cell of the neighbor grid or of a core grid level.
+	 */
+	private static class Cell {
+		private int level;
+		private long x;
+		private long y;
+		private int[] slots = new int[8];
+		private int size;
+
+		Cell(int level, long x, long y) {
+			this.level = level;
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * @return the position of the slot in the cell
+		 */
+		int add(int slot) {
+			if(size == slots.length){
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			slots[size] = slot;
+			return size++;
+		}
+
+		/**
+		 * Removes the slot at a position by moving the last slot there.
+		 * @return the moved slot, or -1 if the removed one was last
+		 */
+		int remove(int position) {
+			size--;
+			if(position == size){
+				return -1;
+			}
+			slots[position] = slots[size];
+			return slots[position];
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package hdbscan;
+
+import java.util.Arrays;
+
+/**
+ * Clusters from a precomputed {@link NeighborGraph} instead of coordinates,
+ * for distances no tree can bound, such as travel distances from a routing
+ * engine. The core distance of a vertex is read from its row, and the
+ * spanning tree is built with Kruskal's algorithm over the listed edges
+ * weighted by mutual reachability distance. Vertices joined by no path of
+ * listed edges end up in separate components of a spanning forest; the
+ * components are reported and the cluster tree joins them at an infinite
+ * distance.
+ */
+public class SparseGraphHDBSCAN {
+
+	private NeighborGraph graph;
+	private int[] weights;
+	private int k;
+	private double[] coreDistances;
+	private int[] components;
+	private int numComponents;
+
+	/**
+	 * @param graph The distance graph, with at least the k nearest neighbors of every vertex
+	 * @param weights The multiplicity of every vertex, or null for all ones
+	 * @param k The number of neighbors used for core distances
+	 */
+	public SparseGraphHDBSCAN(NeighborGraph graph, int[] weights, int k) {
+		this.graph = graph;
+		this.weights = weights;
+		this.k = k;
+	}
+
+	/**
+	 * Sets the core distances from the rows of the graph, with weights
+	 * counting towards k like in {@link BallTree#findKNN()}. If a row lists
+	 * fewer than k neighbors, the core distance is the distance to the
+	 * farthest one.
+	 * @return the core distance of every vertex
+	 */
+	public double[] calculateCoreDistances() {
+		int[] offsets = graph.getOffsets();
+		int[] neighbors = graph.getNeighbors();
+		double[] distances = graph.getDistances();
+		coreDistances = new double[graph.getNumVertices()];
+		BallTree.NeighborList list = new BallTree.NeighborList(k);
+		for(int i = 0; i < coreDistances.length; i++){
+			list.clear(weight(i));
+			for(int e = offsets[i]; e < offsets[i + 1]; e++){
+				if(neighbors[e] != i){
+					list.offer(neighbors[e], distances[e], weight(neighbors[e]));
+				}
+			}
+			coreDistances[i] = list.size() > 0 ? list.getDistance(list.size() - 1) : 0.0;
+		}
+		return coreDistances;
+	}
+
+	/**
+	 * Computes the minimum spanning forest of the listed edges weighted by
+	 * mutual reachability distance and labels its components. The core
+	 * distances are calculated first if needed.
+	 * @return The spanning tree over the vertices, a forest if the graph is not connected
+	 */
+	public MinimumSpanningTree calculateMST() {
+		if(coreDistances == null){
+			calculateCoreDistances();
+		}
+		int[] offsets = graph.getOffsets();
+		int[] neighbors = graph.getNeighbors();
+		double[] distances = graph.getDistances();
+		int numEntries = graph.getNumEntries();
+		int[] from = new int[numEntries];
+		int[] to = new int[numEntries];
+		double[] reach = new double[numEntries];
+		int numEdges = 0;
+		for(int i = 0; i < graph.getNumVertices(); i++){
+			for(int e = offsets[i]; e < offsets[i + 1]; e++){
+				int j = neighbors[e];
+				if(j != i){
+					from[numEdges] = i;
+					to[numEdges] = j;
+					reach[numEdges] = Math.max(distances[e], Math.max(coreDistances[i], coreDistances[j]));
+					numEdges++;
+				}
+			}
+		}
+		MinimumSpanningTree mst = MinimumSpanningTree.kruskal(graph.getNumVertices(), from, to, reach, numEdges);
+		labelComponents(mst);
+		return mst;
+	}
+
+	/**
+	 * Numbers the components of the forest in the order of their first vertex.
+	 */
+	private void labelComponents(MinimumSpanningTree mst) {
+		int n = mst.getNumVertices();
+		UnionFind uf = new UnionFind(n);
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			uf.union(mst.getFrom(e), mst.getTo(e));
+		}
+		int[] componentOf = new int[n];
+		Arrays.fill(componentOf, -1);
+		components = new int[n];
+		numComponents = 0;
+		for(int v = 0; v < n; v++){
+			int root = uf.find(v);
+			if(componentOf[root] < 0){
+				componentOf[root] = numComponents++;
+			}
+			components[v] = componentOf[root];
+		}
+	}
+
+	/**
+	 * Builds the spanning forest, condenses its cluster tree and
+	 * selects flat clusters.
+	 * @param minClSize The smallest number of points in a cluster, counting multiplicities
+	 * @param selection Excess of mass or leaf selection
+	 * @return Labels and membership probabilities aligned with the vertices
+	 */
+	public FlatClustering cluster(int minClSize, ClusterSelection selection) {
+		MinimumSpanningTree mst = calculateMST();
+		SingleLinkageTree slt = new SingleLinkageTree(mst, weights);
+		return new CondensedTree(slt, minClSize).extractClusters(selection);
+	}
+
+	private int weight(int i) {
+		return weights == null ? 1 : weights[i];
+	}
+
+	/**
+	 * @return the core distance of every vertex, or null before they are calculated
+	 */
+	public double[] getCoreDistances() {
+		return coreDistances;
+	}
+
+	/**
+	 * @return the component of every vertex in the spanning forest, numbered
+	 *         in the order of their first vertex, or null before
+	 *         {@link #calculateMST()}
+	 */
+	public int[] getComponents() {
+		return components;
+	}
+
+	/**
+	 * @return the number of connected components of the graph, 1 if it is
+	 *         connected, or 0 before {@link #calculateMST()}
+	 */
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public NeighborGraph getGraph() {
+		return graph;
+	}
+
+	public int getK() {
+		return k;
+	}
+}
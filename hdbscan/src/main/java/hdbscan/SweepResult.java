@@ -0,0 +1,82 @@
+package hdbscan;
+
+/**
+ * The outcome of one parameter setting of a {@link ParameterSweep}: the flat
+ * clustering and a summary of how stable its clusters are.
+ */
+public class SweepResult {
+
+	private int k;
+	private int minClSize;
+	private FlatClustering clustering;
+	private double[] clusterStabilities;
+	private double totalStability;
+	private int numNoise;
+
+	/**
+	 * @param minClSize The minimum cluster size the clustering was extracted with
+	 * @param clustering The labels, aligned with the input rows
+	 * @param clusterStabilities The stability of every selected cluster, indexed by label
+	 */
+	public SweepResult(int minClSize, FlatClustering clustering, double[] clusterStabilities) {
+		this(-1, minClSize, clustering, clusterStabilities);
+	}
+
+	/**
+	 * @param k The number of neighbors the core distances were computed with,
+	 *          or -1 if it was not part of the sweep
+	 */
+	public SweepResult(int k, int minClSize, FlatClustering clustering, double[] clusterStabilities) {
+		this.k = k;
+		this.minClSize = minClSize;
+		this.clustering = clustering;
+		this.clusterStabilities = clusterStabilities;
+		this.totalStability = 0.0;
+		for(double stability : clusterStabilities){
+			totalStability += stability;
+		}
+		this.numNoise = 0;
+		for(int label : clustering.getLabels()){
+			if(label == FlatClustering.NOISE){
+				numNoise++;
+			}
+		}
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getMinClSize() {
+		return minClSize;
+	}
+
+	public FlatClustering getClustering() {
+		return clustering;
+	}
+
+	public int getNumClusters() {
+		return clustering.getNumClusters();
+	}
+
+	public double[] getClusterStabilities() {
+		return clusterStabilities;
+	}
+
+	public double getTotalStability() {
+		return totalStability;
+	}
+
+	/**
+	 * @return the number of input rows labelled as noise
+	 */
+	public int getNumNoise() {
+		return numNoise;
+	}
+
+	@Override
+	public String toString() {
+		return "SweepResult [k=" + k + ", minClSize=" + minClSize + ", numClusters=" + getNumClusters() + ", totalStability="
+				+ totalStability + ", numNoise=" + numNoise + "]";
+	}
+}
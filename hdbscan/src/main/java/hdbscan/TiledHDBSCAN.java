@@ -0,0 +1,703 @@
+package hdbscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Computes the mutual reachability minimum spanning tree of data sets whose
+ * {@link KdNode}s, JGraphT graphs or single {@link BallTree} would not fit in
+ * the heap. Points are kept in primitive arrays and partitioned into spatial
+ * tiles of at most maxTilePoints points; the tree structures exist for a few
+ * tiles at a time, and the candidate edges are spilled to disk. The points
+ * themselves, their core distances and a few other arrays per point stay on
+ * the heap, as does the final tree, which the rest of the pipeline needs.
+ *
+ * <ol>
+ * <li> Core distances: the neighbors of the points of a tile are searched in
+ *      the tile itself and then in the other tiles in ascending order of their
+ *      distance, until a tile is farther than every neighbor bound.</li>
+ * <li> Tile trees: every tile gets a halo of the points of other tiles within
+ *      a margin of its box, the margin being a high quantile of the core
+ *      distances in the tile. The spanning tree of the tile and its halo is
+ *      sorted and written to disk as one run of edges.</li>
+ * <li> Merge: the runs are merged by weight and fed to Kruskal's algorithm.
+ *      An edge is kept while no edge outside every halo can be lighter, which
+ *      holds as long as it is no heavier than the margin of every tile of the
+ *      component it leaves and that component has not skipped an edge.</li>
+ * <li> Completion: Boruvka's algorithm, like {@link BallTree#calculateMST()},
+ *      joins the remaining components. Every round finds the lightest edge
+ *      leaving every component, searching from each tile into the tiles in
+ *      ascending order of distance until a tile is farther than the lightest
+ *      edges found so far.</li>
+ * </ol>
+ *
+ * <p>Only edges that provably belong to a minimum spanning tree are kept
+ * from the merge, and the searches only skip tiles that provably hold no
+ * better candidate, so the core distances and the tree are exact, the same as
+ * those of a single ball tree over all points. The ball trees of the last
+ * few tiles searched are kept for the next searches.</p>
+ */
+public class TiledHDBSCAN {
+
+	private static final int R = 6371; // Radius of the earth
+	// the number of tiles whose ball trees are kept between searches
+	static final int CACHED_TILES = 8;
+	// the fraction of the core distances of a tile its halo margin covers
+	private static final double HALO_QUANTILE = 0.95;
+	// a meter, below which a margin is dropped to 0
+	private static final double MIN_MARGIN = 0.001;
+	// bytes per spilled edge, and the buffer of every run while merging
+	static final int EDGE_BYTES = 4 + 4 + 8;
+	static final int RUN_BUFFER_SIZE = 1 << 13;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private double[] lon;
+	private double[] lat;
+	private int[] weights;
+	private int k;
+	private int maxTilePoints;
+	private int size;
+
+	// points grouped by tile
+	private int[] order;
+	private int numTiles;
+	private int[] tileStart;
+	private int[] tileEnd;
+	private double[] tileMinX;
+	private double[] tileMaxX;
+	private double[] tileMinY;
+	private double[] tileMaxY;
+
+	private int[] tileOf;
+
+	private double[] coreDistances;
+	private double[] haloDistance;
+	private File spillDirectory;
+	private int numMergedEdges;
+	private Map<Integer, BallTree> trees;
+
+	/**
+	 * Partitions the points into tiles.
+	 * @param lon Longitudes in degrees
+	 * @param lat Latitudes in degrees
+	 * @param weights The multiplicity of every point, or null for all ones
+	 * @param k The number of neighbors used for core distances
+	 * @param maxTilePoints The largest number of points in a tile, which bounds memory use
+	 */
+	public TiledHDBSCAN(double[] lon, double[] lat, int[] weights, int k, int maxTilePoints) {
+		this.lon = lon;
+		this.lat = lat;
+		this.weights = weights;
+		this.k = k;
+		this.maxTilePoints = maxTilePoints;
+		this.size = lon.length;
+		this.order = new int[size];
+		for(int i = 0; i < size; i++){
+			order[i] = i;
+		}
+		int capacity = 2 * (size / Math.max(maxTilePoints / 2, 1) + 1);
+		tileStart = new int[capacity];
+		tileEnd = new int[capacity];
+		tileMinX = new double[capacity];
+		tileMaxX = new double[capacity];
+		tileMinY = new double[capacity];
+		tileMaxY = new double[capacity];
+		numTiles = 0;
+		if(size > 0){
+			makeTiles(0, size);
+		}
+		tileOf = new int[size];
+		for(int tile = 0; tile < numTiles; tile++){
+			for(int i = tileStart[tile]; i < tileEnd[tile]; i++){
+				tileOf[order[i]] = tile;
+			}
+		}
+		trees = new LinkedHashMap<Integer, BallTree>(2 * CACHED_TILES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BallTree> eldest) {
+				return size() > CACHED_TILES;
+			}
+		};
+	}
+
+	/**
+	 * Recursively splits positions [start, end) of the order at the median of
+	 * the wider side of their bounding box until a range fits in one tile.
+	 */
+	private void makeTiles(int start, int end) {
+		double minX = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for(int i = start; i < end; i++){
+			int p = order[i];
+			if(lon[p] < minX) minX = lon[p];
+			if(lon[p] > maxX) maxX = lon[p];
+			if(lat[p] < minY) minY = lat[p];
+			if(lat[p] > maxY) maxY = lat[p];
+		}
+		if(end - start <= maxTilePoints){
+			int tile = numTiles++;
+			tileStart[tile] = start;
+			tileEnd[tile] = end;
+			tileMinX[tile] = minX;
+			tileMaxX[tile] = maxX;
+			tileMinY[tile] = minY;
+			tileMaxY[tile] = maxY;
+			return;
+		}
+		double width = (maxX - minX) * Math.cos(Math.toRadians((minY + maxY) / 2));
+		double[] values = width > maxY - minY ? lon : lat;
+		int mid = (start + end) >>> 1;
+		select(values, start, end - 1, mid);
+		makeTiles(start, mid);
+		makeTiles(mid, end);
+	}
+
+	private void select(double[] values, int lo, int hi, int n) {
+		while(hi > lo){
+			double pivot = values[order[(lo + hi) >>> 1]];
+			int i = lo;
+			int j = hi;
+			while(i <= j){
+				while(values[order[i]] < pivot) i++;
+				while(values[order[j]] > pivot) j--;
+				if(i <= j){
+					int temp = order[i];
+					order[i] = order[j];
+					order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if(n <= j){
+				hi = j;
+			}else if(n >= i){
+				lo = i;
+			}else{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A lower bound on the great-circle distance in kilometers between any
+	 * two points of two tiles, see {@link #boxDistance}.
+	 */
+	private double tileDistance(int tile, int other) {
+		return boxDistance(tileMinX[tile], tileMaxX[tile], tileMinY[tile], tileMaxY[tile],
+				tileMinX[other], tileMaxX[other], tileMinY[other], tileMaxY[other]);
+	}
+
+	/**
+	 * A lower bound on the great-circle distance in kilometers between a
+	 * point and any point of a tile.
+	 */
+	private double pointDistance(int p, int tile) {
+		return boxDistance(lon[p], lon[p], lat[p], lat[p], tileMinX[tile], tileMaxX[tile], tileMinY[tile], tileMaxY[tile]);
+	}
+
+	/**
+	 * A lower bound on the great-circle distance in kilometers between two
+	 * lon/lat boxes: the latitudes differ by at least the latitude gap, and
+	 * the longitudes by at least the longitude gap at the highest latitude of
+	 * either box.
+	 */
+	private static double boxDistance(double minX1, double maxX1, double minY1, double maxY1,
+			double minX2, double maxX2, double minY2, double maxY2) {
+		double latGap = Math.max(0.0, Math.max(minY2 - maxY1, minY1 - maxY2));
+		double lonGap = lonGap(minX1, maxX1, minX2, maxX2);
+		double maxAbsLat = Math.max(Math.max(Math.abs(minY1), Math.abs(maxY1)), Math.max(Math.abs(minY2), Math.abs(maxY2)));
+		double cosLat = Math.cos(Math.toRadians(Math.min(maxAbsLat, 90.0)));
+		double sinLat = Math.sin(Math.toRadians(latGap) / 2);
+		double sinLon = Math.sin(Math.toRadians(lonGap) / 2);
+		double a = sinLat * sinLat + cosLat * cosLat * sinLon * sinLon;
+		return 2 * R * Math.asin(Math.min(1.0, Math.sqrt(a)));
+	}
+
+	/**
+	 * The smallest longitude difference in degrees between two longitude
+	 * intervals, going around the antimeridian if that is shorter.
+	 */
+	private static double lonGap(double min1, double max1, double min2, double max2) {
+		double gap = Math.max(0.0, Math.max(min2 - max1, min1 - max2));
+		double wrapped = 360.0 - (Math.max(max1, max2) - Math.min(min1, min2));
+		return Math.max(0.0, Math.min(gap, wrapped));
+	}
+
+	/**
+	 * Sorts all tiles by their distance bound from a tile, which comes first.
+	 * @param distance Receives the distance bound of every tile
+	 * @return the tiles, nearest first
+	 */
+	private Integer[] tilesByDistance(int tile, final double[] distance) {
+		Integer[] tiles = new Integer[numTiles];
+		for(int other = 0; other < numTiles; other++){
+			tiles[other] = other;
+			distance[other] = other == tile ? 0.0 : tileDistance(tile, other);
+		}
+		final int first = tile;
+		Arrays.sort(tiles, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				if(i == first || j == first){
+					return i == first ? (j == first ? 0 : -1) : 1;
+				}
+				return Double.compare(distance[i], distance[j]);
+			}
+		});
+		return tiles;
+	}
+
+	/**
+	 * Builds a ball tree over the points of a tile, whose input index i is
+	 * the point at position <code>tileStart[tile] + i</code> of the order.
+	 */
+	private BallTree makeBallTree(int tile) {
+		int start = tileStart[tile];
+		Coordinate[] points = new Coordinate[tileEnd[tile] - start];
+		int[] tileWeights = weights == null ? null : new int[points.length];
+		for(int i = 0; i < points.length; i++){
+			int p = order[start + i];
+			points[i] = new Coordinate(lon[p], lat[p]);
+			if(tileWeights != null){
+				tileWeights[i] = weights[p];
+			}
+		}
+		return new BallTree(points, tileWeights, k);
+	}
+
+	/**
+	 * Returns the ball tree of a tile from the cache of the last tiles
+	 * searched, building it on a miss.
+	 */
+	private BallTree tileTree(int tile) {
+		BallTree tree = trees.get(tile);
+		if(tree == null){
+			tree = makeBallTree(tile);
+			trees.put(tile, tree);
+		}
+		return tree;
+	}
+
+	private int weight(int p) {
+		return weights == null ? 1 : weights[p];
+	}
+
+	/**
+	 * Computes the core distance of every point, one tile at a time. The
+	 * neighbors found within the tile bound the search of the other tiles,
+	 * which are searched nearest first until one is farther than the k-th
+	 * neighbor of every point of the tile.
+	 */
+	public void findKNN() {
+		coreDistances = new double[size];
+		double[] distance = new double[numTiles];
+		for(int tile = 0; tile < numTiles; tile++){
+			int start = tileStart[tile];
+			int count = tileEnd[tile] - start;
+			BallTree own = makeBallTree(tile);
+			own.findKNN();
+			BallTree.NeighborList[] lists = new BallTree.NeighborList[count];
+			for(int i = 0; i < count; i++){
+				lists[i] = new BallTree.NeighborList(k);
+				lists[i].clear(weight(order[start + i]));
+				for(int j = 0; j < k && own.getNeighbors()[i * k + j] >= 0; j++){
+					int neighbor = own.getNeighbors()[i * k + j];
+					lists[i].offer(neighbor, own.getNeighborDistance(i * k + j), weight(order[start + neighbor]));
+				}
+			}
+			own = null;
+			Integer[] others = tilesByDistance(tile, distance);
+			for(int t = 1; t < numTiles; t++){
+				int other = others[t];
+				double maxBound = 0.0;
+				for(int i = 0; i < count; i++){
+					maxBound = Math.max(maxBound, lists[i].bound());
+				}
+				if(distance[other] >= maxBound){
+					break;
+				}
+				BallTree tree = tileTree(other);
+				for(int i = 0; i < count; i++){
+					if(distance[other] < lists[i].bound()){
+						int p = order[start + i];
+						tree.query(lon[p], lat[p], lists[i]);
+					}
+				}
+			}
+			for(int i = 0; i < count; i++){
+				BallTree.NeighborList list = lists[i];
+				coreDistances[order[start + i]] = list.size() > 0 ? list.getDistance(list.size() - 1) : 0.0;
+			}
+		}
+	}
+
+	/**
+	 * Computes the spanning tree from the tile trees spilled to disk and
+	 * completes it with Boruvka's algorithm over the tiles. The runs are
+	 * written to a temporary directory in the spill directory and deleted
+	 * when the merge ends. {@link #findKNN()} must have been called.
+	 * @return The spanning tree over the point indices
+	 * @throws IOException if the runs cannot be written or read
+	 */
+	public MinimumSpanningTree calculateMST() throws IOException {
+		MinimumSpanningTree mst = new MinimumSpanningTree(size);
+		UnionFind uf = new UnionFind(size);
+		if(size > 1){
+			calculateHalos();
+			File dir = spillDirectory == null ? Files.createTempDirectory("hdbscan-tiles").toFile()
+					: Files.createTempDirectory(spillDirectory.toPath(), "hdbscan-tiles").toFile();
+			File[] runs = new File[numTiles];
+			try{
+				for(int tile = 0; tile < numTiles; tile++){
+					runs[tile] = new File(dir, "tile-" + tile + ".edges");
+					writeRun(tile, runs[tile]);
+				}
+				mergeRuns(runs, uf, mst);
+			}finally{
+				for(File run : runs){
+					if(run != null){
+						run.delete();
+					}
+				}
+				dir.delete();
+			}
+			completeBoruvka(uf, mst);
+		}
+		trees.clear();
+		return mst;
+	}
+
+	/**
+	 * Sets the halo margin of every tile to a high quantile of its core
+	 * distances, halved until the halo holds at most maxTilePoints points.
+	 * Points on the boundary of the tile can still be too many at a margin of
+	 * 0, and the tile then gets no halo and a negative margin.
+	 */
+	private void calculateHalos() {
+		haloDistance = new double[numTiles];
+		double[] distance = new double[numTiles];
+		for(int tile = 0; tile < numTiles; tile++){
+			int start = tileStart[tile];
+			double[] core = new double[tileEnd[tile] - start];
+			for(int i = 0; i < core.length; i++){
+				core[i] = coreDistances[order[start + i]];
+			}
+			Arrays.sort(core);
+			double margin = core[(int) ((core.length - 1) * HALO_QUANTILE)];
+			Integer[] others = tilesByDistance(tile, distance);
+			while(margin >= 0 && countHalo(tile, others, distance, margin) > maxTilePoints){
+				margin = margin > MIN_MARGIN ? margin / 2 : margin > 0 ? 0.0 : -1.0;
+			}
+			haloDistance[tile] = margin;
+		}
+	}
+
+	/**
+	 * @return the number of points of other tiles within the margin of a tile
+	 */
+	private int countHalo(int tile, Integer[] others, double[] distance, double margin) {
+		int count = 0;
+		for(int t = 1; t < numTiles && distance[others[t]] <= margin; t++){
+			int other = others[t];
+			for(int i = tileStart[other]; i < tileEnd[other]; i++){
+				if(pointDistance(order[i], tile) <= margin){
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Computes the spanning tree of a tile and its halo and writes its edges
+	 * sorted by weight, leaving out the edges heavier than the halo margin of
+	 * both their points, which the merge would never keep.
+	 */
+	private void writeRun(int tile, File run) throws IOException {
+		double margin = haloDistance[tile];
+		double[] distance = new double[numTiles];
+		Integer[] others = tilesByDistance(tile, distance);
+		int[] members = new int[tileEnd[tile] - tileStart[tile] + maxTilePoints];
+		int count = 0;
+		for(int i = tileStart[tile]; i < tileEnd[tile]; i++){
+			members[count++] = order[i];
+		}
+		for(int t = 1; t < numTiles && distance[others[t]] <= margin; t++){
+			int other = others[t];
+			for(int i = tileStart[other]; i < tileEnd[other]; i++){
+				if(pointDistance(order[i], tile) <= margin){
+					members[count++] = order[i];
+				}
+			}
+		}
+		Coordinate[] points = new Coordinate[count];
+		int[] memberWeights = weights == null ? null : new int[count];
+		double[] core = new double[count];
+		for(int i = 0; i < count; i++){
+			int p = members[i];
+			points[i] = new Coordinate(lon[p], lat[p]);
+			if(memberWeights != null){
+				memberWeights[i] = weights[p];
+			}
+			core[i] = coreDistances[p];
+		}
+		MinimumSpanningTree local = new BallTree(points, memberWeights, k).calculateMST(core);
+		local.sortByWeight();
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))){
+			for(int e = 0; e < local.getNumEdges(); e++){
+				int from = members[local.getFrom(e)];
+				int to = members[local.getTo(e)];
+				double weight = local.getWeight(e);
+				if(weight <= Math.max(haloDistance[tileOf[from]], haloDistance[tileOf[to]])){
+					out.writeInt(from);
+					out.writeInt(to);
+					out.writeDouble(weight);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the runs by weight into Kruskal's algorithm. Every edge outside
+	 * all halos leaving a point is heavier than the margin of the point's
+	 * tile, so an edge is the lightest leaving a component if it is no
+	 * heavier than the smallest margin in the component, provided no lighter
+	 * edge of the runs was skipped at the component. Such an edge belongs to a
+	 * minimum spanning tree and is kept; any other edge is skipped and marks
+	 * both its components as unsafe, leaving them to {@link #completeBoruvka}.
+	 */
+	private void mergeRuns(File[] runs, UnionFind uf, MinimumSpanningTree mst) throws IOException {
+		double[] margin = new double[size];
+		boolean[] unsafe = new boolean[size];
+		for(int p = 0; p < size; p++){
+			margin[p] = haloDistance[tileOf[p]];
+		}
+		PriorityQueue<EdgeRun> queue = new PriorityQueue<EdgeRun>(Math.max(1, runs.length), new Comparator<EdgeRun>() {
+			@Override
+			public int compare(EdgeRun r1, EdgeRun r2) {
+				return Double.compare(r1.weight, r2.weight);
+			}
+		});
+		List<EdgeRun> open = new ArrayList<EdgeRun>();
+		try{
+			for(File run : runs){
+				EdgeRun edges = new EdgeRun(run);
+				open.add(edges);
+				if(edges.next()){
+					queue.add(edges);
+				}
+			}
+			numMergedEdges = 0;
+			while(!queue.isEmpty()){
+				EdgeRun edges = queue.poll();
+				int root1 = uf.find(edges.from);
+				int root2 = uf.find(edges.to);
+				if(root1 != root2){
+					if((!unsafe[root1] && edges.weight <= margin[root1]) || (!unsafe[root2] && edges.weight <= margin[root2])){
+						int root = uf.union(root1, root2);
+						margin[root] = Math.min(margin[root1], margin[root2]);
+						unsafe[root] = unsafe[root1] || unsafe[root2];
+						mst.addEdge(edges.from, edges.to, edges.weight);
+						numMergedEdges++;
+					}else{
+						unsafe[root1] = true;
+						unsafe[root2] = true;
+					}
+				}
+				if(edges.next()){
+					queue.add(edges);
+				}
+			}
+		}finally{
+			for(EdgeRun edges : open){
+				edges.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the edges of one run in order.
+	 */
+	private static class EdgeRun {
+		private DataInputStream in;
+		private long remaining;
+		int from;
+		int to;
+		double weight;
+
+		EdgeRun(File run) throws IOException {
+			remaining = run.length() / EDGE_BYTES;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+		}
+
+		boolean next() throws IOException {
+			if(remaining == 0){
+				return false;
+			}
+			remaining--;
+			from = in.readInt();
+			to = in.readInt();
+			weight = in.readDouble();
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Joins the components left by the merge with Boruvka's algorithm over
+	 * the tiles.
+	 */
+	private void completeBoruvka(UnionFind uf, MinimumSpanningTree mst) {
+		int[] component = new int[size];
+		double[] bestWeight = new double[size];
+		int[] bestFrom = new int[size];
+		int[] bestTo = new int[size];
+		int[] tileComponent = new int[numTiles];
+		double[] distance = new double[numTiles];
+		while(uf.getNumComponents() > 1){
+			for(int p = 0; p < size; p++){
+				component[p] = uf.find(p);
+				bestWeight[p] = Double.POSITIVE_INFINITY;
+				bestTo[p] = -1;
+			}
+			for(int tile = 0; tile < numTiles; tile++){
+				int c = component[order[tileStart[tile]]];
+				for(int i = tileStart[tile] + 1; i < tileEnd[tile] && c >= 0; i++){
+					if(component[order[i]] != c) c = -1;
+				}
+				tileComponent[tile] = c;
+			}
+			// the component searches of this round, built at most once per cached tile
+			Map<Integer, BallTree.ComponentSearch> searches = new LinkedHashMap<Integer, BallTree.ComponentSearch>(
+					2 * CACHED_TILES, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, BallTree.ComponentSearch> eldest) {
+					return size() > CACHED_TILES;
+				}
+			};
+			for(int tile = 0; tile < numTiles; tile++){
+				Integer[] others = tilesByDistance(tile, distance);
+				for(int other : others){
+					if(tileComponent[tile] >= 0 && tileComponent[tile] == tileComponent[other]){
+						continue;
+					}
+					double maxBest = 0.0;
+					for(int i = tileStart[tile]; i < tileEnd[tile]; i++){
+						maxBest = Math.max(maxBest, bestWeight[component[order[i]]]);
+					}
+					if(distance[other] >= maxBest){
+						break;
+					}
+					BallTree.ComponentSearch search = searches.get(other);
+					if(search == null){
+						search = componentSearch(other, component);
+						searches.put(other, search);
+					}
+					searchTile(tile, other, search, distance[other], component, bestWeight, bestFrom, bestTo);
+				}
+			}
+			for(int c = 0; c < size; c++){
+				if(component[c] == c && bestTo[c] >= 0 && uf.union(bestFrom[c], bestTo[c]) >= 0){
+					mst.addEdge(bestFrom[c], bestTo[c], bestWeight[c]);
+				}
+			}
+		}
+	}
+
+	private BallTree.ComponentSearch componentSearch(int tile, int[] component) {
+		int start = tileStart[tile];
+		int count = tileEnd[tile] - start;
+		double[] core = new double[count];
+		int[] tileComponent = new int[count];
+		for(int i = 0; i < count; i++){
+			core[i] = coreDistances[order[start + i]];
+			tileComponent[i] = component[order[start + i]];
+		}
+		return tileTree(tile).new ComponentSearch(core, tileComponent);
+	}
+
+	/**
+	 * Searches the lightest edges from the points of a tile to the points of
+	 * another tile in other components, updating the best edge of every
+	 * component.
+	 */
+	private void searchTile(int tile, int other, BallTree.ComponentSearch search, double distance, int[] component,
+			double[] bestWeight, int[] bestFrom, int[] bestTo) {
+		for(int i = tileStart[tile]; i < tileEnd[tile]; i++){
+			int p = order[i];
+			int c = component[p];
+			if(Math.max(coreDistances[p], distance) < bestWeight[c]){
+				int q = search.search(lon[p], lat[p], coreDistances[p], c, bestWeight[c]);
+				if(q >= 0){
+					bestWeight[c] = search.getWeight();
+					bestFrom[c] = p;
+					bestTo[c] = order[tileStart[other] + q];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param spillDirectory The directory the runs of tile edges are written
+	 *        to, the default temporary directory if null
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * @return the margin of the halo of every tile in kilometers, set by {@link #calculateMST()}
+	 */
+	public double[] getHaloDistances() {
+		return haloDistance;
+	}
+
+	/**
+	 * @return the number of edges of the tree kept from the merged runs, the
+	 *         others being found by the Boruvka rounds
+	 */
+	public int getNumMergedEdges() {
+		return numMergedEdges;
+	}
+
+	public double[] getCoreDistances() {
+		return coreDistances;
+	}
+
+	public int getNumTiles() {
+		return numTiles;
+	}
+
+	public int getSize() {
+		return size;
+	}
+}
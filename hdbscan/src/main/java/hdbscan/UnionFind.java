@@ -0,0 +1,70 @@
+package hdbscan;
+
+/**
+ * A disjoint-set forest over the integers <code>0..n-1</code> with union by size
+ * and path halving. Used to merge components while building and cutting
+ * minimum spanning trees.
+ */
+public class UnionFind {
+
+	private int[] parent;
+	private int[] size;
+	private int numComponents;
+
+	/**
+	 * Creates n singleton sets.
+	 * @param n The number of elements
+	 */
+	public UnionFind(int n) {
+		this.parent = new int[n];
+		this.size = new int[n];
+		for(int i = 0; i < n; i++){
+			parent[i] = i;
+			size[i] = 1;
+		}
+		this.numComponents = n;
+	}
+
+	/**
+	 * Returns the representative of the set containing element i.
+	 */
+	public int find(int i) {
+		while(parent[i] != i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Merges the sets containing elements i and j.
+	 * @return The representative of the merged set, or -1 if both were already in the same set
+	 */
+	public int union(int i, int j) {
+		int rootI = find(i);
+		int rootJ = find(j);
+		if(rootI == rootJ){
+			return -1;
+		}
+		if(size[rootI] < size[rootJ]){
+			int temp = rootI;
+			rootI = rootJ;
+			rootJ = temp;
+		}
+		parent[rootJ] = rootI;
+		size[rootI] += size[rootJ];
+		numComponents--;
+		return rootI;
+	}
+
+	/**
+	 * Returns the number of elements in the set containing element i.
+	 */
+	public int getSize(int i) {
+		return size[find(i)];
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+}
@@ -0,0 +1,147 @@
+package hdbscan;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * The unique locations of a data set after snapping to a tolerance grid,
+ * together with the number of input rows that fell on each location. Rows are
+ * merged through an open addressing hash table on the snapped coordinates, so
+ * deduplication is a single linear pass.
+ */
+public class WeightedPoints {
+
+	private Coordinate[] points;
+	private int[] weights;
+	private int[] rowIndex;
+	private int[] table;
+	private int mask;
+
+	private WeightedPoints(int numRows) {
+		int capacity = Integer.highestOneBit(Math.max(numRows, 1) * 2 - 1) << 1;
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+		this.points = new Coordinate[Math.max(numRows, 1)];
+		this.weights = new int[Math.max(numRows, 1)];
+		this.rowIndex = new int[numRows];
+	}
+
+	/**
+	 * Snaps every row to the tolerance grid and merges rows that land on the
+	 * same location. The input coordinates are not modified.
+	 * @param rows The input points
+	 * @param tolerance The snap tolerance, or NaN to keep exact coordinates
+	 * @return The unique points, in order of first occurrence, with their weights
+	 */
+	public static WeightedPoints snap(Coordinate[] rows, double tolerance) {
+		WeightedPoints wp = new WeightedPoints(rows.length);
+		int numUnique = 0;
+		for(int row = 0; row < rows.length; row++){
+			double x = rows[row].x;
+			double y = rows[row].y;
+			if(!Double.isNaN(tolerance)){
+				x = Math.round(x / tolerance) / (1/tolerance);
+				y = Math.round(y / tolerance) / (1/tolerance);
+			}
+			int slot = hash(x, y) & wp.mask;
+			while(wp.table[slot] != 0){
+				Coordinate existing = wp.points[wp.table[slot] - 1];
+				if(existing.x == x && existing.y == y){
+					break;
+				}
+				slot = (slot + 1) & wp.mask;
+			}
+			if(wp.table[slot] == 0){
+				wp.points[numUnique] = new Coordinate(x, y);
+				numUnique++;
+				wp.table[slot] = numUnique;
+			}
+			int unique = wp.table[slot] - 1;
+			wp.weights[unique]++;
+			wp.rowIndex[row] = unique;
+		}
+		Coordinate[] points = new Coordinate[numUnique];
+		int[] weights = new int[numUnique];
+		System.arraycopy(wp.points, 0, points, 0, numUnique);
+		System.arraycopy(wp.weights, 0, weights, 0, numUnique);
+		wp.points = points;
+		wp.weights = weights;
+		return wp;
+	}
+
+	/**
+	 * Recreates the result of {@link #snap(Coordinate[], double)} from its
+	 * arrays, as stored by a {@link Checkpoint}.
+	 * @param points The unique points
+	 * @param weights The multiplicity of every unique point
+	 * @param rowIndex For every input row, the index of its unique point
+	 */
+	public static WeightedPoints of(Coordinate[] points, int[] weights, int[] rowIndex) {
+		WeightedPoints wp = new WeightedPoints(points.length);
+		for(int i = 0; i < points.length; i++){
+			int slot = hash(points[i].x, points[i].y) & wp.mask;
+			while(wp.table[slot] != 0){
+				slot = (slot + 1) & wp.mask;
+			}
+			wp.table[slot] = i + 1;
+		}
+		wp.points = points;
+		wp.weights = weights;
+		wp.rowIndex = rowIndex;
+		return wp;
+	}
+
+	private static int hash(double x, double y) {
+		long bits = Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0);
+		bits ^= bits >>> 33;
+		bits *= 0xff51afd7ed558ccdL;
+		bits ^= bits >>> 33;
+		return (int) bits;
+	}
+
+	/**
+	 * Looks up a snapped location.
+	 * @return The index of the unique point at p, or -1 if there is none
+	 */
+	public int indexOf(Coordinate p) {
+		int slot = hash(p.x, p.y) & mask;
+		while(table[slot] != 0){
+			Coordinate existing = points[table[slot] - 1];
+			if(existing.x == p.x && existing.y == p.y){
+				return table[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The weight of the unique point at p, or 1 if p is not a known location
+	 */
+	public int getWeight(Coordinate p) {
+		int i = indexOf(p);
+		return i < 0 ? 1 : weights[i];
+	}
+
+	public Coordinate[] getPoints() {
+		return points;
+	}
+
+	public int[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * @return For every input row, the index of the unique point it was merged into
+	 */
+	public int[] getRowIndex() {
+		return rowIndex;
+	}
+
+	public int getNumRows() {
+		return rowIndex.length;
+	}
+
+	public int size() {
+		return points.length;
+	}
+}
@@ -0,0 +1,46 @@
+package hdbscan;
+
+/**
+ * The clustering of the points in a time window, as emitted by
+ * {@link SlidingWindowHDBSCAN}. Points are identified by their arrival
+ * number and listed in arrival order.
+ */
+public class WindowClustering {
+
+	private long time;
+	private long[] ids;
+	private FlatClustering clustering;
+
+	/**
+	 * @param time The time the window ends at
+	 * @param ids The arrival number of every point in the window
+	 * @param clustering Labels and probabilities aligned with the ids
+	 */
+	public WindowClustering(long time, long[] ids, FlatClustering clustering) {
+		this.time = time;
+		this.ids = ids;
+		this.clustering = clustering;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public long[] getIds() {
+		return ids;
+	}
+
+	public FlatClustering getClustering() {
+		return clustering;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	@Override
+	public String toString() {
+		return "WindowClustering [time=" + time + ", points=" + ids.length
+				+ ", clusters=" + clustering.getNumClusters() + "]";
+	}
+}
@@ -0,0 +1,42 @@
+package hdbscan;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Evaluates the haversine formula on as many points at once as the preferred
+ * vector width holds, finishing the remainder of a block with scalar code.
+ * Only referenced by name from {@link DistanceKernel} so that the rest of the
+ * library runs without the incubator module.
+ */
+public class VectorDistanceKernel extends DistanceKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final double DIAMETER = 2 * 6371; // Diameter of the earth
+
+	@Override
+	public void distances(double lat, double lon, double cosLat, double[] lats, double[] lons, double[] cosLats,
+			int start, int end, double[] out) {
+		int i = start;
+		int upper = start + SPECIES.loopBound(end - start);
+		for(; i < upper; i += SPECIES.length()){
+			DoubleVector sinLat = DoubleVector.fromArray(SPECIES, lats, i).sub(lat).mul(0.5)
+					.lanewise(VectorOperators.SIN);
+			DoubleVector sinLon = DoubleVector.fromArray(SPECIES, lons, i).sub(lon).mul(0.5)
+					.lanewise(VectorOperators.SIN);
+			DoubleVector a = sinLon.mul(sinLon).mul(DoubleVector.fromArray(SPECIES, cosLats, i)).mul(cosLat)
+					.add(sinLat.mul(sinLat));
+			DoubleVector b = a.neg().add(1.0);
+			a.sqrt().lanewise(VectorOperators.ATAN2, b.sqrt()).mul(DIAMETER).intoArray(out, i - start);
+		}
+		for(; i < end; i++){
+			out[i - start] = BallTree.distance(lat, lon, cosLat, lats[i], lons[i], cosLats[i]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "VectorDistanceKernel [" + SPECIES + "]";
+	}
+}
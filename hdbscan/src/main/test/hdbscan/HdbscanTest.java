@@ -2,13 +2,45 @@ package hdbscan;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+import org.jgrapht.graph.UndirectedWeightedSubgraph;
 import org.junit.Test;
 
+import com.vividsolutions.jts.algorithm.ConvexHull;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.index.ArrayListVisitor;
+import com.vividsolutions.jts.io.InputStreamInStream;
+import com.vividsolutions.jts.io.WKBReader;
 
 import hdbscan.HDBSCAN;
 import hdbscan.KdNode;
@@ -56,5 +88,1384 @@ public class HdbscanTest {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * The k-th nearest neighbor distance of every point by comparing all pairs.
+	 */
+	static double[] bruteForceCoreDistances(Coordinate[] data, int k){
+		double[] core = new double[data.length];
+		double[] dist = new double[data.length - 1];
+		for(int i = 0; i < data.length; i++){
+			int count = 0;
+			for(int j = 0; j < data.length; j++){
+				if(j != i){
+					dist[count++] = distance(data[i], data[j]);
+				}
+			}
+			Arrays.sort(dist);
+			core[i] = dist[Math.min(k, dist.length) - 1];
+		}
+		return core;
+	}
+
+	/**
+	 * The total weight of the mutual reachability spanning tree by Prim's
+	 * algorithm over all pairs.
+	 */
+	static double bruteForceMSTWeight(Coordinate[] data, double[] core){
+		int n = data.length;
+		boolean[] inTree = new boolean[n];
+		double[] reach = new double[n];
+		Arrays.fill(reach, Double.POSITIVE_INFINITY);
+		reach[0] = 0;
+		double total = 0;
+		for(int step = 0; step < n; step++){
+			int best = -1;
+			for(int i = 0; i < n; i++){
+				if(!inTree[i] && (best < 0 || reach[i] < reach[best])){
+					best = i;
+				}
+			}
+			inTree[best] = true;
+			total += reach[best];
+			for(int i = 0; i < n; i++){
+				if(!inTree[i]){
+					double mrd = Math.max(distance(data[best], data[i]), Math.max(core[best], core[i]));
+					reach[i] = Math.min(reach[i], mrd);
+				}
+			}
+		}
+		return total;
+	}
+
+	static double distance(Coordinate c1, Coordinate c2){
+		double lat1 = Math.toRadians(c1.y);
+		double lat2 = Math.toRadians(c2.y);
+		return BallTree.distance(lat1, Math.toRadians(c1.x), Math.cos(lat1), lat2, Math.toRadians(c2.x), Math.cos(lat2));
+	}
+
+	static double totalWeight(MinimumSpanningTree mst){
+		double total = 0;
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			total += mst.getWeight(e);
+		}
+		return total;
+	}
+
+	@Test
+	public void testBallTreeAcrossAntimeridian() {
+		Coordinate[] data = {new Coordinate(179.999,10.0), new Coordinate(-179.999,10.0),
+				new Coordinate(170.0,10.0), new Coordinate(-170.0,10.0)};
+		BallTree tree = new BallTree(data, 1);
+		tree.findKNN();
+		assertEquals(1, tree.getNeighbors()[0]);
+		assertEquals(0, tree.getNeighbors()[1]);
+		assertTrue(tree.getCoreDistances()[0] < 1.0);
+		MinimumSpanningTree mst = tree.calculateMST();
+		assertEquals(3, mst.getNumEdges());
+
+		// enough points on both sides of the antimeridian and near a pole for the tree to prune
+		Random random = new Random(26);
+		data = new Coordinate[400];
+		for(int i = 0; i < data.length; i++){
+			double lon = 180 - random.nextDouble() * 3;
+			double lat = i < 300 ? random.nextDouble() * 20 - 10 : 85 + random.nextDouble() * 5;
+			data[i] = new Coordinate(i % 2 == 0 ? lon : -lon, lat);
+		}
+		tree = new BallTree(data, 5);
+		tree.findKNN();
+		double[] core = bruteForceCoreDistances(data, 5);
+		for(int i = 0; i < data.length; i++){
+			assertEquals(core[i], tree.getCoreDistances()[i], 1e-9);
+		}
+		mst = tree.calculateMST();
+		assertEquals(data.length - 1, mst.getNumEdges());
+		assertEquals(bruteForceMSTWeight(data, core), totalWeight(mst), 1e-6);
+	}
+	
+	@Test
+	public void testDistanceKernelsMatchHaversine() throws Exception {
+		List<DistanceKernel> kernels = new ArrayList<DistanceKernel>();
+		kernels.add(new ScalarDistanceKernel());
+		kernels.add(DistanceKernel.getInstance());
+		try{
+			kernels.add((DistanceKernel) Class.forName("hdbscan.VectorDistanceKernel").getDeclaredConstructor().newInstance());
+		}catch(ClassNotFoundException | LinkageError e){
+			// built without the JDK 17 source set or run without jdk.incubator.vector
+		}
+		// a block around the antimeridian and the poles, with duplicates and near antipodes
+		Random random = new Random(35);
+		Coordinate[] points = antimeridianAndPole(random, 203);
+		points[10] = new Coordinate(0.0, -90.0);
+		points[11] = new Coordinate(-0.001, 0.0);
+		double[] lats = new double[points.length];
+		double[] lons = new double[points.length];
+		double[] cosLats = new double[points.length];
+		for(int i = 0; i < points.length; i++){
+			lats[i] = Math.toRadians(points[i].y);
+			lons[i] = Math.toRadians(points[i].x);
+			cosLats[i] = Math.cos(lats[i]);
+		}
+		double[] out = new double[points.length];
+		for(DistanceKernel kernel : kernels){
+			for(int q = 0; q < 20; q++){
+				// odd block bounds, so vector loops end in a scalar remainder
+				int start = q;
+				int end = points.length - 2 * q;
+				kernel.distances(lats[q], lons[q], cosLats[q], lats, lons, cosLats, start, end, out);
+				for(int i = start; i < end; i++){
+					double expected = BallTree.distance(lats[q], lons[q], cosLats[q], lats[i], lons[i], cosLats[i]);
+					// within a micrometer, a few units in the last place of the largest distances
+					assertEquals(kernel.toString(), expected, out[i - start], 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDuplicatesBecomeWeights() {
+		Coordinate[] data = {new Coordinate(10.0001,50.0), new Coordinate(10.0,50.0002),
+				new Coordinate(11.0,50.0), new Coordinate(10.0,50.0)};
+		WeightedPoints unique = WeightedPoints.snap(data, 0.001);
+		assertEquals(2, unique.size());
+		assertArrayEquals(new int[]{3,1}, unique.getWeights());
+		assertArrayEquals(new int[]{0,0,1,0}, unique.getRowIndex());
+		BallTree tree = new BallTree(unique.getPoints(), unique.getWeights(), 2);
+		tree.findKNN();
+		assertEquals(0.0, tree.getCoreDistances()[0], 0.0);
+		assertTrue(tree.getCoreDistances()[1] > 0.0);
+	}
+	
+	/**
+	 * Rows on a 10 by 10 grid, so many points share a split coordinate, with
+	 * every fifth row duplicated.
+	 */
+	private Coordinate[] gridWithDuplicates(){
+		Coordinate[] data = new Coordinate[120];
+		for(int i = 0; i < 100; i++){
+			data[i] = new Coordinate(10.0 + (i % 10) * 0.01, 50.0 + (i / 10) * 0.01);
+		}
+		for(int i = 100; i < data.length; i++){
+			data[i] = new Coordinate(data[(i - 100) * 5]);
+		}
+		return data;
+	}
+
+	@Test
+	public void testRangeQueryFindsPointsOnSplits() {
+		NearestKdTree tree = new NearestKdTree(gridWithDuplicates(), 6, 0.001);
+		assertEquals(100, tree.getAllNodes().size());
+		ArrayListVisitor visitor = new ArrayListVisitor();
+		NearestKdTree.query(tree.getRoot(), new Envelope(10.0, 10.02, 50.0, 50.02), visitor);
+		assertEquals(9, visitor.getItems().size());
+	}
+	
+	@Test
+	public void testTiedNeighborsKeepCoreDistances() {
+		Coordinate[] data = gridWithDuplicates();
+		double[] core = bruteForceCoreDistances(data, 6);
+		NearestKdTree tree = HDBSCAN.calculateNearestKdTree(data, 6, 0.001);
+		int[] rowIndex = tree.getWeightedPoints().getRowIndex();
+		for(KdNode node : tree.getAllNodes()){
+			int unique = tree.getWeightedPoints().indexOf(node.getCoordinate());
+			int row = 0;
+			while(rowIndex[row] != unique){
+				row++;
+			}
+			assertEquals(core[row], node.getCoreDistance(), 1e-9);
+		}
+	}
+	
+	/**
+	 * Two tight groups of 20 points, one degree of longitude apart.
+	 */
+	private Coordinate[] twoGroups(){
+		Coordinate[] data = new Coordinate[40];
+		for(int i = 0; i < 40; i++){
+			double offset = (i % 20) * 0.0005;
+			data[i] = i < 20 ? new Coordinate(10.0 + offset, 50.0 + offset % 0.002) 
+					: new Coordinate(11.0 + offset, 50.0 - offset % 0.002);
+		}
+		return data;
+	}
+	
+	@Test
+	public void testFlatClustersAlignWithRows() {
+		Coordinate[] data = twoGroups();
+		WeightedPoints points = WeightedPoints.snap(data, 0.0001);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 4);
+		tree.findKNN();
+		FlatClustering flat = HDBSCAN.extractClusters(tree.calculateMST(), points, 5, ClusterSelection.EXCESS_OF_MASS);
+		assertEquals(2, flat.getNumClusters());
+		assertEquals(data.length, flat.getLabels().length);
+		for(int i = 1; i < 20; i++){
+			assertEquals(flat.getLabels()[0], flat.getLabels()[i]);
+			assertEquals(flat.getLabels()[20], flat.getLabels()[20 + i]);
+		}
+		assertNotEquals(flat.getLabels()[0], flat.getLabels()[20]);
+	}
+	
+	/**
+	 * Groups of points spread around centers far enough apart that the edges
+	 * joining them are much longer than any core distance.
+	 */
+	static Coordinate[] separatedGroups(Random random, double[][] centers, int perGroup, double spread){
+		Coordinate[] data = new Coordinate[centers.length * perGroup];
+		for(int i = 0; i < data.length; i++){
+			double[] center = centers[i / perGroup];
+			data[i] = new Coordinate(center[0] + random.nextGaussian() * spread, center[1] + random.nextGaussian() * spread);
+		}
+		return data;
+	}
+
+	@Test
+	public void testTiledMatchesBallTree() throws IOException {
+		Coordinate[] data = separatedGroups(new Random(28),
+				new double[][]{{10, 50}, {12, 50}, {10, 53}, {179.5, 0}, {-179.5, 1}}, 150, 0.1);
+		double[] lon = new double[data.length];
+		double[] lat = new double[data.length];
+		for(int i = 0; i < data.length; i++){
+			lon[i] = data[i].x;
+			lat[i] = data[i].y;
+		}
+		BallTree tree = new BallTree(data, 5);
+		tree.findKNN();
+		MinimumSpanningTree expected = tree.calculateMST();
+		TiledHDBSCAN tiled = new TiledHDBSCAN(lon, lat, null, 5, 40);
+		tiled.findKNN();
+		assertTrue(tiled.getNumTiles() > 10);
+		assertArrayEquals(tree.getCoreDistances(), tiled.getCoreDistances(), 1e-9);
+		File spill = Files.createTempDirectory("spill").toFile();
+		tiled.setSpillDirectory(spill);
+		MinimumSpanningTree mst = tiled.calculateMST();
+		assertEquals(0, spill.list().length);
+		spill.delete();
+		assertEquals(data.length - 1, mst.getNumEdges());
+		assertEquals(totalWeight(expected), totalWeight(mst), 1e-6);
+		// most of the tree comes from the spilled tile trees, the rest from the Boruvka rounds
+		assertTrue(tiled.getNumMergedEdges() > data.length / 2);
+		assertTrue(tiled.getNumMergedEdges() < data.length - 1);
+		WeightedPoints points = WeightedPoints.snap(data, Double.NaN);
+		FlatClustering expectedLabels = HDBSCAN.extractClusters(expected, points, 20, ClusterSelection.EXCESS_OF_MASS);
+		FlatClustering labels = HDBSCAN.extractClusters(mst, points, 20, ClusterSelection.EXCESS_OF_MASS);
+		assertEquals(5, expectedLabels.getNumClusters());
+		assertArrayEquals(expectedLabels.getLabels(), labels.getLabels());
+
+		// weighted points on a grid, where tiny tiles share their edges and some get no halo
+		WeightedPoints grid = WeightedPoints.snap(gridWithDuplicates(), 0.0001);
+		lon = new double[grid.size()];
+		lat = new double[grid.size()];
+		for(int i = 0; i < grid.size(); i++){
+			lon[i] = grid.getPoints()[i].x;
+			lat[i] = grid.getPoints()[i].y;
+		}
+		tree = new BallTree(grid.getPoints(), grid.getWeights(), 6);
+		tree.findKNN();
+		tiled = new TiledHDBSCAN(lon, lat, grid.getWeights(), 6, 4);
+		tiled.findKNN();
+		assertArrayEquals(tree.getCoreDistances(), tiled.getCoreDistances(), 1e-9);
+		mst = tiled.calculateMST();
+		assertEquals(grid.size() - 1, mst.getNumEdges());
+		assertEquals(totalWeight(tree.calculateMST()), totalWeight(mst), 1e-6);
+	}
+	
+	@Test
+	public void testLeafSelectionAndOutlierScores() {
+		// A is two lines of 10 points split by a slightly larger gap, B one line far away,
+		// then an outlier 5 km from A and two outliers thousands of kilometers away
+		Coordinate[] data = new Coordinate[33];
+		for(int i = 0; i < 10; i++){
+			data[i] = new Coordinate(10.0 + i * 0.01, 50.0);
+			data[10 + i] = new Coordinate(10.102 + i * 0.01, 50.0);
+			data[20 + i] = new Coordinate(12.0 + i * 0.01, 50.0);
+		}
+		data[30] = new Coordinate(10.0, 50.05);
+		data[31] = new Coordinate(40.0, 0.0);
+		data[32] = new Coordinate(-60.0, -20.0);
+		BallTree tree = new BallTree(data, 1);
+		tree.findKNN();
+		CondensedTree condensed = new CondensedTree(new SingleLinkageTree(tree.calculateMST(), null), 10);
+
+		// the parent outlives its two short-lived halves
+		FlatClustering excessOfMass = condensed.extractClusters(ClusterSelection.EXCESS_OF_MASS);
+		int[] eom = excessOfMass.getLabels();
+		assertEquals(2, excessOfMass.getNumClusters());
+		assertEquals(eom[0], eom[10]);
+		assertNotEquals(eom[0], eom[20]);
+		FlatClustering leaf = condensed.extractClusters(ClusterSelection.LEAF);
+		assertEquals(3, leaf.getNumClusters());
+		assertNotEquals(leaf.getLabels()[0], leaf.getLabels()[10]);
+		assertNotEquals(leaf.getLabels()[10], leaf.getLabels()[20]);
+		for(int i = 1; i < 10; i++){
+			assertEquals(leaf.getLabels()[0], leaf.getLabels()[i]);
+			assertEquals(leaf.getLabels()[10], leaf.getLabels()[10 + i]);
+		}
+
+		double[] scores = leaf.getOutlierScores();
+		assertEquals(0.0, scores[0], 1e-9);
+		assertTrue(scores[30] > 0.5);
+		assertTrue(scores[31] > scores[30]);
+		assertTrue(scores[32] > scores[30]);
+		for(int i = 0; i < 30; i++){
+			assertTrue(scores[i] < scores[30]);
+		}
+	}
+	
+	@Test
+	public void testSinglePrecisionMatchesDouble() {
+		Coordinate[] data = separatedGroups(new Random(33), new double[][]{{10, 50}, {10.8, 50}, {11, 51}, {-70, -30}},
+				120, 0.05);
+		BallTree exact = new BallTree(data, null, 5, Precision.DOUBLE);
+		BallTree single = new BallTree(data, null, 5, Precision.SINGLE);
+		exact.findKNN();
+		single.findKNN();
+		assertEquals(Precision.SINGLE, single.getPrecision());
+		// a float coordinate is off by at most about half a meter, a float distance by a relative 1e-7
+		double[] exactCore = exact.getCoreDistances();
+		double[] singleCore = single.getCoreDistances();
+		for(int i = 0; i < data.length; i++){
+			assertEquals(exactCore[i], singleCore[i], 2e-3 + 1e-6 * exactCore[i]);
+			assertEquals((float) singleCore[i], singleCore[i], 0.0);
+		}
+		MinimumSpanningTree exactMST = exact.calculateMST();
+		MinimumSpanningTree singleMST = single.calculateMST();
+		assertEquals(data.length - 1, singleMST.getNumEdges());
+		assertEquals(totalWeight(exactMST), totalWeight(singleMST), data.length * 2e-3);
+		FlatClustering expected = new CondensedTree(new SingleLinkageTree(exactMST, null), 20)
+				.extractClusters(ClusterSelection.EXCESS_OF_MASS);
+		FlatClustering clustering = new CondensedTree(new SingleLinkageTree(singleMST, null), 20)
+				.extractClusters(ClusterSelection.EXCESS_OF_MASS);
+		assertEquals(4, expected.getNumClusters());
+		assertEquals(expected.getNumClusters(), clustering.getNumClusters());
+		assertArrayEquals(expected.getLabels(), clustering.getLabels());
+	}
+
+	@Test
+	public void testSweepEqualsSeparateRuns() {
+		Coordinate[] data = separatedGroups(new Random(31), new double[][]{{10, 50}, {10.5, 50}, {12, 51}}, 100, 0.05);
+		WeightedPoints points = WeightedPoints.snap(data, 0.01);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 5);
+		tree.findKNN();
+		MinimumSpanningTree mst = tree.calculateMST();
+		int[] minClSizes = {5, 40, 150, 400};
+		SweepResult[] results = ParameterSweep.sweepMinClusterSize(mst, points, minClSizes, ClusterSelection.EXCESS_OF_MASS, 2);
+		for(int i = 0; i < minClSizes.length; i++){
+			FlatClustering single = HDBSCAN.extractClusters(mst, points, minClSizes[i], ClusterSelection.EXCESS_OF_MASS);
+			assertEquals(minClSizes[i], results[i].getMinClSize());
+			assertEquals(single.getNumClusters(), results[i].getNumClusters());
+			assertArrayEquals(single.getLabels(), results[i].getClustering().getLabels());
+			assertArrayEquals(single.getProbabilities(), results[i].getClustering().getProbabilities(), 0.0);
+		}
+		assertEquals(3, results[0].getNumClusters());
+		assertEquals(0, results[3].getNumClusters());
+	}
+	
+	@Test
+	public void testCoreDistancesForSmallerK() {
+		Coordinate[] data = separatedGroups(new Random(32), new double[][]{{10, 50}, {10.5, 50}, {12, 51}}, 100, 0.05);
+		WeightedPoints points = WeightedPoints.snap(data, 0.01);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 8);
+		tree.findKNN();
+		NearestKdTree kdTree = HDBSCAN.calculateNearestKdTree(data, 8, 0.01);
+		for(int k : new int[]{1, 3, 8}){
+			BallTree refit = new BallTree(points.getPoints(), points.getWeights(), k);
+			refit.findKNN();
+			assertArrayEquals(refit.getCoreDistances(), tree.getCoreDistances(k), 1e-12);
+			NearestKdTree kdRefit = HDBSCAN.calculateNearestKdTree(data, k, 0.01);
+			assertArrayEquals(kdRefit.getCoreDistances(k), kdTree.getCoreDistances(k), 1e-12);
+			assertArrayEquals(refit.getCoreDistances(), kdTree.getCoreDistances(k), 1e-9);
+		}
+		SweepResult[] results = ParameterSweep.sweepMinPts(points, new int[]{3, 8}, 20, ClusterSelection.EXCESS_OF_MASS, 2);
+		BallTree refit = new BallTree(points.getPoints(), points.getWeights(), 3);
+		refit.findKNN();
+		FlatClustering single = HDBSCAN.extractClusters(refit.calculateMST(), points, 20, ClusterSelection.EXCESS_OF_MASS);
+		assertEquals(3, results[0].getK());
+		assertArrayEquals(single.getLabels(), results[0].getClustering().getLabels());
+	}
+	
+	@Test
+	public void testRowLabelsInInputOrder() throws IOException {
+		Coordinate[] groups = twoGroups();
+		// every row twice, the copies after all originals
+		Coordinate[] data = new Coordinate[2 * groups.length];
+		for(int i = 0; i < groups.length; i++){
+			data[i] = groups[i];
+			data[groups.length + i] = new Coordinate(groups[i]);
+		}
+		WeightedPoints points = WeightedPoints.snap(data, 0.0001);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 4);
+		tree.findKNN();
+		File file = File.createTempFile("labels", ".csv");
+		file.deleteOnExit();
+		FlatClustering unique = HDBSCAN.writeRowLabels(tree.calculateMST(), points, 10,
+				ClusterSelection.EXCESS_OF_MASS, file);
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+		assertEquals("row,label,probability,outlier_score", lines.get(0));
+		assertEquals(data.length + 1, lines.size());
+		for(int row = 0; row < data.length; row++){
+			String[] fields = lines.get(row + 1).split(",");
+			assertEquals(row, Integer.parseInt(fields[0]));
+			assertEquals(unique.getLabels()[points.getRowIndex()[row]], Integer.parseInt(fields[1]));
+		}
+		assertEquals(lines.get(1).substring(1), lines.get(groups.length + 1).substring(2));
+	}
+
+	@Test
+	public void testSlidingWindowExpiresPoints() {
+		Coordinate[] data = twoGroups();
+		SlidingWindowHDBSCAN window = new SlidingWindowHDBSCAN(4, 5, 50, 0, 0.001);
+		WindowClustering clustering = null;
+		for(int i = 0; i < data.length; i++){
+			clustering = window.add(data[i].x, data[i].y, i);
+		}
+		assertEquals(data.length, clustering.size());
+		assertEquals(2, clustering.getClustering().getNumClusters());
+		int[] labels = clustering.getClustering().getLabels();
+		assertNotEquals(labels[0], labels[20]);
+		// the first group is older than the window at time 69
+		clustering = window.advance(69);
+		assertEquals(20, window.size());
+		assertEquals(20, clustering.getIds()[0]);
+		assertEquals(39, clustering.getIds()[19]);
+	}
+
+	@Test
+	public void testEpsilonCutsInOneSweep() {
+		Coordinate[] data = twoGroups();
+		WeightedPoints points = WeightedPoints.snap(data, 0.0001);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 4);
+		tree.findKNN();
+		FlatClustering[] cuts = EpsilonCut.cut(tree.calculateMST(), points.getWeights(), tree.getCoreDistances(), 5,
+				new double[]{1.0, 1000.0, 0.001});
+		assertEquals(2, cuts[0].getNumClusters());
+		assertNotEquals(cuts[0].getLabels()[0], cuts[0].getLabels()[20]);
+		assertEquals(1, cuts[1].getNumClusters());
+		assertEquals(0, cuts[2].getNumClusters());
+		for(int i = 0; i < data.length; i++){
+			assertEquals(cuts[0].getLabels()[i < 20 ? 0 : 20], cuts[0].getLabels()[i]);
+			assertEquals(0, cuts[1].getLabels()[i]);
+			assertEquals(FlatClustering.NOISE, cuts[2].getLabels()[i]);
+		}
+	}
+	
+	@Test
+	public void testEpsilonCutMakesNonCorePointsNoise() {
+		// a row repeated three times far from the groups, and one repeated six times near them
+		Coordinate[] data = Arrays.copyOf(twoGroups(), 49);
+		for(int i = 40; i < 43; i++){
+			data[i] = new Coordinate(12.0, 51.0);
+		}
+		for(int i = 43; i < 49; i++){
+			data[i] = new Coordinate(10.5, 50.0);
+		}
+		WeightedPoints points = WeightedPoints.snap(data, 0.0001);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 5);
+		tree.findKNN();
+		double[] core = tree.getCoreDistances();
+		int[] rowIndex = points.getRowIndex();
+		assertTrue(core[rowIndex[40]] > 100.0);
+		assertEquals(0.0, core[rowIndex[43]], 0.0);
+		for(int minClSize : new int[]{1, 2, 5}){
+			FlatClustering cut = EpsilonCut.cut(tree.calculateMST(), points.getWeights(), core, minClSize, 1.0);
+			assertEquals(3, cut.getNumClusters());
+			assertEquals(FlatClustering.NOISE, cut.getLabels()[rowIndex[40]]);
+			assertEquals(0.0, cut.getProbabilities()[rowIndex[40]], 0.0);
+			// a point of weight at least k is a core point and a cluster on its own
+			assertNotEquals(FlatClustering.NOISE, cut.getLabels()[rowIndex[43]]);
+			for(int i = 0; i < 40; i++){
+				assertEquals(core[rowIndex[i]] > 1.0, cut.getLabels()[rowIndex[i]] == FlatClustering.NOISE);
+			}
+		}
+	}
+
+	@Test
+	public void testSampledRowsFollowTheirGroup() {
+		Coordinate[] groups = twoGroups();
+		// ten rows jittered around every row of the two groups
+		Coordinate[] data = new Coordinate[10 * groups.length];
+		for(int i = 0; i < data.length; i++){
+			Coordinate c = groups[i % groups.length];
+			data[i] = new Coordinate(c.x + (i / groups.length) * 0.00002, c.y);
+		}
+		SampledHDBSCAN sampled = new SampledHDBSCAN(data, 100, 4, 50, Double.NaN);
+		SampleStability stability = sampled.stability(new long[]{1, 2});
+		for(FlatClustering clustering : stability.getClusterings()){
+			int[] labels = clustering.getLabels();
+			assertEquals(2, clustering.getNumClusters());
+			assertNotEquals(labels[0], labels[20]);
+			for(int i = 0; i < data.length; i++){
+				assertEquals(labels[i % groups.length < 20 ? 0 : 20], labels[i]);
+			}
+		}
+		assertEquals(1.0, stability.getMinAdjustedRandIndex(), 1e-9);
+	}
+
+	static void analyzeSequentially(Cluster cluster){
+		cluster.analyzeCluster();
+		if(cluster.hasChildren()){
+			analyzeSequentially(cluster.getLeft());
+			analyzeSequentially(cluster.getRight());
+		}
+	}
+
+	static Cluster rootCluster(Coordinate[] data, int minClSize, ClusteringContext context){
+		WeightedPoints points = WeightedPoints.snap(data, Double.NaN);
+		BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 3);
+		tree.findKNN();
+		MinimumSpanningTree mst = tree.calculateMST();
+		double maxWeight = 0;
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			maxWeight = Math.max(maxWeight, mst.getWeight(e));
+		}
+		SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> graph = mst.toGraph(points.getPoints());
+		return new Cluster(null, maxWeight, minClSize, new UndirectedWeightedSubgraph<>(graph, null, null), points, context);
+	}
+
+	static void assertSameHierarchy(Cluster expected, Cluster actual){
+		assertEquals(expected.getLabel(), actual.getLabel());
+		assertEquals(expected.getBirthLevel(), actual.getBirthLevel());
+		assertEquals(expected.getDeathLevel(), actual.getDeathLevel());
+		assertEquals(expected.getStability(), actual.getStability(), 0.0);
+		assertEquals(expected.getGraph().vertexSet().size(), actual.getGraph().vertexSet().size());
+		assertEquals(expected.hasChildren(), actual.hasChildren());
+		if(expected.hasChildren()){
+			assertSameHierarchy(expected.getLeft(), actual.getLeft());
+			assertSameHierarchy(expected.getRight(), actual.getRight());
+		}
+	}
+
+	@Test
+	public void testParallelHierarchyMatchesSequential() {
+		// pairs of groups inside groups, so the hierarchy splits several levels deep
+		Coordinate[] data = separatedGroups(new Random(36), new double[][]{{10, 50}, {10.3, 50}, {11.5, 50},
+				{11.8, 50.2}, {14, 52}, {14, 52.4}}, 25, 0.02);
+		Cluster sequential = rootCluster(data, 10, new ClusteringContext());
+		analyzeSequentially(sequential);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try{
+			for(int run = 0; run < 3; run++){
+				Cluster parallel = rootCluster(data, 10, new ClusteringContext(pool));
+				ClusterTask.analyze(parallel);
+				assertSameHierarchy(sequential, parallel);
+			}
+		}finally{
+			pool.shutdown();
+		}
+		assertTrue(sequential.hasChildren() && sequential.getLeft().hasChildren());
+	}
+
+	/**
+	 * The node labels by point index, the spanning tree and the cluster
+	 * hierarchy of one kd-tree run in the given context.
+	 */
+	static Object[] kdTreeRun(Coordinate[] data, ClusteringContext context){
+		NearestKdTree tree = HDBSCAN.calculateNearestKdTree(data, 4, Double.NaN, context);
+		int[] nodeLabels = new int[tree.getWeightedPoints().size()];
+		for(KdNode node : tree.getAllNodes()){
+			nodeLabels[node.getIndex()] = node.getLabel();
+		}
+		SimpleWeightedGraph<ClusterNode, DefaultWeightedEdge> graph = HDBSCAN.calculateMST(tree);
+		MinimumSpanningTree mst = MinimumSpanningTree.fromGraph(graph, tree.getWeightedPoints());
+		double maxWeight = 0;
+		for(int e = 0; e < mst.getNumEdges(); e++){
+			maxWeight = Math.max(maxWeight, mst.getWeight(e));
+		}
+		Cluster root = new Cluster(null, maxWeight, 10, new UndirectedWeightedSubgraph<>(graph, null, null),
+				tree.getWeightedPoints(), context);
+		ClusterTask.analyze(root);
+		return new Object[]{nodeLabels, mst, root};
+	}
+
+	@Test
+	public void testConcurrentRunsKeepTheirLabels() throws Exception {
+		final Coordinate[] data = separatedGroups(new Random(37), new double[][]{{10, 50}, {10.3, 50}, {11.5, 50},
+				{14, 52}}, 30, 0.02);
+		Object[] expected = kdTreeRun(data, new ClusteringContext());
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try{
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<Object[]>> runs = new ArrayList<Future<Object[]>>();
+			for(int i = 0; i < 4; i++){
+				runs.add(executor.submit(new Callable<Object[]>() {
+					@Override
+					public Object[] call() throws Exception {
+						start.await();
+						return kdTreeRun(data, new ClusteringContext(pool));
+					}
+				}));
+			}
+			start.countDown();
+			for(Future<Object[]> run : runs){
+				Object[] actual = run.get();
+				assertArrayEquals((int[]) expected[0], (int[]) actual[0]);
+				MinimumSpanningTree expectedMST = (MinimumSpanningTree) expected[1];
+				MinimumSpanningTree mst = (MinimumSpanningTree) actual[1];
+				assertEquals(expectedMST.getNumEdges(), mst.getNumEdges());
+				for(int e = 0; e < mst.getNumEdges(); e++){
+					assertEquals(expectedMST.getFrom(e), mst.getFrom(e));
+					assertEquals(expectedMST.getTo(e), mst.getTo(e));
+					assertEquals(expectedMST.getWeight(e), mst.getWeight(e), 0.0);
+				}
+				assertSameHierarchy((Cluster) expected[2], (Cluster) actual[2]);
+			}
+		}finally{
+			executor.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	static void awaitIdle(ClusteringScheduler scheduler) throws InterruptedException {
+		for(int i = 0; i < 1000 && (scheduler.getNumRunning() > 0 || scheduler.getNumQueued() > 0); i++){
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testSchedulerHoldsMemoryOfCancelledJobsUntilTheyReturn() throws Exception {
+		Coordinate[] large = new Coordinate[15000];
+		Random random = new Random(38);
+		for(int i = 0; i < large.length; i++){
+			large[i] = new Coordinate(random.nextDouble(), 50 + random.nextDouble());
+		}
+		ClusteringJob largeJob = new ClusteringJob(large, 5, 20, Double.NaN, Engine.DENSE, 0);
+		ClusteringJob smallJob = new ClusteringJob(twoGroups(), 4, 5, 0.0001, Engine.DENSE, 0);
+		long largeBytes = MemoryEstimator.estimate(large.length, 5, 2, Engine.DENSE, Precision.DOUBLE).getPeakBytes();
+		// the budget fits the large job alone, so the small one waits for it
+		ClusteringScheduler scheduler = new ClusteringScheduler(2, largeBytes);
+		try{
+			Future<FlatClustering> largeRun = scheduler.submit(largeJob);
+			Future<FlatClustering> smallRun = scheduler.submit(smallJob);
+			assertEquals(1, scheduler.getNumRunning());
+			assertEquals(1, scheduler.getNumQueued());
+			assertTrue(largeRun.cancel(true));
+			// the worker is still clustering, so its memory stays reserved
+			assertEquals(largeBytes, scheduler.getReservedBytes());
+			assertEquals(1, scheduler.getNumQueued());
+			FlatClustering expected = HDBSCAN.cluster(twoGroups(), 4, 5, 0.0001, Engine.DENSE, Long.MAX_VALUE, false);
+			assertArrayEquals(expected.getLabels(), smallRun.get().getLabels());
+			awaitIdle(scheduler);
+			assertEquals(0, scheduler.getReservedBytes());
+
+			// a job cancelled while queued never starts and reserves nothing
+			largeRun = scheduler.submit(largeJob);
+			smallRun = scheduler.submit(smallJob);
+			assertTrue(smallRun.cancel(false));
+			assertEquals(0, scheduler.getNumQueued());
+			largeRun.get();
+			awaitIdle(scheduler);
+			assertEquals(0, scheduler.getReservedBytes());
+
+			ClusteringScheduler tiny = new ClusteringScheduler(1, 1024);
+			try{
+				tiny.submit(smallJob).get();
+				fail("A job larger than the whole budget must fail");
+			}catch(ExecutionException e){
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}finally{
+				tiny.shutdown();
+			}
+		}finally{
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void testCheckpointResumesAndRecomputesInvalidStages() throws IOException {
+		Coordinate[] data = separatedGroups(new Random(41), new double[][]{{10, 50}, {11, 50}, {10, 51}}, 30, 0.05);
+		File dir = Files.createTempDirectory("checkpoint").toFile();
+		File fresh = Files.createTempDirectory("checkpoint").toFile();
+		Checkpoint checkpoint = new Checkpoint(dir, data, 4, Double.NaN);
+		try{
+			int[] expected = HDBSCAN.cluster(data, 4, 10, Double.NaN, fresh).getLabels();
+			assertArrayEquals(expected, HDBSCAN.cluster(data, 4, 10, Double.NaN, dir).getLabels());
+			MinimumSpanningTree mst = checkpoint.loadMST();
+			assertEquals(data.length, mst.getNumVertices());
+
+			// without the spanning tree the run resumes from the stored core distances
+			new File(dir, "mst.bin").delete();
+			double[] core = new double[data.length];
+			Arrays.fill(core, 1000.0);
+			checkpoint.saveCoreDistances(core);
+			HDBSCAN.cluster(data, 4, 10, Double.NaN, dir);
+			mst = checkpoint.loadMST();
+			for(int e = 0; e < mst.getNumEdges(); e++){
+				assertEquals(1000.0, mst.getWeight(e), 0.0);
+			}
+
+			// a damaged byte or a cut file fails the checksum and is recomputed
+			checkpoint.clear();
+			HDBSCAN.cluster(data, 4, 10, Double.NaN, dir);
+			File file = new File(dir, "mst.bin");
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			bytes[bytes.length / 2] ^= 1;
+			Files.write(file.toPath(), bytes);
+			assertNull(checkpoint.loadMST());
+			assertArrayEquals(expected, HDBSCAN.cluster(data, 4, 10, Double.NaN, dir).getLabels());
+			assertNotNull(checkpoint.loadMST());
+			bytes = Files.readAllBytes(file.toPath());
+			Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 5));
+			assertNull(checkpoint.loadMST());
+			// a damaged array length is rejected before it is allocated
+			file = new File(dir, "core.bin");
+			bytes = Files.readAllBytes(file.toPath());
+			bytes[40] = 0x7f;
+			Files.write(file.toPath(), bytes);
+			assertNull(checkpoint.loadCoreDistances());
+
+			// the stages of other rows are not loaded, and are overwritten
+			Coordinate[] moved = data.clone();
+			moved[0] = new Coordinate(data[0].x + 0.001, data[0].y);
+			Checkpoint other = new Checkpoint(dir, moved, 4, Double.NaN);
+			assertNull(other.loadPoints());
+			assertNull(new Checkpoint(dir, data, 5, Double.NaN).loadPoints());
+			assertArrayEquals(HDBSCAN.cluster(moved, 4, 10, Double.NaN, fresh).getLabels(),
+					HDBSCAN.cluster(moved, 4, 10, Double.NaN, dir).getLabels());
+			assertNotNull(other.loadMST());
+			assertNull(checkpoint.loadPoints());
+		}finally{
+			checkpoint.clear();
+			new Checkpoint(fresh, data, 4, Double.NaN).clear();
+			dir.delete();
+			fresh.delete();
+		}
+	}
+
+	@Test
+	public void testSlidingWindowMatchesBatch() {
+		// five groups of different spread and scattered noise, in random arrival order
+		Random random = new Random(42);
+		Coordinate[] groups = separatedGroups(random, new double[][]{{10, 50}, {10.3, 50.1}, {10.1, 50.4},
+				{11, 50}, {10.6, 50.6}}, 80, 0.03);
+		Coordinate[] data = new Coordinate[groups.length + 60];
+		System.arraycopy(groups, 0, data, 0, groups.length);
+		for(int i = groups.length; i < data.length; i++){
+			data[i] = new Coordinate(9.8 + random.nextDouble() * 1.5, 49.8 + random.nextDouble());
+		}
+		Collections.shuffle(Arrays.asList(data), random);
+		SlidingWindowHDBSCAN window = new SlidingWindowHDBSCAN(5, 15, 300, 50, 0.02);
+		int numCompared = 0;
+		for(int i = 0; i < data.length; i++){
+			WindowClustering clustering = window.add(data[i].x, data[i].y, i);
+			if(clustering == null || clustering.size() < 100){
+				continue;
+			}
+			long[] ids = clustering.getIds();
+			Coordinate[] points = new Coordinate[ids.length];
+			for(int j = 0; j < ids.length; j++){
+				points[j] = data[(int) ids[j]];
+			}
+			BallTree tree = new BallTree(points, 5);
+			tree.findKNN();
+			MinimumSpanningTree expectedMST = tree.calculateMST();
+			FlatClustering expected = new CondensedTree(new SingleLinkageTree(expectedMST, null), 15)
+					.extractClusters(ClusterSelection.EXCESS_OF_MASS);
+			// the window's tree spans it with the exact weights, every edge at its mutual reachability
+			double[] core = bruteForceCoreDistances(points, 5);
+			MinimumSpanningTree mst = window.calculateMST();
+			assertEquals(points.length - 1, mst.getNumEdges());
+			double[] weights = new double[mst.getNumEdges()];
+			double[] expectedWeights = new double[mst.getNumEdges()];
+			for(int e = 0; e < mst.getNumEdges(); e++){
+				int from = mst.getFrom(e);
+				int to = mst.getTo(e);
+				assertEquals(Math.max(distance(points[from], points[to]), Math.max(core[from], core[to])),
+						mst.getWeight(e), 1e-9);
+				weights[e] = mst.getWeight(e);
+				expectedWeights[e] = expectedMST.getWeight(e);
+			}
+			Arrays.sort(weights);
+			Arrays.sort(expectedWeights);
+			assertArrayEquals(expectedWeights, weights, 1e-9);
+			assertEquals(bruteForceMSTWeight(points, core), totalWeight(mst), 1e-6);
+			assertTrue(expected.getNumClusters() > 2);
+			assertEquals(expected.getNumClusters(), clustering.getClustering().getNumClusters());
+			assertArrayEquals(expected.getLabels(), clustering.getClustering().getLabels());
+			assertArrayEquals(expected.getProbabilities(), clustering.getClustering().getProbabilities(), 1e-9);
+			numCompared++;
+		}
+		assertTrue(numCompared >= 4);
+	}
+
+	@Test
+	public void testSingleLinkageIgnoresTies() {
+		// two spanning trees of equal weight over the same points, differing in their tied edges
+		MinimumSpanningTree path = new MinimumSpanningTree(6);
+		path.addEdge(3, 4, 1.0);
+		path.addEdge(0, 1, 2.0);
+		path.addEdge(1, 2, 2.0);
+		path.addEdge(2, 3, 2.0);
+		path.addEdge(4, 5, 3.0);
+		MinimumSpanningTree star = new MinimumSpanningTree(6);
+		star.addEdge(5, 4, 3.0);
+		star.addEdge(4, 2, 2.0);
+		star.addEdge(2, 0, 2.0);
+		star.addEdge(1, 3, 2.0);
+		star.addEdge(4, 3, 1.0);
+		SingleLinkageTree expected = new SingleLinkageTree(path, null);
+		SingleLinkageTree tree = new SingleLinkageTree(star, null);
+		assertEquals(expected.getNumMerges(), tree.getNumMerges());
+		for(int node = 6; node < 6 + tree.getNumMerges(); node++){
+			assertEquals(expected.getLeft(node), tree.getLeft(node));
+			assertEquals(expected.getRight(node), tree.getRight(node));
+			assertEquals(expected.getDistance(node), tree.getDistance(node), 0.0);
+		}
+	}
+
+	/**
+	 * Rows on both sides of the antimeridian and around the north pole, at
+	 * every longitude, with every sixth row duplicated.
+	 */
+	static Coordinate[] antimeridianAndPole(Random random, int n){
+		Coordinate[] data = new Coordinate[n];
+		for(int i = 0; i < n; i++){
+			if(i % 6 == 5){
+				data[i] = new Coordinate(data[random.nextInt(i)]);
+			}else if(i % 2 == 0){
+				double lon = 180 - random.nextDouble() * 3;
+				data[i] = new Coordinate(i % 4 == 0 ? lon : -lon, random.nextDouble() * 20 - 10);
+			}else{
+				data[i] = new Coordinate(random.nextDouble() * 360 - 180, 85 + random.nextDouble() * 5);
+			}
+		}
+		return data;
+	}
+
+	@Test
+	public void testBatchQueriesMatchBruteForce() {
+		Random random = new Random(46);
+		NearestKdTree tree = new NearestKdTree(antimeridianAndPole(random, 600), 5, Double.NaN);
+		tree.setNumThreads(3);
+		Coordinate[] points = tree.getWeightedPoints().getPoints();
+		int[] weights = tree.getWeightedPoints().getWeights();
+		Coordinate[] queries = antimeridianAndPole(random, 150);
+		queries[0] = new Coordinate(0.0, 90.0);
+		queries[1] = new Coordinate(180.0, 0.0);
+		queries[2] = new Coordinate(points[7]);
+		int k = 7;
+		int[] neighbors = new int[queries.length * k];
+		double[] distances = new double[queries.length * k];
+		int[] counts = new int[queries.length];
+		tree.queryKNN(queries, k, neighbors, distances, counts);
+		for(int i = 0; i < queries.length; i++){
+			// the nearest unique points until their weights reach k
+			final double[] dist = new double[points.length];
+			Integer[] order = new Integer[points.length];
+			for(int j = 0; j < points.length; j++){
+				dist[j] = KdNode.computeDistance(queries[i].x, queries[i].y, points[j].x, points[j].y);
+				order[j] = j;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(dist[a], dist[b]);
+				}
+			});
+			int expected = 0;
+			for(int weight = 0; weight < k; expected++){
+				weight += weights[order[expected]];
+			}
+			assertEquals(expected, counts[i]);
+			for(int j = 0; j < expected; j++){
+				assertEquals(order[j].intValue(), neighbors[i * k + j]);
+				assertEquals(dist[order[j]], distances[i * k + j], 1e-9);
+			}
+		}
+
+		for(double radius : new double[]{0.0, 20.0, 150.0, 600.0}){
+			int[] offsets = new int[queries.length + 1];
+			int total = tree.queryRadius(queries, radius, offsets, null, null);
+			neighbors = new int[total];
+			distances = new double[total];
+			assertEquals(total, tree.queryRadius(queries, radius, offsets, neighbors, distances));
+			for(int i = 0; i < queries.length; i++){
+				HashSet<Integer> expected = new HashSet<Integer>();
+				for(int j = 0; j < points.length; j++){
+					if(KdNode.computeDistance(queries[i].x, queries[i].y, points[j].x, points[j].y) <= radius){
+						expected.add(j);
+					}
+				}
+				HashSet<Integer> found = new HashSet<Integer>();
+				for(int e = offsets[i]; e < offsets[i + 1]; e++){
+					found.add(neighbors[e]);
+					assertEquals(KdNode.computeDistance(queries[i].x, queries[i].y, points[neighbors[e]].x,
+							points[neighbors[e]].y), distances[e], 1e-9);
+				}
+				assertEquals(offsets[i + 1] - offsets[i], found.size());
+				assertEquals(expected, found);
+			}
+		}
+	}
 
+	@Test
+	public void testCountsMatchBruteForce() {
+		// envelopes on the grid lines, so rows lie on their edges and on the splits
+		Coordinate[] grid = gridWithDuplicates();
+		NearestKdTree tree = new NearestKdTree(grid, 6, 0.001);
+		List<Envelope> cells = new ArrayList<Envelope>();
+		for(int a = 0; a < 10; a += 3){
+			for(int b = a; b < 10; b += 2){
+				cells.add(new Envelope(10.0 + a * 0.01, 10.0 + b * 0.01, 50.0 + b * 0.005, 50.09));
+			}
+		}
+		cells.add(new Envelope(9.0, 11.0, 49.0, 51.0));
+		assertCountsMatch(tree, grid, cells.toArray(new Envelope[cells.size()]));
+
+		Random random = new Random(47);
+		Coordinate[] data = antimeridianAndPole(random, 800);
+		tree = new NearestKdTree(data, 5, Double.NaN);
+		tree.setNumThreads(3);
+		cells.clear();
+		for(int i = 0; i < 60; i++){
+			double x = random.nextDouble() * 360 - 180;
+			double y = random.nextDouble() * 100 - 10;
+			cells.add(new Envelope(x, Math.min(180, x + random.nextDouble() * 40), y, Math.min(90, y + random.nextDouble() * 10)));
+		}
+		cells.add(new Envelope(-180, 180, 85, 90));
+		cells.add(new Envelope(177, 180, -10, 10));
+		assertCountsMatch(tree, data, cells.toArray(new Envelope[cells.size()]));
+
+		Coordinate[] queries = antimeridianAndPole(random, 100);
+		queries[0] = new Coordinate(0.0, 90.0);
+		queries[1] = new Coordinate(180.0, 0.0);
+		queries[2] = new Coordinate(data[3]);
+		for(double radius : new double[]{0.0, 30.0, 300.0, 3000.0, 12000.0}){
+			int[] counts = new int[queries.length];
+			tree.countWithinRadius(queries, radius, counts);
+			for(int i = 0; i < queries.length; i++){
+				int expected = 0;
+				for(Coordinate row : data){
+					if(KdNode.computeDistance(queries[i].x, queries[i].y, row.x, row.y) <= radius){
+						expected++;
+					}
+				}
+				assertEquals(expected, counts[i]);
+				assertEquals(expected, tree.countWithinRadius(queries[i], radius));
+			}
+		}
+
+		// the corner bound holds for every subtree that it does not give up on
+		int numBounded = 0;
+		for(KdNode node : tree.getAllNodes()){
+			List<Coordinate> subtree = new ArrayList<Coordinate>();
+			List<KdNode> stack = new ArrayList<KdNode>();
+			stack.add(node);
+			while(!stack.isEmpty()){
+				KdNode next = stack.remove(stack.size() - 1);
+				subtree.add(next.getCoordinate());
+				if(next.getLeft() != null){
+					stack.add(next.getLeft());
+				}
+				if(next.getRight() != null){
+					stack.add(next.getRight());
+				}
+			}
+			for(Coordinate q : queries){
+				double bound = node.maxDistanceToSubtree(q.x, q.y);
+				if(Double.isInfinite(bound)){
+					continue;
+				}
+				numBounded++;
+				for(Coordinate p : subtree){
+					assertTrue(KdNode.computeDistance(q.x, q.y, p.x, p.y) <= bound + 1e-9);
+				}
+			}
+		}
+		assertTrue(numBounded > 0);
+	}
+
+	private static void assertCountsMatch(NearestKdTree tree, Coordinate[] rows, Envelope[] cells){
+		int[] counts = new int[cells.length];
+		tree.count(cells, counts);
+		for(int i = 0; i < cells.length; i++){
+			int expected = 0;
+			for(Coordinate row : rows){
+				if(cells[i].intersects(row)){
+					expected++;
+				}
+			}
+			assertEquals(expected, counts[i]);
+			assertEquals(expected, tree.count(cells[i]));
+		}
+	}
+
+	@Test
+	public void testDenseMatchesBallTree() {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try{
+			// a small input runs inline, a larger one over the executor
+			for(int n : new int[]{300, 3000}){
+				WeightedPoints points = WeightedPoints.snap(antimeridianAndPole(new Random(n), n), 0.0001);
+				DenseHDBSCAN dense = new DenseHDBSCAN(points.getPoints(), points.getWeights(), 6);
+				dense.setNumThreads(3);
+				dense.setExecutor(executor);
+				dense.findKNN();
+				BallTree tree = new BallTree(points.getPoints(), points.getWeights(), 6);
+				tree.findKNN();
+				assertArrayEquals(tree.getCoreDistances(), dense.getCoreDistances(), 1e-6);
+				MinimumSpanningTree mst = dense.calculateMST();
+				assertEquals(points.size() - 1, mst.getNumEdges());
+				assertEquals(totalWeight(tree.calculateMST()), totalWeight(mst), 1e-6 * points.size());
+			}
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * The graph of every pair of points by haversine distance, every edge
+	 * listed from both ends.
+	 */
+	static NeighborGraph fullGraph(Coordinate[] data){
+		int[] offsets = new int[data.length + 1];
+		List<Integer> neighbors = new ArrayList<Integer>();
+		List<Double> distances = new ArrayList<Double>();
+		for(int i = 0; i < data.length; i++){
+			for(int j = 0; j < data.length; j++){
+				if(j != i){
+					neighbors.add(j);
+					distances.add(distance(data[i], data[j]));
+				}
+			}
+			offsets[i + 1] = neighbors.size();
+		}
+		int[] n = new int[neighbors.size()];
+		double[] d = new double[n.length];
+		for(int e = 0; e < n.length; e++){
+			n[e] = neighbors.get(e);
+			d[e] = distances.get(e);
+		}
+		return new NeighborGraph(offsets, n, d);
+	}
+
+	@Test
+	public void testSparseGraphMatchesBallTree() {
+		Coordinate[] data = separatedGroups(new Random(50), new double[][]{{10, 50}, {10.5, 50}, {179.9, 0}}, 60, 0.05);
+		SparseGraphHDBSCAN sparse = new SparseGraphHDBSCAN(fullGraph(data), null, 5);
+		BallTree tree = new BallTree(data, 5);
+		tree.findKNN();
+		assertArrayEquals(tree.getCoreDistances(), sparse.calculateCoreDistances(), 1e-9);
+		MinimumSpanningTree mst = sparse.calculateMST();
+		assertEquals(data.length - 1, mst.getNumEdges());
+		assertEquals(1, sparse.getNumComponents());
+		MinimumSpanningTree expectedMST = tree.calculateMST();
+		assertEquals(totalWeight(expectedMST), totalWeight(mst), 1e-6);
+		// the same partition, whatever the numbering
+		FlatClustering expected = new CondensedTree(new SingleLinkageTree(expectedMST, null), 10)
+				.extractClusters(ClusterSelection.EXCESS_OF_MASS);
+		FlatClustering clustering = sparse.cluster(10, ClusterSelection.EXCESS_OF_MASS);
+		assertEquals(3, expected.getNumClusters());
+		assertEquals(expected.getNumClusters(), clustering.getNumClusters());
+		for(int i = 0; i < data.length; i++){
+			for(int j = 0; j < data.length; j++){
+				assertEquals(expected.getLabels()[i] == expected.getLabels()[j],
+						clustering.getLabels()[i] == clustering.getLabels()[j]);
+			}
+		}
+	}
+
+	@Test
+	public void testDisconnectedGraphReportsComponents() {
+		// the two groups are not linked, and vertex 40 has no neighbors at all
+		Coordinate[] groups = twoGroups();
+		NeighborGraph first = fullGraph(Arrays.copyOfRange(groups, 0, 20));
+		NeighborGraph second = fullGraph(Arrays.copyOfRange(groups, 20, 40));
+		int m = first.getNumEntries();
+		int[] offsets = new int[42];
+		int[] neighbors = new int[2 * m];
+		double[] distances = new double[2 * m];
+		for(int i = 0; i <= 20; i++){
+			offsets[i] = first.getOffsets()[i];
+			offsets[i + 20] = m + second.getOffsets()[i];
+		}
+		offsets[41] = 2 * m;
+		for(int e = 0; e < m; e++){
+			neighbors[e] = first.getNeighbors()[e];
+			neighbors[m + e] = 20 + second.getNeighbors()[e];
+			distances[e] = first.getDistances()[e];
+			distances[m + e] = second.getDistances()[e];
+		}
+		GraphClustering result = HDBSCAN.cluster(new NeighborGraph(offsets, neighbors, distances), 4, 5);
+		assertFalse(result.isConnected());
+		assertEquals(3, result.getNumComponents());
+		for(int i = 0; i < 41; i++){
+			assertEquals(i < 20 ? 0 : i < 40 ? 1 : 2, result.getComponents()[i]);
+		}
+		int[] labels = result.getClustering().getLabels();
+		assertEquals(2, result.getClustering().getNumClusters());
+		assertNotEquals(labels[0], labels[20]);
+		assertEquals(FlatClustering.NOISE, labels[40]);
+	}
+
+	@Test
+	public void testNeighborGraphFiles() throws IOException {
+		NeighborGraph graph = fullGraph(twoGroups());
+		File file = File.createTempFile("graph", ".bin");
+		file.deleteOnExit();
+		graph.write(file);
+		assertEquals(16 + 4 * 41 + 12 * graph.getNumEntries(), file.length());
+		NeighborGraph read = NeighborGraph.read(file);
+		assertArrayEquals(graph.getOffsets(), read.getOffsets());
+		assertArrayEquals(graph.getNeighbors(), read.getNeighbors());
+		assertArrayEquals(graph.getDistances(), read.getDistances(), 0.0);
+
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		// a wrong magic number, a truncated file, an entry count beyond the file and a neighbor out of range
+		int firstNeighbor = 16 + 4 * 41;
+		int[][] damage = {{0, 0x7f}, {-1, 0}, {12, 0x7f}, {firstNeighbor, 0x7f}};
+		for(int[] d : damage){
+			byte[] damaged = d[0] < 0 ? Arrays.copyOf(bytes, bytes.length - 8) : bytes.clone();
+			if(d[0] >= 0){
+				damaged[d[0]] = (byte) d[1];
+			}
+			Files.write(file.toPath(), damaged);
+			try{
+				NeighborGraph.read(file);
+				fail("Read a damaged graph file, damage at " + d[0]);
+			}catch(IOException e){
+				// expected
+			}
+		}
+
+		int[][] offsets = {{}, {1, 1}, {0, 2, 1}, {0, 1, 3}, {0, 1, 2}, {0, 1, 2}};
+		int[][] neighbors = {{}, {0}, {1, 0}, {1, 0}, {1, 2}, {1, 0}};
+		double[][] distances = {{}, {1.0}, {1.0, 1.0}, {1.0, 1.0}, {1.0, 1.0}, {1.0, Double.NaN}};
+		for(int i = 0; i < offsets.length; i++){
+			try{
+				new NeighborGraph(offsets[i], neighbors[i], distances[i]);
+				fail("Accepted invalid graph " + i);
+			}catch(IllegalArgumentException e){
+				// expected
+			}
+		}
+		assertEquals(0.0, new NeighborGraph(new int[]{0, 0}, new int[0], new double[0]).getNumEntries(), 0.0);
+	}
+
+
+	@Test
+	public void testExportRoundTrip() throws Exception {
+		Coordinate[] data = separatedGroups(new Random(39), new double[][]{{10, 50}, {10.5, 50}, {12, 51}}, 60, 0.05);
+		BallTree tree = new BallTree(data, 5);
+		tree.findKNN();
+		MinimumSpanningTree mst = tree.calculateMST();
+		FlatClustering clustering = new CondensedTree(new SingleLinkageTree(mst, null), 20)
+				.extractClusters(ClusterSelection.EXCESS_OF_MASS);
+		assertEquals(3, clustering.getNumClusters());
+		File dir = Files.createTempDirectory("export").toFile();
+		File file = new File(dir, "export");
+		try{
+			// GeoJSON coordinates are written with 7 fraction digits
+			new ClusterExporter(ExportFormat.GEOJSON).writeEdges(mst, data, null, file);
+			Map<?, ?> collection = (Map<?, ?>) parseJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+			assertEquals("FeatureCollection", collection.get("type"));
+			List<?> features = (List<?>) collection.get("features");
+			assertEquals(mst.getNumEdges(), features.size());
+			for(int e = 0; e < mst.getNumEdges(); e++){
+				Map<?, ?> feature = (Map<?, ?>) features.get(e);
+				Map<?, ?> geometry = (Map<?, ?>) feature.get("geometry");
+				Map<?, ?> properties = (Map<?, ?>) feature.get("properties");
+				assertEquals("LineString", geometry.get("type"));
+				List<?> coordinates = (List<?>) geometry.get("coordinates");
+				assertEquals(2, coordinates.size());
+				assertJsonCoordinate(data[mst.getFrom(e)], coordinates.get(0));
+				assertJsonCoordinate(data[mst.getTo(e)], coordinates.get(1));
+				assertEquals(mst.getFrom(e), ((Double) properties.get("v1")).intValue());
+				assertEquals(mst.getTo(e), ((Double) properties.get("v2")).intValue());
+				assertEquals(mst.getWeight(e), (Double) properties.get("weight"), 1e-6);
+			}
+
+			// WKB records hold the exact values and a geometry JTS reads back
+			new ClusterExporter(ExportFormat.WKB).writeEdges(mst, data, null, file);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+			WKBReader reader = new WKBReader();
+			for(int e = 0; e < mst.getNumEdges(); e++){
+				assertEquals(mst.getFrom(e), Integer.reverseBytes(in.readInt()));
+				assertEquals(mst.getTo(e), Integer.reverseBytes(in.readInt()));
+				assertEquals(mst.getWeight(e), Double.longBitsToDouble(Long.reverseBytes(in.readLong())), 0.0);
+				LineString line = (LineString) reader.read(new InputStreamInStream(in));
+				assertEquals(2, line.getNumPoints());
+				assertTrue(line.getCoordinateN(0).equals2D(data[mst.getFrom(e)]));
+				assertTrue(line.getCoordinateN(1).equals2D(data[mst.getTo(e)]));
+			}
+			assertEquals(-1, in.read());
+
+			// the hulls are the convex hulls of the members of every cluster
+			GeometryFactory gf = new GeometryFactory(new PrecisionModel(), 4326);
+			Geometry[] hulls = new Geometry[clustering.getNumClusters()];
+			int[] sizes = new int[hulls.length];
+			for(int c = 0; c < hulls.length; c++){
+				List<Coordinate> members = new ArrayList<Coordinate>();
+				for(int p = 0; p < data.length; p++){
+					if(clustering.getLabels()[p] == c){
+						members.add(data[p]);
+					}
+				}
+				hulls[c] = new ConvexHull(members.toArray(new Coordinate[0]), gf).getConvexHull();
+				sizes[c] = members.size();
+			}
+			new ClusterExporter(ExportFormat.WKB).writeHulls(data, clustering, file);
+			in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+			for(int c = 0; c < hulls.length; c++){
+				assertEquals(c, Integer.reverseBytes(in.readInt()));
+				assertEquals(sizes[c], Integer.reverseBytes(in.readInt()));
+				Geometry hull = reader.read(new InputStreamInStream(in));
+				assertTrue(hull instanceof Polygon);
+				assertTrue(hulls[c].equalsExact(hull));
+			}
+			assertEquals(-1, in.read());
+			new ClusterExporter(ExportFormat.GEOJSON).writeHulls(data, clustering, file);
+			features = (List<?>) ((Map<?, ?>) parseJson(new String(Files.readAllBytes(file.toPath()),
+					StandardCharsets.UTF_8))).get("features");
+			assertEquals(hulls.length, features.size());
+			for(int c = 0; c < hulls.length; c++){
+				Map<?, ?> geometry = (Map<?, ?>) ((Map<?, ?>) features.get(c)).get("geometry");
+				assertEquals("Polygon", geometry.get("type"));
+				List<?> ring = (List<?>) ((List<?>) geometry.get("coordinates")).get(0);
+				Coordinate[] expected = hulls[c].getCoordinates();
+				assertEquals(expected.length, ring.size());
+				for(int i = 0; i < expected.length; i++){
+					assertJsonCoordinate(expected[i], ring.get(i));
+				}
+				Map<?, ?> properties = (Map<?, ?>) ((Map<?, ?>) features.get(c)).get("properties");
+				assertEquals(sizes[c], ((Double) properties.get("num_points")).intValue());
+			}
+		}finally{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testParallelExportIsSequential() throws Exception {
+		// enough records for several blocks of 8192 per file
+		Random random = new Random(40);
+		int n = 20000;
+		Coordinate[] points = new Coordinate[n];
+		int[] labels = new int[n];
+		double[] probabilities = new double[n];
+		double[] scores = new double[n];
+		MinimumSpanningTree mst = new MinimumSpanningTree(n);
+		for(int i = 0; i < n; i++){
+			points[i] = new Coordinate(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+			labels[i] = random.nextInt(6) - 1;
+			probabilities[i] = labels[i] == FlatClustering.NOISE ? 0.0 : random.nextDouble();
+			scores[i] = i % 100 == 0 ? Double.NaN : random.nextDouble();
+			if(i > 0){
+				mst.addEdge(i - 1, i, random.nextDouble() * 10);
+			}
+		}
+		FlatClustering clustering = new FlatClustering(labels, probabilities, scores, 5);
+		int[] rowIndex = new int[3 * n];
+		for(int row = 0; row < rowIndex.length; row++){
+			rowIndex[row] = random.nextInt(n);
+		}
+		File dir = Files.createTempDirectory("export").toFile();
+		File sequentialFile = new File(dir, "sequential");
+		File parallelFile = new File(dir, "parallel");
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try{
+			for(ExportFormat format : ExportFormat.values()){
+				ClusterExporter sequential = new ClusterExporter(format);
+				ClusterExporter parallel = new ClusterExporter(format);
+				parallel.setParallelism(4);
+				parallel.setPool(pool);
+				for(int kind = 0; kind < 4; kind++){
+					for(ClusterExporter exporter : new ClusterExporter[]{sequential, parallel}){
+						File file = exporter == sequential ? sequentialFile : parallelFile;
+						if(kind == 0){
+							exporter.writeEdges(mst, points, null, file);
+						}else if(kind == 1){
+							exporter.writePoints(points, clustering, file);
+						}else if(kind == 2){
+							exporter.writeRows(clustering, rowIndex, file);
+						}else{
+							exporter.writeHulls(points, clustering, file);
+						}
+					}
+					assertArrayEquals(format + " " + kind, Files.readAllBytes(sequentialFile.toPath()),
+							Files.readAllBytes(parallelFile.toPath()));
+				}
+			}
+		}finally{
+			pool.shutdown();
+			sequentialFile.delete();
+			parallelFile.delete();
+			dir.delete();
+		}
+	}
+
+	private static void assertJsonCoordinate(Coordinate expected, Object coordinate){
+		List<?> xy = (List<?>) coordinate;
+		assertEquals(2, xy.size());
+		assertEquals(expected.x, (Double) xy.get(0), 0.5e-7);
+		assertEquals(expected.y, (Double) xy.get(1), 0.5e-7);
+	}
+
+	/**
+	 * Parses JSON into maps, lists, doubles, booleans and null, with strings
+	 * that have no escapes, which is all the exporter writes.
+	 */
+	static Object parseJson(String text){
+		int[] position = {0};
+		Object value = parseJsonValue(text, position);
+		skipJsonWhitespace(text, position);
+		assertEquals(text.length(), position[0]);
+		return value;
+	}
+
+	private static Object parseJsonValue(String text, int[] position){
+		skipJsonWhitespace(text, position);
+		char c = text.charAt(position[0]);
+		if(c == '{' || c == '['){
+			boolean object = c == '{';
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			List<Object> list = new ArrayList<Object>();
+			position[0]++;
+			skipJsonWhitespace(text, position);
+			if(text.charAt(position[0]) == (object ? '}' : ']')){
+				position[0]++;
+				return object ? map : list;
+			}
+			while(true){
+				if(object){
+					String key = (String) parseJsonValue(text, position);
+					skipJsonWhitespace(text, position);
+					assertEquals(':', text.charAt(position[0]++));
+					map.put(key, parseJsonValue(text, position));
+				}else{
+					list.add(parseJsonValue(text, position));
+				}
+				skipJsonWhitespace(text, position);
+				char next = text.charAt(position[0]++);
+				if(next == (object ? '}' : ']')){
+					return object ? map : list;
+				}
+				assertEquals(',', next);
+			}
+		}
+		if(c == '"'){
+			int end = text.indexOf('"', position[0] + 1);
+			String string = text.substring(position[0] + 1, end);
+			assertEquals(-1, string.indexOf('\\'));
+			position[0] = end + 1;
+			return string;
+		}
+		for(String literal : new String[]{"null", "true", "false"}){
+			if(text.startsWith(literal, position[0])){
+				position[0] += literal.length();
+				return literal.equals("null") ? null : Boolean.valueOf(literal);
+			}
+		}
+		int start = position[0];
+		while(position[0] < text.length() && "+-0123456789.eE".indexOf(text.charAt(position[0])) >= 0){
+			position[0]++;
+		}
+		return Double.valueOf(text.substring(start, position[0]));
+	}
+
+	private static void skipJsonWhitespace(String text, int[] position){
+		while(position[0] < text.length() && Character.isWhitespace(text.charAt(position[0]))){
+			position[0]++;
+		}
+	}
 }